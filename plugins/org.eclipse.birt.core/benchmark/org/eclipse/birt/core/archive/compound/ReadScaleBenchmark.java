@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * measure the read throughput of a read only archive against the count of
+ * the reader threads.
+ * 
+ * Each thread reads random block aligned 4K pieces for a few seconds. Three
+ * paths are measured:
+ * <ul>
+ * <li>locked: seek and read the shared RandomAccessFile with a lock, it is
+ * how the Ext2 blocks were read before the positional reads.</li>
+ * <li>pread: read the shared FileChannel at the position without a lock, it
+ * is how the Ext2 blocks are read now.</li>
+ * <li>archive: read the entries of the archive with the caches disabled, so
+ * each read goes through the block read path of the file system.</li>
+ * </ul>
+ * 
+ * Usage: ReadScaleBenchmark [archive file] [seconds per run]. The archive is
+ * created with 8 entries of 8M if it doesn't exist.
+ */
+public class ReadScaleBenchmark
+{
+
+	static final int ENTRY_COUNT = 8;
+	static final int ENTRY_SIZE = 8 << 20;
+	static final int READ_SIZE = 4096;
+	static final int[] THREAD_COUNTS = new int[]{1, 2, 4, 8, 16};
+
+	public static void main( String[] args ) throws Exception
+	{
+		File file = new File( args.length > 0 ? args[0] : "read-scale.dat" );
+		long seconds = args.length > 1 ? Long.parseLong( args[1] ) : 2;
+		if ( !file.exists( ) )
+		{
+			createArchive( file );
+		}
+		ArchiveFile.setTotalCacheSize( 0 );
+		// warm up the JVM and the OS cache
+		run( file, "archive", 1, seconds );
+		System.out.println( "threads  locked MB/s  pread MB/s  archive MB/s" );
+		for ( int threads : THREAD_COUNTS )
+		{
+			System.out.printf( "%7d  %11.1f  %10.1f  %12.1f%n", Integer
+					.valueOf( threads ), Double.valueOf( run( file, "locked",
+					threads, seconds ) ), Double.valueOf( run( file, "pread",
+					threads, seconds ) ), Double.valueOf( run( file,
+					"archive", threads, seconds ) ) );
+		}
+	}
+
+	private static void createArchive( File file ) throws IOException
+	{
+		ArchiveFile archive = new ArchiveFile( file.getPath( ), "rw" );
+		try
+		{
+			byte[] data = new byte[1 << 20];
+			new Random( 1 ).nextBytes( data );
+			for ( int i = 0; i < ENTRY_COUNT; i++ )
+			{
+				ArchiveEntry entry = archive.createEntry( "/e" + i );
+				for ( long pos = 0; pos < ENTRY_SIZE; pos += data.length )
+				{
+					entry.write( pos, data, 0, data.length );
+				}
+				entry.close( );
+			}
+		}
+		finally
+		{
+			archive.close( );
+		}
+	}
+
+	/**
+	 * @return the throughput in MB/s.
+	 */
+	private static double run( File file, final String path, int threads,
+			long seconds ) throws Exception
+	{
+		final RandomAccessFile rf = new RandomAccessFile( file, "r" );
+		final ArchiveFile archive = new ArchiveFile( file.getPath( ), "r" );
+		archive.setCacheSize( 0 );
+		final long fileLength = rf.length( );
+		final AtomicLong bytes = new AtomicLong( );
+		final Throwable[] error = new Throwable[1];
+		final long end = System.nanoTime( ) + seconds * 1000000000L;
+		Thread[] readers = new Thread[threads];
+		for ( int i = 0; i < threads; i++ )
+		{
+			final int id = i;
+			readers[i] = new Thread( ) {
+
+				public void run( )
+				{
+					try
+					{
+						bytes.addAndGet( read( path, id, rf, archive,
+								fileLength, end ) );
+					}
+					catch ( Throwable ex )
+					{
+						error[0] = ex;
+					}
+				}
+			};
+		}
+		long start = System.nanoTime( );
+		for ( Thread reader : readers )
+		{
+			reader.start( );
+		}
+		for ( Thread reader : readers )
+		{
+			reader.join( );
+		}
+		double time = ( System.nanoTime( ) - start ) / 1e9;
+		archive.close( );
+		rf.close( );
+		if ( error[0] != null )
+		{
+			throw new RuntimeException( error[0] );
+		}
+		return bytes.get( ) / time / ( 1 << 20 );
+	}
+
+	private static long read( String path, int id, RandomAccessFile rf,
+			ArchiveFile archive, long fileLength, long end )
+			throws IOException
+	{
+		Random random = new Random( id );
+		byte[] b = new byte[READ_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap( b );
+		FileChannel channel = rf.getChannel( );
+		ArchiveEntry entry = null;
+		if ( "archive".equals( path ) )
+		{
+			entry = archive.openEntry( "/e" + ( id % ENTRY_COUNT ) );
+		}
+		long pieces = ( "archive".equals( path ) ? ENTRY_SIZE : fileLength )
+				/ READ_SIZE;
+		long size = 0;
+		while ( System.nanoTime( ) < end )
+		{
+			for ( int i = 0; i < 64; i++ )
+			{
+				long pos = ( (long) random.nextInt( (int) pieces ) )
+						* READ_SIZE;
+				if ( entry != null )
+				{
+					entry.read( pos, b, 0, READ_SIZE );
+				}
+				else if ( "locked".equals( path ) )
+				{
+					synchronized ( rf )
+					{
+						rf.seek( pos );
+						rf.readFully( b );
+					}
+				}
+				else
+				{
+					buffer.clear( );
+					while ( buffer.hasRemaining( ) )
+					{
+						if ( channel.read( buffer, pos + buffer.position( ) ) < 0 )
+						{
+							break;
+						}
+					}
+				}
+				size += READ_SIZE;
+			}
+		}
+		if ( entry != null )
+		{
+			entry.close( );
+		}
+		return size;
+	}
+}
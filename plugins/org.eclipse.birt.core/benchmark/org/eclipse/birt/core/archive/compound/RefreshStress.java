@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * check the content read by a reader which refreshes the archive while a
+ * writer adds, removes and commits the entries.
+ * 
+ * The writer creates ENTRY_COUNT entries of random sizes, commits every
+ * COMMIT_INTERVAL entries and removes an older entry every REMOVE_INTERVAL
+ * entries if the removal is enabled. The reader is opened after the writer
+ * has committed some entries, then it refreshes the archive and reads all the
+ * entries of the snapshot again and again until the writer is closed. The
+ * content of each entry is generated from its id, so the reader checks the
+ * bytes instead of the names only. The entries removed by the writer may
+ * fail or be reused once the reader is behind the writer, the other entries
+ * must always be read correctly.
+ * 
+ * Usage: RefreshStress [archive file] [remove]. It exits with 1 if any entry
+ * is read wrong.
+ */
+public class RefreshStress
+{
+
+	static final int ENTRY_COUNT = 400;
+	static final int COMMIT_INTERVAL = 5;
+	static final int REMOVE_INTERVAL = 3;
+	static final int REMOVE_DISTANCE = 10;
+	static final int WRITE_SIZE = 4096;
+
+	public static void main( String[] args ) throws Exception
+	{
+		File file = new File( args.length > 0 ? args[0] : "refresh-stress.dat" );
+		boolean remove = args.length > 1 && "remove".equals( args[1] );
+		file.delete( );
+		int bad = run( file.getPath( ), remove );
+		file.delete( );
+		if ( bad > 0 )
+		{
+			System.exit( 1 );
+		}
+	}
+
+	private static int run( String fileName, final boolean remove )
+			throws Exception
+	{
+		final ArchiveFile writer = new ArchiveFile( fileName, "rw" );
+		writer.flush( );
+		final Throwable[] error = new Throwable[1];
+		Thread thread = new Thread( "writer" ) {
+
+			public void run( )
+			{
+				try
+				{
+					write( writer, remove );
+				}
+				catch ( Throwable ex )
+				{
+					error[0] = ex;
+				}
+			}
+		};
+		thread.start( );
+		// the reader is opened while the writer is committing
+		while ( thread.isAlive( )
+				&& writer.listEntries( "/e/" ).size( ) < COMMIT_INTERVAL * 6 )
+		{
+			Thread.yield( );
+		}
+
+		int refreshes = 0, reads = 0, removed = 0, bad = 0;
+		ArchiveFile reader = new ArchiveFile( fileName, "r" );
+		try
+		{
+			boolean finished = false;
+			while ( !finished )
+			{
+				finished = !thread.isAlive( );
+				reader.refresh( );
+				refreshes++;
+				for ( Object entry : reader.listEntries( "/e/" ) )
+				{
+					String name = (String) entry;
+					int id = Integer.parseInt( name.substring( 3 ) );
+					byte[] data = null;
+					try
+					{
+						data = read( reader, name );
+					}
+					catch ( IOException ex )
+					{
+						// the entry may be removed by the writer
+					}
+					if ( data != null
+							&& Arrays.equals( data, getContent( id ) ) )
+					{
+						reads++;
+					}
+					else if ( remove && isRemoved( id ) )
+					{
+						removed++;
+					}
+					else
+					{
+						bad++;
+						System.out.println( "wrong content of " + name
+								+ " after refresh " + refreshes );
+					}
+				}
+			}
+		}
+		finally
+		{
+			reader.close( );
+			thread.join( );
+		}
+		if ( error[0] != null )
+		{
+			error[0].printStackTrace( );
+			bad++;
+		}
+		System.out.println( ( bad == 0 ? "OK" : "FAILED" ) + " refreshes="
+				+ refreshes + " reads=" + reads + " removed=" + removed
+				+ " bad=" + bad );
+		return bad;
+	}
+
+	private static void write( ArchiveFile writer, boolean remove )
+			throws IOException
+	{
+		try
+		{
+			for ( int i = 0; i < ENTRY_COUNT; i++ )
+			{
+				ArchiveEntry entry = writer.createEntry( "/e/" + i );
+				try
+				{
+					byte[] data = getContent( i );
+					for ( int off = 0; off < data.length; off += WRITE_SIZE )
+					{
+						entry.write( off, data, off, Math.min( WRITE_SIZE,
+								data.length - off ) );
+						// let the reader run between the writes
+						Thread.yield( );
+					}
+				}
+				finally
+				{
+					entry.close( );
+				}
+				if ( remove && i >= REMOVE_DISTANCE && i % REMOVE_INTERVAL == 0 )
+				{
+					writer.removeEntry( "/e/" + ( i - REMOVE_DISTANCE ) );
+				}
+				if ( i % COMMIT_INTERVAL == COMMIT_INTERVAL - 1 )
+				{
+					writer.flush( );
+				}
+			}
+		}
+		finally
+		{
+			writer.close( );
+		}
+	}
+
+	/**
+	 * return true if the entry is removed by the writer.
+	 */
+	private static boolean isRemoved( int id )
+	{
+		int i = id + REMOVE_DISTANCE;
+		return i < ENTRY_COUNT && i % REMOVE_INTERVAL == 0;
+	}
+
+	private static byte[] getContent( int id )
+	{
+		byte[] data = new byte[1000 + ( id * 7919 ) % 60000];
+		new Random( id ).nextBytes( data );
+		return data;
+	}
+
+	private static byte[] read( ArchiveFile reader, String name )
+			throws IOException
+	{
+		ArchiveEntry entry = reader.openEntry( name );
+		try
+		{
+			byte[] data = new byte[(int) entry.getLength( )];
+			int off = 0;
+			while ( off < data.length )
+			{
+				int size = entry.read( off, data, off, data.length - off );
+				if ( size <= 0 )
+				{
+					break;
+				}
+				off += size;
+			}
+			return data;
+		}
+		finally
+		{
+			entry.close( );
+		}
+	}
+}
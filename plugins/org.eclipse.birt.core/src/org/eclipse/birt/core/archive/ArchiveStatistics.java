@@ -0,0 +1,447 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive;
+
+import java.lang.management.ManagementFactory;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.birt.core.archive.cache.FileCacheManager;
+
+/**
+ * the I/O and cache statistics of an archive, or of all the archives.
+ * 
+ * Each opened archive updates its own statistics, the cache statistics are
+ * read from the file cache of the archive. The global statistics are the sum
+ * of the opened archives and the archives closed before, so the I/O of the
+ * archives doesn't update the shared counters.
+ * 
+ * The statistics are registered as the MBeans if the system property
+ * PROPERTY_JMX is "true", the global statistics is registered as
+ * "org.eclipse.birt.core.archive:type=Global" and each archive as
+ * "org.eclipse.birt.core.archive:type=Archive,name=...,id=...".
+ */
+public class ArchiveStatistics implements ArchiveStatisticsMBean
+{
+
+	protected static Logger logger = Logger.getLogger( ArchiveStatistics.class
+			.getName( ) );
+
+	/**
+	 * the system property enables the MBeans of the archives. The value is
+	 * "true" or "false", it is "false" by default.
+	 */
+	public static final String PROPERTY_JMX = "org.eclipse.birt.core.archive.JMX";
+
+	static final String JMX_DOMAIN = "org.eclipse.birt.core.archive";
+
+	/**
+	 * the blocks are read from the disk.
+	 */
+	public static final int EVENT_BLOCK_READ = 1;
+	/**
+	 * the blocks are written into the disk.
+	 */
+	public static final int EVENT_BLOCK_WRITE = 2;
+	/**
+	 * the dirty block is written as it is released by the cache.
+	 */
+	public static final int EVENT_DIRTY_FLUSH = 3;
+	/**
+	 * the thread waited for the lock of the archive.
+	 */
+	public static final int EVENT_LOCK_WAIT = 4;
+
+	private static final int BLOCK_READ = 0;
+	private static final int BYTE_READ = 1;
+	private static final int BLOCK_WRITE = 2;
+	private static final int BYTE_WRITE = 3;
+	private static final int DIRTY_FLUSH = 4;
+	private static final int LOCK_WAIT = 5;
+	private static final int CACHE_HIT = 6;
+	private static final int CACHE_MISS = 7;
+	private static final int CACHE_EVICTION = 8;
+	private static final int COUNTER_COUNT = 9;
+
+	private static final boolean jmxEnabled = isJmxEnabled( );
+	private static final AtomicInteger mbeanId = new AtomicInteger( );
+	private static final CopyOnWriteArrayList<IArchiveStatisticsListener> listeners = new CopyOnWriteArrayList<IArchiveStatisticsListener>( );
+	private static final ArchiveStatistics global = new ArchiveStatistics( );
+
+	private final String name;
+	private final AtomicLongArray counters = new AtomicLongArray(
+			COUNTER_COUNT );
+	private final AtomicInteger openFileCount = new AtomicInteger( );
+	private volatile FileCacheManager cacheManager;
+	private ObjectName objectName;
+
+	/**
+	 * the opened archives, only used by the global statistics.
+	 */
+	private ConcurrentHashMap<ArchiveStatistics, Boolean> archives;
+	/**
+	 * the counters of the closed archives, only used by the global
+	 * statistics.
+	 */
+	private long[] closedCounters;
+
+	private ArchiveStatistics( )
+	{
+		this.name = "global";
+		this.archives = new ConcurrentHashMap<ArchiveStatistics, Boolean>( );
+		this.closedCounters = new long[COUNTER_COUNT];
+		register( JMX_DOMAIN + ":type=Global" );
+	}
+
+	/**
+	 * create the statistics of the opened archive, it must be closed with the
+	 * archive.
+	 * 
+	 * @param name
+	 *            the archive name.
+	 */
+	public ArchiveStatistics( String name )
+	{
+		this.name = name;
+		global.archives.put( this, Boolean.TRUE );
+		if ( jmxEnabled )
+		{
+			register( JMX_DOMAIN + ":type=Archive,name="
+					+ ObjectName.quote( String.valueOf( name ) ) + ",id="
+					+ mbeanId.incrementAndGet( ) );
+		}
+	}
+
+	/**
+	 * return the statistics of all the archives.
+	 */
+	public static ArchiveStatistics getGlobalStatistics( )
+	{
+		return global;
+	}
+
+	public static void addListener( IArchiveStatisticsListener listener )
+	{
+		listeners.addIfAbsent( listener );
+	}
+
+	public static void removeListener( IArchiveStatisticsListener listener )
+	{
+		listeners.remove( listener );
+	}
+
+	/**
+	 * register the object as the MBean if the MBeans are enabled.
+	 * 
+	 * @return true if the object is registered.
+	 */
+	public static boolean registerMBean( Object mbean, String type )
+	{
+		if ( !jmxEnabled )
+		{
+			return false;
+		}
+		try
+		{
+			ObjectName objectName = new ObjectName( JMX_DOMAIN + ":type="
+					+ type );
+			getMBeanServer( ).registerMBean( mbean, objectName );
+			return true;
+		}
+		catch ( JMException ex )
+		{
+			logger.log( Level.WARNING, ex.getMessage( ), ex );
+			return false;
+		}
+	}
+
+	/**
+	 * set the file cache of the archive, the cache statistics are read from
+	 * it.
+	 */
+	public void setCacheManager( FileCacheManager cacheManager )
+	{
+		this.cacheManager = cacheManager;
+	}
+
+	/**
+	 * close the statistics with the archive, the counters are added to the
+	 * global statistics.
+	 */
+	public void close( )
+	{
+		if ( global.archives.remove( this ) == null )
+		{
+			return;
+		}
+		synchronized ( global )
+		{
+			for ( int i = 0; i < COUNTER_COUNT; i++ )
+			{
+				global.closedCounters[i] += getCounter( i );
+			}
+		}
+		unregister( );
+	}
+
+	public void recordRead( int blocks, long bytes )
+	{
+		counters.addAndGet( BLOCK_READ, blocks );
+		counters.addAndGet( BYTE_READ, bytes );
+		fireEvent( EVENT_BLOCK_READ, blocks );
+	}
+
+	public void recordWrite( int blocks, long bytes )
+	{
+		counters.addAndGet( BLOCK_WRITE, blocks );
+		counters.addAndGet( BYTE_WRITE, bytes );
+		fireEvent( EVENT_BLOCK_WRITE, blocks );
+	}
+
+	public void recordDirtyFlush( )
+	{
+		counters.incrementAndGet( DIRTY_FLUSH );
+		fireEvent( EVENT_DIRTY_FLUSH, 1 );
+	}
+
+	/**
+	 * record the time waited for the lock.
+	 * 
+	 * @param time
+	 *            the time in nanoseconds.
+	 */
+	public void recordLockWait( long time )
+	{
+		counters.addAndGet( LOCK_WAIT, time );
+		fireEvent( EVENT_LOCK_WAIT, time );
+	}
+
+	public void recordFileOpen( )
+	{
+		openFileCount.incrementAndGet( );
+	}
+
+	public void recordFileClose( )
+	{
+		openFileCount.decrementAndGet( );
+	}
+
+	private void fireEvent( int event, long value )
+	{
+		if ( listeners.isEmpty( ) )
+		{
+			return;
+		}
+		for ( IArchiveStatisticsListener listener : listeners )
+		{
+			try
+			{
+				listener.onEvent( this, event, value );
+			}
+			catch ( RuntimeException ex )
+			{
+				logger.log( Level.WARNING, ex.getMessage( ), ex );
+			}
+		}
+	}
+
+	private long getCounter( int index )
+	{
+		if ( archives != null )
+		{
+			synchronized ( this )
+			{
+				long count = closedCounters[index];
+				for ( ArchiveStatistics archive : archives.keySet( ) )
+				{
+					count += archive.getCounter( index );
+				}
+				return count;
+			}
+		}
+		if ( index >= CACHE_HIT )
+		{
+			FileCacheManager manager = cacheManager;
+			if ( manager == null )
+			{
+				return 0;
+			}
+			switch ( index )
+			{
+				case CACHE_HIT :
+					return manager.getHitCount( );
+				case CACHE_MISS :
+					return manager.getMissCount( );
+				default :
+					return manager.getEvictionCount( );
+			}
+		}
+		return counters.get( index );
+	}
+
+	public String getName( )
+	{
+		return name;
+	}
+
+	public long getBlockReadCount( )
+	{
+		return getCounter( BLOCK_READ );
+	}
+
+	public long getByteReadCount( )
+	{
+		return getCounter( BYTE_READ );
+	}
+
+	public long getBlockWriteCount( )
+	{
+		return getCounter( BLOCK_WRITE );
+	}
+
+	public long getByteWriteCount( )
+	{
+		return getCounter( BYTE_WRITE );
+	}
+
+	public long getCacheHitCount( )
+	{
+		return getCounter( CACHE_HIT );
+	}
+
+	public long getCacheMissCount( )
+	{
+		return getCounter( CACHE_MISS );
+	}
+
+	/**
+	 * return the hit rate of the file caches, it is between 0 and 1.
+	 */
+	public double getCacheHitRate( )
+	{
+		long hitCount = getCacheHitCount( );
+		long totalCount = hitCount + getCacheMissCount( );
+		if ( totalCount == 0 )
+		{
+			return 0;
+		}
+		return (double) hitCount / totalCount;
+	}
+
+	public long getCacheEvictionCount( )
+	{
+		return getCounter( CACHE_EVICTION );
+	}
+
+	public long getDirtyFlushCount( )
+	{
+		return getCounter( DIRTY_FLUSH );
+	}
+
+	/**
+	 * return the total time in nanoseconds waited for the locks.
+	 */
+	public long getLockWaitTime( )
+	{
+		return getCounter( LOCK_WAIT );
+	}
+
+	public int getOpenFileCount( )
+	{
+		if ( archives != null )
+		{
+			int count = 0;
+			for ( ArchiveStatistics archive : archives.keySet( ) )
+			{
+				count += archive.getOpenFileCount( );
+			}
+			return count;
+		}
+		return openFileCount.get( );
+	}
+
+	/**
+	 * return the count of the opened archives, it is 1 for the statistics
+	 * of an archive.
+	 */
+	public int getOpenArchiveCount( )
+	{
+		if ( archives != null )
+		{
+			return archives.size( );
+		}
+		return 1;
+	}
+
+	private void register( String name )
+	{
+		if ( !jmxEnabled )
+		{
+			return;
+		}
+		try
+		{
+			ObjectName objectName = new ObjectName( name );
+			getMBeanServer( ).registerMBean( this, objectName );
+			this.objectName = objectName;
+		}
+		catch ( JMException ex )
+		{
+			logger.log( Level.WARNING, ex.getMessage( ), ex );
+		}
+	}
+
+	private void unregister( )
+	{
+		if ( objectName == null )
+		{
+			return;
+		}
+		try
+		{
+			getMBeanServer( ).unregisterMBean( objectName );
+		}
+		catch ( JMException ex )
+		{
+			logger.log( Level.WARNING, ex.getMessage( ), ex );
+		}
+		objectName = null;
+	}
+
+	private static MBeanServer getMBeanServer( )
+	{
+		return ManagementFactory.getPlatformMBeanServer( );
+	}
+
+	private static boolean isJmxEnabled( )
+	{
+		Object value = AccessController
+				.doPrivileged( new PrivilegedAction<Object>( ) {
+
+					public Object run( )
+					{
+						return System.getProperty( PROPERTY_JMX );
+					}
+				} );
+		return "true".equalsIgnoreCase( (String) value );
+	}
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive;
+
+/**
+ * the management interface of the archive statistics, it exposes the
+ * statistics of an archive or of all the archives through JMX.
+ */
+public interface ArchiveStatisticsMBean
+{
+
+	String getName( );
+
+	long getBlockReadCount( );
+
+	long getByteReadCount( );
+
+	long getBlockWriteCount( );
+
+	long getByteWriteCount( );
+
+	long getCacheHitCount( );
+
+	long getCacheMissCount( );
+
+	double getCacheHitRate( );
+
+	long getCacheEvictionCount( );
+
+	long getDirtyFlushCount( );
+
+	long getLockWaitTime( );
+
+	int getOpenFileCount( );
+
+	int getOpenArchiveCount( );
+}
@@ -33,6 +33,7 @@ import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
+import org.eclipse.birt.core.archive.compound.ArchiveFileV3;
 import org.eclipse.birt.core.archive.compound.ArchiveReader;
 import org.eclipse.birt.core.archive.compound.ArchiveWriter;
 import org.eclipse.birt.core.archive.compound.IArchiveFile;
@@ -373,12 +374,26 @@ public class ArchiveUtil
 					CoreMessages.getString( ResourceConstants.NULL_SOURCE ) );
 		}
 
+		if ( ArchiveFileV3.copy( inArchive, outArchive ) )
+		{
+			return;
+		}
 		copy( new ArchiveReader( inArchive ), new ArchiveWriter( outArchive ) );
 	}
 
 	static public void copy( IDocArchiveReader reader, IDocArchiveWriter writer )
 			throws IOException
 	{
+		if ( reader instanceof ArchiveReader
+				&& writer instanceof ArchiveWriter )
+		{
+			// copy the file directly if both are saved in the Ext2 archives
+			if ( ArchiveFileV3.copy( ( (ArchiveReader) reader ).getArchive( ),
+					( (ArchiveWriter) writer ).getArchive( ) ) )
+			{
+				return;
+			}
+		}
 		List streamList = reader.listAllStreams( );
 		for ( int i = 0; i < streamList.size( ); i++ )
 		{
@@ -404,10 +419,15 @@ public class ArchiveUtil
 		}
 	}
 
+	/**
+	 * the buffer size used to copy the streams.
+	 */
+	static final int COPY_BUFFER_SIZE = 64 * 1024;
+
 	static private void copyStream( RAInputStream in, RAOutputStream out )
 			throws IOException
 	{
-		byte[] buf = new byte[4096];
+		byte[] buf = new byte[COPY_BUFFER_SIZE];
 		int readSize = in.read( buf );
 		while ( readSize != -1 )
 		{
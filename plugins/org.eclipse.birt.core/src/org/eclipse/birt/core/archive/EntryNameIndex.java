@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * the sorted index of the entry names of an archive. The entries with a
+ * prefix are listed in O(log n + k) instead of testing all the names.
+ * 
+ * The index isn't synchronized, it is protected by the lock of the archive.
+ */
+public class EntryNameIndex
+{
+
+	/**
+	 * the names read by the iterator at one time.
+	 */
+	static final int BATCH_SIZE = 256;
+
+	private final TreeSet<String> names = new TreeSet<String>( );
+
+	/**
+	 * the source of the names iterated by the iterator. The names are listed
+	 * with the lock of the archive, the lock isn't held between the batches.
+	 */
+	public interface Source
+	{
+
+		/**
+		 * list the names like EntryNameIndex.list(prefix, after, max).
+		 */
+		List<String> list( String prefix, String after, int max );
+	}
+
+	public void add( String name )
+	{
+		names.add( name );
+	}
+
+	public void remove( String name )
+	{
+		names.remove( name );
+	}
+
+	public void clear( )
+	{
+		names.clear( );
+	}
+
+	public int size( )
+	{
+		return names.size( );
+	}
+
+	/**
+	 * list the names starting with the prefix in the order of the names.
+	 * 
+	 * @param prefix
+	 *            the prefix, null lists all the names.
+	 */
+	public List<String> list( String prefix )
+	{
+		return list( prefix, null, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * list at most max names starting with the prefix after the name.
+	 * 
+	 * @param prefix
+	 *            the prefix, null lists all the names.
+	 * @param after
+	 *            the names after it are listed, null lists from the first
+	 *            name.
+	 * @param max
+	 *            the max names returned.
+	 */
+	public List<String> list( String prefix, String after, int max )
+	{
+		if ( prefix == null )
+		{
+			prefix = "";
+		}
+		SortedSet<String> tail;
+		if ( after != null && after.compareTo( prefix ) >= 0 )
+		{
+			// the name plus '\0' is the first string after the name
+			tail = names.tailSet( after + '\0' );
+		}
+		else
+		{
+			tail = names.tailSet( prefix );
+		}
+		ArrayList<String> list = new ArrayList<String>( );
+		for ( String name : tail )
+		{
+			if ( list.size( ) >= max || !name.startsWith( prefix ) )
+			{
+				break;
+			}
+			list.add( name );
+		}
+		return list;
+	}
+
+	/**
+	 * return the iterator of the names starting with the prefix. The names
+	 * are got from the source in batches, so the whole list isn't built. The
+	 * iterator continues after the last returned name, so the entries added
+	 * or removed after it are reflected.
+	 */
+	public static Iterator<String> iterator( String prefix, Source source )
+	{
+		return new NameIterator( prefix, source );
+	}
+
+	private static class NameIterator implements Iterator<String>
+	{
+
+		private final String prefix;
+		private final Source source;
+		private List<String> batch;
+		private int index;
+		private String last;
+		private boolean exhausted;
+
+		NameIterator( String prefix, Source source )
+		{
+			this.prefix = prefix;
+			this.source = source;
+		}
+
+		public boolean hasNext( )
+		{
+			if ( batch != null && index < batch.size( ) )
+			{
+				return true;
+			}
+			if ( exhausted )
+			{
+				return false;
+			}
+			batch = source.list( prefix, last, BATCH_SIZE );
+			index = 0;
+			if ( batch.size( ) < BATCH_SIZE )
+			{
+				exhausted = true;
+			}
+			return !batch.isEmpty( );
+		}
+
+		public String next( )
+		{
+			if ( !hasNext( ) )
+			{
+				throw new NoSuchElementException( );
+			}
+			last = batch.get( index++ );
+			return last;
+		}
+
+		public void remove( )
+		{
+			throw new UnsupportedOperationException( );
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive;
+
+/**
+ * listener of the I/O events of the archives, it is registered by
+ * ArchiveStatistics.addListener.
+ * 
+ * The listener is called by the thread doing the I/O, it must return quickly
+ * and mustn't access the archive.
+ */
+public interface IArchiveStatisticsListener
+{
+
+	/**
+	 * called after the statistics of the archive are updated.
+	 * 
+	 * @param statistics
+	 *            the statistics of the archive.
+	 * @param event
+	 *            the event, one of the ArchiveStatistics.EVENT_XXX.
+	 * @param value
+	 *            the blocks read, written or flushed, or the nanoseconds
+	 *            waited for the lock.
+	 */
+	void onEvent( ArchiveStatistics statistics, int event, long value );
+}
@@ -222,6 +222,50 @@ public class RAFolderInputStream extends RAInputStream
 		return ( (long) ( readInt( ) ) << 32 ) + ( readInt( ) & 0xFFFFFFFFL );
 	}
 	
+	/**
+	 * decode the ints from the buffer, the int crossing the buffer boundary
+	 * is read by readInt.
+	 */
+	public void readInts( int[] v, int off, int len ) throws IOException
+	{
+		while ( len > 0 )
+		{
+			int count = Math.min( len, ( bufLen - bufCur ) / 4 );
+			if ( count <= 0 )
+			{
+				v[off++] = readInt( );
+				len--;
+				continue;
+			}
+			for ( int i = 0; i < count; i++ )
+			{
+				v[off++] = ArchiveUtil.bytesToInteger( buf, bufCur );
+				bufCur += 4;
+			}
+			len -= count;
+		}
+	}
+
+	public void readLongs( long[] v, int off, int len ) throws IOException
+	{
+		while ( len > 0 )
+		{
+			int count = Math.min( len, ( bufLen - bufCur ) / 8 );
+			if ( count <= 0 )
+			{
+				v[off++] = readLong( );
+				len--;
+				continue;
+			}
+			for ( int i = 0; i < count; i++ )
+			{
+				v[off++] = ArchiveUtil.bytesToLong( buf, bufCur );
+				bufCur += 8;
+			}
+			len -= count;
+		}
+	}
+
     /**
      * The same behavior as RandomAccessFile.readFully(byte b[], int off, int len)
      * Reads exactly <code>len</code> bytes from this file into the byte 
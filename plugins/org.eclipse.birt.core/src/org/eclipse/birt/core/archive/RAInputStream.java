@@ -13,9 +13,15 @@ package org.eclipse.birt.core.archive;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public abstract class RAInputStream extends InputStream
 {
+	/**
+	 * the size of the buffer used by the bulk reads.
+	 */
+	static final int BULK_BUFFER_SIZE = 4096;
+
 	/**
 	 * @param localPos
 	 * @throws IOException
@@ -53,4 +59,74 @@ public abstract class RAInputStream extends InputStream
 	 * then Integer.MAX_VALUE.
 	 */
 	public abstract int available( ) throws IOException;
+
+	/**
+	 * read len ints into the array. The ints are read in blocks and decoded
+	 * from the bytes, the sub classes may decode them from their own buffer.
+	 * 
+	 * @throws java.io.EOFException
+	 *             if the stream reaches the end before reading all the ints.
+	 */
+	public void readInts( int[] v, int off, int len ) throws IOException
+	{
+		byte[] b = new byte[Math.min( len, BULK_BUFFER_SIZE / 4 ) * 4];
+		while ( len > 0 )
+		{
+			int count = Math.min( len, b.length / 4 );
+			readFully( b, 0, count * 4 );
+			for ( int i = 0; i < count; i++ )
+			{
+				v[off++] = ArchiveUtil.bytesToInteger( b, i * 4 );
+			}
+			len -= count;
+		}
+	}
+
+	/**
+	 * read len longs into the array like readInts.
+	 * 
+	 * @throws java.io.EOFException
+	 *             if the stream reaches the end before reading all the longs.
+	 */
+	public void readLongs( long[] v, int off, int len ) throws IOException
+	{
+		byte[] b = new byte[Math.min( len, BULK_BUFFER_SIZE / 8 ) * 8];
+		while ( len > 0 )
+		{
+			int count = Math.min( len, b.length / 8 );
+			readFully( b, 0, count * 8 );
+			for ( int i = 0; i < count; i++ )
+			{
+				v[off++] = ArchiveUtil.bytesToLong( b, i * 8 );
+			}
+			len -= count;
+		}
+	}
+
+	/**
+	 * read the bytes into the remaining of the buffer, the position of the
+	 * buffer is advanced by the bytes read.
+	 * 
+	 * @return the bytes read, -1 if the stream reaches the end.
+	 */
+	public int read( ByteBuffer dst ) throws IOException
+	{
+		if ( dst.hasArray( ) )
+		{
+			int size = read( dst.array( ), dst.arrayOffset( ) + dst.position( ),
+					dst.remaining( ) );
+			if ( size > 0 )
+			{
+				dst.position( dst.position( ) + size );
+			}
+			return size;
+		}
+		byte[] b = new byte[Math.min( dst.remaining( ), BULK_BUFFER_SIZE )];
+		int size = read( b, 0, b.length );
+		if ( size > 0 )
+		{
+			dst.put( b, 0, size );
+		}
+		return size;
+	}
 }
\ No newline at end of file
@@ -13,10 +13,16 @@ package org.eclipse.birt.core.archive;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public abstract class RAOutputStream extends OutputStream
 {
 
+	/**
+	 * the size of the buffer used by the bulk writes.
+	 */
+	static final int BULK_BUFFER_SIZE = 4096;
+
 	public abstract void seek( long localPos ) throws IOException;
 
 	public abstract void writeLong( long value ) throws IOException;
@@ -26,4 +32,63 @@ public abstract class RAOutputStream extends OutputStream
 	public abstract long getOffset( ) throws IOException;
 
 	public abstract long length( ) throws IOException;
+
+	/**
+	 * write len ints of the array. The ints are encoded in blocks and written
+	 * as bytes, the sub classes may encode them into their own buffer.
+	 */
+	public void writeInts( int[] v, int off, int len ) throws IOException
+	{
+		byte[] b = new byte[Math.min( len, BULK_BUFFER_SIZE / 4 ) * 4];
+		while ( len > 0 )
+		{
+			int count = Math.min( len, b.length / 4 );
+			for ( int i = 0; i < count; i++ )
+			{
+				ArchiveUtil.integerToBytes( v[off++], b, i * 4 );
+			}
+			write( b, 0, count * 4 );
+			len -= count;
+		}
+	}
+
+	/**
+	 * write len longs of the array like writeInts.
+	 */
+	public void writeLongs( long[] v, int off, int len ) throws IOException
+	{
+		byte[] b = new byte[Math.min( len, BULK_BUFFER_SIZE / 8 ) * 8];
+		while ( len > 0 )
+		{
+			int count = Math.min( len, b.length / 8 );
+			for ( int i = 0; i < count; i++ )
+			{
+				ArchiveUtil.longToBytes( v[off++], b, i * 8 );
+			}
+			write( b, 0, count * 8 );
+			len -= count;
+		}
+	}
+
+	/**
+	 * write the remaining of the buffer, the position of the buffer is
+	 * advanced to the limit.
+	 */
+	public void write( ByteBuffer src ) throws IOException
+	{
+		if ( src.hasArray( ) )
+		{
+			write( src.array( ), src.arrayOffset( ) + src.position( ), src
+					.remaining( ) );
+			src.position( src.limit( ) );
+			return;
+		}
+		byte[] b = new byte[Math.min( src.remaining( ), BULK_BUFFER_SIZE )];
+		while ( src.hasRemaining( ) )
+		{
+			int size = Math.min( src.remaining( ), b.length );
+			src.get( b, 0, size );
+			write( b, 0, size );
+		}
+	}
 }
\ No newline at end of file
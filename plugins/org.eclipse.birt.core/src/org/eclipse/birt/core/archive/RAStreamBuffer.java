@@ -12,6 +12,8 @@ package org.eclipse.birt.core.archive;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
+
 import org.eclipse.birt.core.util.IOUtil;
 
 public class RAStreamBuffer {
@@ -21,20 +23,30 @@ public class RAStreamBuffer {
     private byte buf[];
 
     // The offset in the underlying file of the first byte in the buffer.
-    // It is always the multiple of IOUtil.RA_STREAM_BUFFER_LENGTH
+    // It is always the multiple of the buffer size
 	private long offset; 
 	
-	// The number of bytes has been written in the buffer
+	// The number of bytes of the file in the buffer
     private int bufLen;
     
     // The position in the buffer where next write will occur.
     // It may be less than bufLen.
     private int bufCur;
+
+	// The range of the bytes changed since the last flush, the buffer
+	// is clean if dirtyStart equals to dirtyEnd.
+	private int dirtyStart;
+	private int dirtyEnd;
 	
 	public RAStreamBuffer( RandomAccessFile randomFile )
+	{
+		this( randomFile, IOUtil.RA_STREAM_BUFFER_LENGTH );
+	}
+
+	public RAStreamBuffer( RandomAccessFile randomFile, int size )
 	{
 		this.randomFile = randomFile;
-		this.buf = new byte[IOUtil.RA_STREAM_BUFFER_LENGTH];
+		this.buf = new byte[size];
 	}
 	
 	/**
@@ -47,8 +59,10 @@ public class RAStreamBuffer {
 	{
 		this.offset = offset;
 		this.randomFile.seek( offset );
-		this.bufLen = this.read( buf, 0, IOUtil.RA_STREAM_BUFFER_LENGTH );
+		this.bufLen = this.read( buf, 0, buf.length );
 		this.bufCur = 0;
+		this.dirtyStart = 0;
+		this.dirtyEnd = 0;
 	}
 	
 	public long getOffset( )
@@ -65,18 +79,27 @@ public class RAStreamBuffer {
 	{
 		return this.bufCur;
 	}
+
+	/**
+	 * return true if the buffer has been changed since the last flush.
+	 */
+	public boolean isDirty( )
+	{
+		return dirtyEnd > dirtyStart;
+	}
 	
 	/**
-	 * Write the data in the buffer to the underlying file
+	 * Write the data changed in the buffer to the underlying file
 	 * @throws IOException
 	 */
     public void flushBuffer() throws IOException 
     {
-        if (bufLen > 0) 
+        if ( dirtyEnd > dirtyStart ) 
         {
-        	randomFile.seek( offset );
-		    randomFile.write(buf, 0, bufLen);
-		    bufLen = 0;
+        	randomFile.seek( offset + dirtyStart );
+		    randomFile.write( buf, dirtyStart, dirtyEnd - dirtyStart );
+		    dirtyStart = 0;
+		    dirtyEnd = 0;
 	    }
     }
 
@@ -90,13 +113,30 @@ public class RAStreamBuffer {
      */
     public int write(byte b[], int off, int len) 
     {
-    	int availableSize = IOUtil.RA_STREAM_BUFFER_LENGTH - bufCur;
+    	int availableSize = buf.length - bufCur;
     	if ( len > availableSize )
     		len = availableSize;
+    	int start = bufCur;
+    	if ( bufCur > bufLen )
+    	{
+    		// the gap after the end of the file is written as zeros
+    		Arrays.fill( buf, bufLen, bufCur, (byte) 0 );
+    		start = bufLen;
+    	}
     	System.arraycopy(b, off, buf, bufCur, len);
     	bufCur += len;
     	if ( bufLen < bufCur )
     		bufLen = bufCur;
+    	if ( dirtyEnd > dirtyStart )
+    	{
+    		dirtyStart = Math.min( dirtyStart, start );
+    		dirtyEnd = Math.max( dirtyEnd, bufCur );
+    	}
+    	else
+    	{
+    		dirtyStart = start;
+    		dirtyEnd = bufCur;
+    	}
     	return len;
     }
 
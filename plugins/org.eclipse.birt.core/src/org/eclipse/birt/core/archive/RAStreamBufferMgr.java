@@ -13,43 +13,117 @@ package org.eclipse.birt.core.archive;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+import java.util.Comparator;
 
 import org.eclipse.birt.core.util.IOUtil;
 
 public class RAStreamBufferMgr {
-	
+
+	/**
+	 * the system property of the buffer size in bytes, it is
+	 * IOUtil.RA_STREAM_BUFFER_LENGTH by default.
+	 */
+	public static final String PROPERTY_BUFFER_SIZE = "org.eclipse.birt.core.archive.RA_STREAM_BUFFER_SIZE";
+
+	/**
+	 * the system property of the max buffers of a stream, it is
+	 * IOUtil.MAX_NUMBER_OF_STREAM_BUFFER by default.
+	 */
+	public static final String PROPERTY_BUFFER_COUNT = "org.eclipse.birt.core.archive.RA_STREAM_BUFFER_COUNT";
+
 	private RandomAccessFile randomFile;
-	
-	// The total number of buffer has been allocated. 
+
+	// The size of each buffer.
+	private int bufferSize;
+
+	// The max number of buffers.
+	private int maxBuffer;
+
+	// The total number of buffer has been allocated.
 	private int totalBuffer;
-	
+
 	//the lengh of the buffer
 	private long length;
-	
-	// An arraylist to keep the buffer in order.
-	// When MAX_NUMBER_OF_STREAM_BUFFER has been reached, we reuse the
-	// buffer from the beginning of the list. There is less chance they
-	// are going to be visited again.
-	private List bufferList = new ArrayList( IOUtil.MAX_NUMBER_OF_STREAM_BUFFER );
-	
-	// A hash table to map between offset and buffer
-	private Map bufferMap = new HashMap();
-	
+
+	// The allocated buffers. When maxBuffer has been reached, the buffer
+	// to reuse is chosen by the clock hand: the buffer visited since the
+	// hand passed it last time gets another chance, so the buffers visited
+	// frequently are kept.
+	private RAStreamBuffer[] buffers;
+	private boolean[] referenced;
+	private int clockHand;
+
+	// An open addressing hash table to map between the buffer index
+	// (offset / bufferSize) and the slot of the buffer, the slot is saved
+	// plus one so 0 means an empty entry.
+	private long[] tableKeys;
+	private int[] tableSlots;
+	private int tableMask;
+
 	// The buffer will be used for next operation
 	private RAStreamBuffer currentBuffer;
-	
+
 	public RAStreamBufferMgr( RandomAccessFile randomFile ) throws IOException
+	{
+		this( randomFile, getProperty( PROPERTY_BUFFER_SIZE,
+				IOUtil.RA_STREAM_BUFFER_LENGTH ), getProperty(
+				PROPERTY_BUFFER_COUNT, IOUtil.MAX_NUMBER_OF_STREAM_BUFFER ) );
+	}
+
+	/**
+	 * @param bufferSize
+	 *            the size of each buffer.
+	 * @param maxBuffer
+	 *            the max number of buffers.
+	 */
+	public RAStreamBufferMgr( RandomAccessFile randomFile, int bufferSize,
+			int maxBuffer ) throws IOException
 	{
 		this.randomFile = randomFile;
+		this.bufferSize = bufferSize;
+		this.maxBuffer = maxBuffer;
 		this.length = randomFile.length( );
 		this.totalBuffer = 0;
+		this.buffers = new RAStreamBuffer[maxBuffer];
+		this.referenced = new boolean[maxBuffer];
+		int tableSize = Integer.highestOneBit( maxBuffer ) * 4;
+		this.tableKeys = new long[tableSize];
+		this.tableSlots = new int[tableSize];
+		this.tableMask = tableSize - 1;
 		this.currentBuffer = getBuffer( 0 );
 	}
-	
+
+	private static int getProperty( final String name, int defaultValue )
+	{
+		Object value = AccessController
+				.doPrivileged( new PrivilegedAction<Object>( ) {
+
+					public Object run( )
+					{
+						return System.getProperty( name );
+					}
+				} );
+		if ( value != null )
+		{
+			try
+			{
+				int intValue = Integer.parseInt( ( (String) value ).trim( ) );
+				if ( intValue > 0 )
+				{
+					return intValue;
+				}
+			}
+			catch ( NumberFormatException ex )
+			{
+				// use the default value
+			}
+		}
+		return defaultValue;
+	}
+
 	/*
 	 * The file pointer in the underlying file if no buffer is used.
 	 */
@@ -57,7 +131,7 @@ public class RAStreamBufferMgr {
 	{
 		return currentBuffer.getOffset() + currentBuffer.getBufCur();
 	}
-	
+
 	/*
 	 * Write the data in array b[], if current buffer is not enough to hold
 	 * all the data, a new buffer will be allocated or an old buffer will
@@ -72,8 +146,8 @@ public class RAStreamBufferMgr {
 			off += ret;
 			if ( len > 0)
 			{
-				currentBuffer = getBuffer( currentBuffer.getOffset() 
-						+ IOUtil.RA_STREAM_BUFFER_LENGTH);
+				currentBuffer = getBuffer( currentBuffer.getOffset()
+						+ bufferSize );
 				currentBuffer.setBufCur( 0 );
 			}
 		}
@@ -86,8 +160,7 @@ public class RAStreamBufferMgr {
 
 	public void seek( long localPos ) throws IOException
 	{
-		long offset = ( localPos / IOUtil.RA_STREAM_BUFFER_LENGTH ) 
-							* IOUtil.RA_STREAM_BUFFER_LENGTH;
+		long offset = ( localPos / bufferSize ) * bufferSize;
 		if ( currentBuffer.getOffset() != offset )
 			currentBuffer = getBuffer( offset );
 		currentBuffer.setBufCur( (int)(localPos - offset) );
@@ -96,25 +169,44 @@ public class RAStreamBufferMgr {
 			length = localPos;
 		}
 	}
-	
-	public long length() 
+
+	public long length()
 	{
 		return length;
 	}
 
 	/*
-	 * Flush all the buffers
+	 * Flush all the dirty buffers in the order of the offset, so the file
+	 * is written sequentially.
 	 */
 	public void flushBuffer() throws IOException
 	{
+		RAStreamBuffer[] dirtyBuffers = new RAStreamBuffer[totalBuffer];
+		int dirtyCount = 0;
 		for ( int i = 0; i < totalBuffer; i++ )
 		{
-			RAStreamBuffer buffer = (RAStreamBuffer)bufferList.get(i);
-			buffer.flushBuffer();
+			if ( buffers[i].isDirty( ) )
+			{
+				dirtyBuffers[dirtyCount++] = buffers[i];
+			}
+		}
+		Arrays.sort( dirtyBuffers, 0, dirtyCount,
+				new Comparator<RAStreamBuffer>( ) {
+
+					public int compare( RAStreamBuffer b1, RAStreamBuffer b2 )
+					{
+						long o1 = b1.getOffset( );
+						long o2 = b2.getOffset( );
+						return o1 < o2 ? -1 : ( o1 == o2 ? 0 : 1 );
+					}
+				} );
+		for ( int i = 0; i < dirtyCount; i++ )
+		{
+			dirtyBuffers[i].flushBuffer( );
 		}
 	}
-	
-	
+
+
 	/**
 	 * Get next available buffer for the data from position offset.
 	 * @param offset
@@ -123,36 +215,113 @@ public class RAStreamBufferMgr {
 	 */
 	private RAStreamBuffer getBuffer( long offset ) throws IOException
 	{
-		// If we already have a buffer allocated for that offset, just 
+		// If we already have a buffer allocated for that offset, just
 		// return it.
-		Long offsetKey = new Long(offset);
-		RAStreamBuffer buffer = (RAStreamBuffer)bufferMap.get( offsetKey );
-		if ( buffer != null )
-			return buffer;
-		// If not, and MAX_NUMBER_OF_STREAM_BUFFER has not been reached, 
-		// allocate a new buffer for it.
-		if ( totalBuffer < IOUtil.MAX_NUMBER_OF_STREAM_BUFFER )
+		long index = offset / bufferSize;
+		int slot = findSlot( index );
+		if ( slot != -1 )
 		{
-			buffer = new RAStreamBuffer( this.randomFile );
-			buffer.resetBuffer( offset );
-			totalBuffer ++;
-			bufferList.add( buffer );
-			bufferMap.put(offsetKey, buffer);
-			return buffer;
+			referenced[slot] = true;
+			return buffers[slot];
 		}
-		
-		// If no buffer has been found, and MAX_NUMBER_OF_STREAM_BUFFER has
-		// been reached, reuse the buffer from the beginning of the list and
-		// put the buffer to the end of the list.
-		buffer = (RAStreamBuffer)bufferList.get( 0 );
-		buffer.flushBuffer();
-		bufferMap.remove( new Long(buffer.getOffset()) );
-		buffer.resetBuffer( offset ); 
-		bufferMap.put( offsetKey, buffer);
-		bufferList.remove( 0 );
-		bufferList.add( buffer );
-		
+		// If not, and maxBuffer has not been reached, allocate a new buffer
+		// for it.
+		if ( totalBuffer < maxBuffer )
+		{
+			slot = totalBuffer++;
+			buffers[slot] = new RAStreamBuffer( this.randomFile, bufferSize );
+		}
+		else
+		{
+			// If no buffer has been found, and maxBuffer has been reached,
+			// reuse the buffer chosen by the clock hand.
+			slot = nextVictim( );
+			RAStreamBuffer victim = buffers[slot];
+			victim.flushBuffer( );
+			removeSlot( victim.getOffset( ) / bufferSize );
+		}
+		RAStreamBuffer buffer = buffers[slot];
+		buffer.resetBuffer( offset );
+		addSlot( index, slot );
+		referenced[slot] = true;
 		return buffer;
 	}
-	
+
+	/**
+	 * move the clock hand to the first buffer not visited since the hand
+	 * passed it last time.
+	 */
+	private int nextVictim( )
+	{
+		while ( true )
+		{
+			int slot = clockHand;
+			clockHand = ( clockHand + 1 ) % totalBuffer;
+			if ( !referenced[slot] )
+			{
+				return slot;
+			}
+			referenced[slot] = false;
+		}
+	}
+
+	private int hash( long index )
+	{
+		int h = (int) ( index ^ ( index >>> 32 ) ) * 0x9E3779B9;
+		return ( h ^ ( h >>> 16 ) ) & tableMask;
+	}
+
+	private int findSlot( long index )
+	{
+		int i = hash( index );
+		while ( tableSlots[i] != 0 )
+		{
+			if ( tableKeys[i] == index )
+			{
+				return tableSlots[i] - 1;
+			}
+			i = ( i + 1 ) & tableMask;
+		}
+		return -1;
+	}
+
+	private void addSlot( long index, int slot )
+	{
+		int i = hash( index );
+		while ( tableSlots[i] != 0 )
+		{
+			i = ( i + 1 ) & tableMask;
+		}
+		tableKeys[i] = index;
+		tableSlots[i] = slot + 1;
+	}
+
+	private void removeSlot( long index )
+	{
+		int i = hash( index );
+		while ( tableKeys[i] != index || tableSlots[i] == 0 )
+		{
+			i = ( i + 1 ) & tableMask;
+		}
+		tableSlots[i] = 0;
+		// move the following entries back so they are still found
+		int j = i;
+		while ( true )
+		{
+			j = ( j + 1 ) & tableMask;
+			if ( tableSlots[j] == 0 )
+			{
+				return;
+			}
+			int k = hash( tableKeys[j] );
+			boolean inPlace = i <= j ? ( i < k && k <= j ) : ( i < k || k <= j );
+			if ( !inPlace )
+			{
+				tableKeys[i] = tableKeys[j];
+				tableSlots[i] = tableSlots[j];
+				tableSlots[j] = 0;
+				i = j;
+			}
+		}
+	}
 }
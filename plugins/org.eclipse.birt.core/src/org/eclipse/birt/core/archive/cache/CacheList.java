@@ -28,6 +28,15 @@ class CacheList
 
 	void clear( )
 	{
+		Cacheable entry = firstEntry;
+		while ( entry != null )
+		{
+			Cacheable next = entry.getNext( );
+			entry.list = null;
+			entry.setPrev( null );
+			entry.setNext( null );
+			entry = next;
+		}
 		firstEntry = null;
 		lastEntry = null;
 		listSize = 0;
@@ -55,6 +64,11 @@ class CacheList
 	 */
 	void remove( Cacheable entry )
 	{
+		if ( entry.list != this )
+		{
+			return;
+		}
+		entry.list = null;
 		Cacheable prev = entry.getPrev( );
 		Cacheable next = entry.getNext( );
 		entry.setPrev( null );
@@ -89,8 +103,18 @@ class CacheList
 		return null;
 	}
 
+	boolean contains( Cacheable entry )
+	{
+		return entry.list == this;
+	}
+
 	void add( Cacheable entry )
 	{
+		if ( entry.list != null )
+		{
+			entry.list.remove( entry );
+		}
+		entry.list = this;
 		entry.setPrev( lastEntry );
 		entry.setNext( null );
 		if ( lastEntry != null )
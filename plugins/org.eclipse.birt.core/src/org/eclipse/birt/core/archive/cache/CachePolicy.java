@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.cache;
+
+import java.util.List;
+
+/**
+ * the eviction policy of a system cache shard.
+ * 
+ * The policy only decides the order of the released caches, the shard counts
+ * the memory and removes the caches returned by evict() until the memory is
+ * under the capacity. All the methods are called with the shard lock held, so
+ * the policy needn't be thread safe.
+ */
+public abstract class CachePolicy
+{
+
+	/**
+	 * the memory in bytes can be used by the shard.
+	 */
+	protected long capacity;
+
+	public long getCapacity( )
+	{
+		return capacity;
+	}
+
+	public void setCapacity( long capacity )
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * return the name of the policy.
+	 */
+	public abstract String getName( );
+
+	/**
+	 * a cache is released to the system cache.
+	 */
+	public abstract void add( Cacheable cache );
+
+	/**
+	 * remove the cache from the policy.
+	 * 
+	 * @return true if the cache is managed by this policy.
+	 */
+	public abstract boolean remove( Cacheable cache );
+
+	/**
+	 * remove the cache should be evicted first.
+	 * 
+	 * @return the evicted cache, null if the policy is empty.
+	 */
+	public abstract Cacheable evict( );
+
+	/**
+	 * add all the caches managed by the policy into the list.
+	 */
+	public abstract void getCaches( List<Cacheable> caches );
+}
@@ -0,0 +1,21 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.cache;
+
+/**
+ * create the cache policy for each shard of the system cache.
+ */
+public interface CachePolicyFactory
+{
+
+	CachePolicy createCachePolicy( );
+}
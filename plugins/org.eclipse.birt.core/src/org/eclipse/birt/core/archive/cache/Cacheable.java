@@ -16,11 +16,27 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class Cacheable
 {
 
+	static final int DEFAULT_MEMORY_SIZE = 4096;
+
 	protected FileCacheManager manager;
 	protected Comparable cacheKey;
 	protected AtomicInteger referenceCount;
 	protected Cacheable prev;
 	protected Cacheable next;
+	/**
+	 * the list contains this cache, it is null if the cache is not in any
+	 * list. It is only changed by the owner of the list.
+	 */
+	CacheList list;
+	/**
+	 * the cache is got back from the system cache after it is released, the
+	 * system cache use it to find out the frequently used caches.
+	 */
+	volatile boolean reused;
+	/**
+	 * the state of the cache maintained by the cache policy.
+	 */
+	protected int policyState;
 
 	public Cacheable( FileCacheManager manager, Comparable cacheKey )
 	{
@@ -33,6 +49,52 @@ public class Cacheable
 	{
 	}
 
+	/**
+	 * return the heap size used by the cache, the system cache uses it to
+	 * limit the memory used by all the caches.
+	 * 
+	 * @return the size in bytes.
+	 */
+	public int getMemorySize( )
+	{
+		return DEFAULT_MEMORY_SIZE;
+	}
+
+	/**
+	 * return true if the cache is got back from the system cache since it is
+	 * added into the system cache last time.
+	 */
+	public boolean isReused( )
+	{
+		return reused;
+	}
+
+	public void setReused( boolean reused )
+	{
+		this.reused = reused;
+	}
+
+	public int getPolicyState( )
+	{
+		return policyState;
+	}
+
+	public void setPolicyState( int state )
+	{
+		this.policyState = state;
+	}
+
+	/**
+	 * called once the cache is dropped by the cache manager, it is never
+	 * returned by the cache manager again. The cache can release the
+	 * resources which can be reused by others, the cache may be still
+	 * referenced by the one which doesn't lock it, such as the write-behind
+	 * flusher.
+	 */
+	protected void dispose( )
+	{
+	}
+
 	public Comparable getCacheKey( )
 	{
 		return cacheKey;
@@ -14,6 +14,8 @@ package org.eclipse.birt.core.archive.cache;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileCacheManager
 {
@@ -41,6 +43,13 @@ public class FileCacheManager
 
 	private CacheListener listener;
 
+	/**
+	 * the statistics of the caches used by the file.
+	 */
+	private final AtomicLong hitCount = new AtomicLong( );
+	private final AtomicLong missCount = new AtomicLong( );
+	final AtomicLong evictionCount = new AtomicLong( );
+
 	public FileCacheManager( )
 	{
 		this( null, 0 );
@@ -81,6 +90,32 @@ public class FileCacheManager
 		return caches.size( );
 	}
 
+	/**
+	 * return the times the cache is found by getCache.
+	 */
+	public long getHitCount( )
+	{
+		return hitCount.get( );
+	}
+
+	/**
+	 * return the times the cache is not found by getCache and must be loaded
+	 * again.
+	 */
+	public long getMissCount( )
+	{
+		return missCount.get( );
+	}
+
+	/**
+	 * return the count of the caches dropped from the free list of the file
+	 * or evicted by the system cache.
+	 */
+	public long getEvictionCount( )
+	{
+		return evictionCount.get( );
+	}
+
 	synchronized public void setSystemCacheManager( SystemCacheManager manager )
 	{
 		if ( systemCache != null )
@@ -116,15 +151,18 @@ public class FileCacheManager
 			}
 			removedCaches[i] = freeCache;
 		}
+		evictionCount.addAndGet( releasedCacheSize );
 		if ( systemCache != null )
 		{
-			synchronized ( systemCache )
+			systemCache.addCaches( removedCaches );
+		}
+		else
+		{
+			for ( Cacheable cache : removedCaches )
 			{
-				// systemCache.increaseUsedCacheSize( -releasedCacheSize );
-				for ( Cacheable cache : removedCaches )
-				{
-					systemCache.addCache( cache );
-				}
+				cache.getReferenceCount( ).set( -2 );
+				caches.remove( cache.getCacheKey( ), cache );
+				cache.dispose( );
 			}
 		}
 	}
@@ -133,11 +171,22 @@ public class FileCacheManager
 	{
 		if ( systemCache != null )
 		{
-			synchronized ( systemCache )
+			systemCache.removeCaches( this );
+			// the left caches are locked or in the free list
+			for ( Cacheable cache : caches.values( ) )
 			{
-				systemCache.removeCaches( this );
-				systemCache.increaseUsedCacheSize( -lockedCacheSize );
-				systemCache.increaseUsedCacheSize( -freeCaches.size( ) );
+				if ( cache.getReferenceCount( ).get( ) >= 0 )
+				{
+					systemCache.decreaseUsedCache( cache );
+				}
+			}
+		}
+		// the free caches are dropped, the locked ones are left to the owners
+		for ( Cacheable cache : caches.values( ) )
+		{
+			if ( cache.getReferenceCount( ).compareAndSet( 0, -2 ) )
+			{
+				cache.dispose( );
 			}
 		}
 		caches.clear( );
@@ -145,6 +194,36 @@ public class FileCacheManager
 		freeCaches.clear( );
 	}
 
+	/**
+	 * discard all the caches as the data has been changed by others. The
+	 * free caches are dropped now, the locked caches are removed from the
+	 * file and dropped once they are released, so the caches got later are
+	 * loaded again.
+	 */
+	synchronized public void invalidate( )
+	{
+		if ( systemCache != null )
+		{
+			systemCache.removeCaches( this );
+		}
+		// the left caches are locked or in the free list
+		for ( Cacheable cache : caches.values( ) )
+		{
+			AtomicInteger referenceCount = cache.getReferenceCount( );
+			if ( referenceCount.get( ) >= 0 && systemCache != null )
+			{
+				systemCache.decreaseUsedCache( cache );
+			}
+			if ( referenceCount.get( ) == 0 )
+			{
+				referenceCount.set( -2 );
+				cache.dispose( );
+			}
+		}
+		caches.clear( );
+		freeCaches.clear( );
+	}
+
 	synchronized public void touchAllCaches( )
 	{
 		if ( listener != null )
@@ -157,6 +236,22 @@ public class FileCacheManager
 	{
 //		System.out.println("--------------start flush------------");
 		assert listener != null;
+		Cacheable[] entries = getSortedCaches( );
+		for ( Cacheable cache : entries )
+		{
+			if ( cache != null )
+			{
+				listener.onCacheRelease( cache );
+			}
+		}
+//		System.out.println("--------------end flush------------");
+	}
+
+	/**
+	 * return all the caches used by the file, sorted by the cache key.
+	 */
+	synchronized public Cacheable[] getSortedCaches( )
+	{
 		Cacheable[] entries = caches.values( ).toArray(
 				new Cacheable[caches.size( )] );
 		Arrays.sort( entries, new Comparator<Cacheable>( ) {
@@ -180,35 +275,58 @@ public class FileCacheManager
 				return k0.compareTo( k1 );
 			}
 		} );
-		for ( Cacheable cache : entries )
-		{
-			if ( cache != null )
-			{
-				listener.onCacheRelease( cache );
-			}
-		}
-//		System.out.println("--------------end flush------------");
+		return entries;
 	}
 
 	/**
 	 * return the cache object to the system. The object should be added into
 	 * the system or it is got from the system.
 	 * 
+	 * The reference count is decreased without the lock if the cache is still
+	 * locked by others, only the last release need the lock to move the cache
+	 * into the free list.
+	 * 
 	 * @param cache
 	 *            the cache object.
 	 */
-	synchronized public void releaseCache( Cacheable cache )
+	public void releaseCache( Cacheable cache )
+	{
+		AtomicInteger referenceCount = cache.getReferenceCount( );
+		while ( true )
+		{
+			int count = referenceCount.get( );
+			assert ( count > 0 );
+			if ( count <= 1 )
+			{
+				break;
+			}
+			if ( referenceCount.compareAndSet( count, count - 1 ) )
+			{
+				// there still some one locked the cache object, return directly
+				return;
+			}
+		}
+		releaseLastReference( cache );
+	}
+
+	synchronized private void releaseLastReference( Cacheable cache )
 	{
-		assert ( cache.getReferenceCount( ).get( ) > 0 );
 		int referenceCount = cache.getReferenceCount( ).decrementAndGet( );
 		if ( referenceCount > 0 )
 		{
-			// there still some one locked the cache object, return directly
+			// some one locked the cache again before we get the lock
 			return;
 		}
 		// the lock count must be zero
 		assert ( referenceCount == 0 );
 		lockedCacheSize--;
+		if ( caches.get( cache.getCacheKey( ) ) != cache )
+		{
+			// the cache has been invalidated, drop it
+			cache.getReferenceCount( ).set( -2 );
+			cache.dispose( );
+			return;
+		}
 		if ( maxCacheSize > 0 )
 		{
 			// return it to the free list
@@ -224,15 +342,14 @@ public class FileCacheManager
 			// the dropped cache is released to the system cache directly
 			if ( systemCache == null )
 			{
-				caches.remove( cache.getCacheKey( ) );
+				cache.getReferenceCount( ).set( -2 );
+				caches.remove( cache.getCacheKey( ), cache );
+				cache.dispose( );
 			}
 			else
 			{
-				synchronized ( systemCache )
-				{
-					// add it to the system free list
-					systemCache.addCache( cache );
-				}
+				// add it to the system free list
+				systemCache.addCache( cache );
 			}
 		}
 	}
@@ -240,43 +357,99 @@ public class FileCacheManager
 	/**
 	 * get the cache from the cache system
 	 * 
+	 * The cache locked by others is returned without the lock, otherwise the
+	 * cache is moved from the free list or system cache with the lock.
+	 * 
 	 * @param cacheKey
 	 * 
 	 * @return the cached object
 	 */
-	synchronized public Cacheable getCache( Object cacheKey )
+	public Cacheable getCache( Object cacheKey )
+	{
+		Cacheable cache = caches.get( cacheKey );
+		if ( cache == null )
+		{
+			missCount.incrementAndGet( );
+			if ( systemCache != null )
+			{
+				systemCache.recordMiss( this, cacheKey );
+			}
+			return null;
+		}
+		AtomicInteger referenceCount = cache.getReferenceCount( );
+		while ( true )
+		{
+			int count = referenceCount.get( );
+			if ( count < 1 )
+			{
+				break;
+			}
+			if ( referenceCount.compareAndSet( count, count + 1 ) )
+			{
+				hitCount.incrementAndGet( );
+				return cache;
+			}
+		}
+		cache = lockCache( cacheKey );
+		if ( cache != null )
+		{
+			hitCount.incrementAndGet( );
+		}
+		else
+		{
+			missCount.incrementAndGet( );
+		}
+		return cache;
+	}
+
+	synchronized private Cacheable lockCache( Object cacheKey )
 	{
 		Cacheable cache = caches.get( cacheKey );
 		if ( cache == null )
 		{
 			return null;
 		}
-		int referenceCount = cache.getReferenceCount( ).incrementAndGet( );
-		if ( referenceCount > 1 )
+		AtomicInteger referenceCount = cache.getReferenceCount( );
+		int count = referenceCount.get( );
+		if ( count >= 1 )
 		{
+			referenceCount.incrementAndGet( );
 			return cache;
 		}
-		if ( referenceCount == 1 )
+		if ( count == 0 )
 		{
+			referenceCount.set( 1 );
 			freeCaches.remove( cache );
 			lockedCacheSize++;
 			return cache;
 		}
-		if ( referenceCount == 0 )
+		// the cache exist in the system cache, the system may remove it at
+		// the same time.
+		if ( count == -1 && referenceCount.compareAndSet( -1, 1 ) )
 		{
-			// the cache exist in the system cache
 			assert ( systemCache != null );
-			synchronized ( systemCache )
-			{
-				systemCache.removeCache( cache );
-			}
+			systemCache.reuseCache( cache );
+			cache.reused = true;
 			lockedCacheSize++;
-			cache.getReferenceCount( ).set( 1 );
 			return cache;
 		}
+		// the cache has been removed from the system
+		caches.remove( cacheKey, cache );
+		if ( systemCache != null )
+		{
+			systemCache.recordMiss( this, cacheKey );
+		}
 		return null;
 	}
 
+	/**
+	 * return true if the cache is used by the file. The cache isn't locked.
+	 */
+	public boolean containsCache( Object cacheKey )
+	{
+		return caches.containsKey( cacheKey );
+	}
+
 	/**
 	 * add a cache object into the cache system.
 	 * 
@@ -288,6 +461,7 @@ public class FileCacheManager
 		cache.getReferenceCount( ).set( 1 );
 		Object cacheKey = cache.getCacheKey( );
 
+		boolean replaced = false;
 		Cacheable oldCache = caches.get( cacheKey );
 		if ( oldCache != null )
 		{
@@ -299,27 +473,26 @@ public class FileCacheManager
 			if ( referenceCount == 0 )
 			{
 				// the cache exist in the free cache
+				oldCache.getReferenceCount( ).set( -2 );
 				freeCaches.remove( oldCache );
+				oldCache.dispose( );
+				replaced = true;
 			}
-			else
+			else if ( oldCache.getReferenceCount( ).compareAndSet( -1, -2 ) )
 			{
 				// the cache exist in the system cache
 				assert ( systemCache != null );
-				synchronized ( systemCache )
-				{
-					systemCache.removeCache( oldCache );
-				}
+				systemCache.removeCache( oldCache );
+				oldCache.dispose( );
+				replaced = true;
 			}
 		}
-		else
+		if ( !replaced )
 		{
 			// adjust the system cache size as we add a block
 			if ( systemCache != null )
 			{
-				synchronized ( systemCache )
-				{
-					systemCache.increaseUsedCacheSize( 1 );
-				}
+				systemCache.increaseUsedCache( cache );
 			}
 		}
 		caches.put( cacheKey, cache );
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.cache;
+
+import java.util.List;
+
+/**
+ * the least recently released cache is evicted first.
+ */
+public class LRUCachePolicy extends CachePolicy
+{
+
+	public static final String NAME = "LRU";
+
+	public static final CachePolicyFactory FACTORY = new CachePolicyFactory( ) {
+
+		public CachePolicy createCachePolicy( )
+		{
+			return new LRUCachePolicy( );
+		}
+	};
+
+	private CacheList caches = new CacheList( );
+
+	public String getName( )
+	{
+		return NAME;
+	}
+
+	public void add( Cacheable cache )
+	{
+		cache.setReused( false );
+		caches.add( cache );
+	}
+
+	public boolean remove( Cacheable cache )
+	{
+		if ( caches.contains( cache ) )
+		{
+			caches.remove( cache );
+			return true;
+		}
+		return false;
+	}
+
+	public Cacheable evict( )
+	{
+		return caches.remove( );
+	}
+
+	public void getCaches( List<Cacheable> list )
+	{
+		for ( Cacheable cache = caches.first( ); cache != null; cache = cache
+				.getNext( ) )
+		{
+			list.add( cache );
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.cache;
+
+import java.util.List;
+
+/**
+ * segmented LRU.
+ * 
+ * The released cache is added into the probation segment, the cache which is
+ * got back after it is released is added into the protected segment. The
+ * caches are evicted from the probation segment first, so a big sequential
+ * read can't flush the caches used frequently. The protected segment uses at
+ * most 80% of the capacity, the overflowed caches are degraded to the
+ * probation segment.
+ */
+public class SLRUCachePolicy extends CachePolicy
+{
+
+	public static final String NAME = "SLRU";
+
+	public static final CachePolicyFactory FACTORY = new CachePolicyFactory( ) {
+
+		public CachePolicy createCachePolicy( )
+		{
+			return new SLRUCachePolicy( );
+		}
+	};
+
+	static final int PROTECTED_PERCENTAGE = 80;
+
+	private CacheList probationCaches = new CacheList( );
+	private CacheList protectedCaches = new CacheList( );
+	private long protectedMemory;
+
+	public String getName( )
+	{
+		return NAME;
+	}
+
+	public void add( Cacheable cache )
+	{
+		if ( cache.isReused( ) )
+		{
+			cache.setReused( false );
+			protectedCaches.add( cache );
+			protectedMemory += cache.getMemorySize( );
+			long maxProtectedMemory = capacity * PROTECTED_PERCENTAGE / 100;
+			while ( protectedMemory > maxProtectedMemory
+					&& protectedCaches.size( ) > 0 )
+			{
+				// degrade the least used one to the probation segment
+				Cacheable degraded = protectedCaches.remove( );
+				protectedMemory -= degraded.getMemorySize( );
+				probationCaches.add( degraded );
+			}
+		}
+		else
+		{
+			probationCaches.add( cache );
+		}
+	}
+
+	public boolean remove( Cacheable cache )
+	{
+		if ( probationCaches.contains( cache ) )
+		{
+			probationCaches.remove( cache );
+			return true;
+		}
+		if ( protectedCaches.contains( cache ) )
+		{
+			protectedCaches.remove( cache );
+			protectedMemory -= cache.getMemorySize( );
+			return true;
+		}
+		return false;
+	}
+
+	public Cacheable evict( )
+	{
+		Cacheable cache = probationCaches.remove( );
+		if ( cache == null )
+		{
+			cache = protectedCaches.remove( );
+			if ( cache != null )
+			{
+				protectedMemory -= cache.getMemorySize( );
+			}
+		}
+		return cache;
+	}
+
+	public void getCaches( List<Cacheable> list )
+	{
+		for ( Cacheable cache = probationCaches.first( ); cache != null; cache = cache
+				.getNext( ) )
+		{
+			list.add( cache );
+		}
+		for ( Cacheable cache = protectedCaches.first( ); cache != null; cache = cache
+				.getNext( ) )
+		{
+			list.add( cache );
+		}
+	}
+}
@@ -11,6 +11,13 @@
 
 package org.eclipse.birt.core.archive.cache;
 
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -21,118 +28,499 @@ import java.util.logging.Logger;
  * the max cache used by a single file. Stream Cache: Each opened stream locks
  * at most 4 blocks, 1 data block, 3 FAT block.
  * 
+ * The system cache is split into shards by the cache key, each shard has its
+ * own lock and cache policy, so the files released or got caches from
+ * different shards needn't wait each other. The max cache memory is divided
+ * equally by the shards.
+ * 
+ * The cache policy is created by the factory passed to the constructor, or
+ * selected by the system property PROPERTY_CACHE_POLICY, which can be LRU,
+ * SLRU or 2Q. The default policy is SLRU.
+ * 
  */
-public class SystemCacheManager
+public class SystemCacheManager implements SystemCacheManagerMBean
 {
 
 	protected static Logger logger = Logger.getLogger( SystemCacheManager.class
 			.getName( ) );
 
-	protected int maxCacheSize;
-	protected int usedCacheSize;
-	protected CacheList caches;
-	protected boolean enableSystemCache;
+	public static final String PROPERTY_CACHE_POLICY = "org.eclipse.birt.core.archive.cache.POLICY";
+
+	protected long maxCacheMemory;
+	protected AtomicInteger usedCacheSize;
+	protected AtomicLong usedCacheMemory;
+	protected CacheShard[] shards;
+	private int shardMask;
+	private String policyName;
 
 	public SystemCacheManager( )
 	{
 		this( 0 );
 	}
 
+	/**
+	 * create the system cache manager.
+	 * 
+	 * @param maxCacheSize
+	 *            the max cache size in blocks.
+	 */
 	public SystemCacheManager( int maxCacheSize )
 	{
-		this.maxCacheSize = maxCacheSize;
-		this.usedCacheSize = 0;
-		this.caches = new CacheList( );
+		this( (long) maxCacheSize * Cacheable.DEFAULT_MEMORY_SIZE,
+				getDefaultShardCount( ), getDefaultPolicyFactory( ) );
+	}
+
+	/**
+	 * create the system cache manager.
+	 * 
+	 * @param maxCacheMemory
+	 *            the max memory in bytes used by the system cache.
+	 * @param shardCount
+	 *            the shard count, it is rounded up to power of 2.
+	 * @param factory
+	 *            the factory to create the cache policy for each shard.
+	 */
+	public SystemCacheManager( long maxCacheMemory, int shardCount,
+			CachePolicyFactory factory )
+	{
+		int count = 1;
+		while ( count < shardCount && count < 256 )
+		{
+			count = count << 1;
+		}
+		this.shards = new CacheShard[count];
+		this.shardMask = count - 1;
+		for ( int i = 0; i < count; i++ )
+		{
+			shards[i] = new CacheShard( factory.createCachePolicy( ) );
+		}
+		this.policyName = shards[0].policy.getName( );
+		this.usedCacheSize = new AtomicInteger( 0 );
+		this.usedCacheMemory = new AtomicLong( 0 );
+		setMaxCacheMemory( maxCacheMemory );
+	}
+
+	private static int getDefaultShardCount( )
+	{
+		int processors = Runtime.getRuntime( ).availableProcessors( );
+		return Math.min( processors * 2, 64 );
 	}
 
+	private static CachePolicyFactory getDefaultPolicyFactory( )
+	{
+		String policy = (String) AccessController
+				.doPrivileged( new PrivilegedAction<Object>( ) {
+
+					public Object run( )
+					{
+						return System.getProperty( PROPERTY_CACHE_POLICY );
+					}
+				} );
+		if ( policy != null )
+		{
+			policy = policy.trim( );
+			if ( LRUCachePolicy.NAME.equalsIgnoreCase( policy ) )
+			{
+				return LRUCachePolicy.FACTORY;
+			}
+			if ( TwoQueueCachePolicy.NAME.equalsIgnoreCase( policy ) )
+			{
+				return TwoQueueCachePolicy.FACTORY;
+			}
+			if ( !SLRUCachePolicy.NAME.equalsIgnoreCase( policy ) )
+			{
+				logger.log( Level.WARNING, "Unknown cache policy " + policy
+						+ ", use " + SLRUCachePolicy.NAME );
+			}
+		}
+		return SLRUCachePolicy.FACTORY;
+	}
+
+	/**
+	 * set the max cache size in blocks.
+	 */
 	public void setMaxCacheSize( int size )
 	{
-		maxCacheSize = size;
+		setMaxCacheMemory( (long) size * Cacheable.DEFAULT_MEMORY_SIZE );
+	}
+
+	/**
+	 * set the max memory in bytes used by the system cache.
+	 */
+	public void setMaxCacheMemory( long memory )
+	{
+		maxCacheMemory = memory;
+		long shardMemory = memory / shards.length;
+		if ( memory % shards.length != 0 )
+		{
+			shardMemory++;
+		}
+		for ( CacheShard shard : shards )
+		{
+			shard.lock( );
+			try
+			{
+				shard.policy.setCapacity( shardMemory );
+				shard.adjustCaches( );
+			}
+			finally
+			{
+				shard.unlock( );
+			}
+		}
+	}
+
+	public long getMaxCacheMemory( )
+	{
+		return maxCacheMemory;
 	}
 
-	void increaseUsedCacheSize( int size )
+	void increaseUsedCache( Cacheable cache )
 	{
-		usedCacheSize += size;
+		usedCacheSize.incrementAndGet( );
+		usedCacheMemory.addAndGet( cache.getMemorySize( ) );
 	}
 
+	void decreaseUsedCache( Cacheable cache )
+	{
+		usedCacheSize.decrementAndGet( );
+		usedCacheMemory.addAndGet( -cache.getMemorySize( ) );
+	}
+
+	/**
+	 * return the count of the caches used by all the files.
+	 */
 	public int getUsedCacheSize( )
 	{
-		return usedCacheSize;
+		return usedCacheSize.get( );
+	}
+
+	/**
+	 * return the memory in bytes used by all the caches.
+	 */
+	public long getUsedCacheMemory( )
+	{
+		return usedCacheMemory.get( );
+	}
+
+	/**
+	 * return the name of the cache policy.
+	 */
+	public String getCachePolicyName( )
+	{
+		return policyName;
+	}
+
+	/**
+	 * return the times a released cache is got back from the system cache.
+	 */
+	public long getHitCount( )
+	{
+		long count = 0;
+		for ( CacheShard shard : shards )
+		{
+			count += shard.hitCount.get( );
+		}
+		return count;
+	}
+
+	/**
+	 * return the times a cache is not found and must be loaded again.
+	 */
+	public long getMissCount( )
+	{
+		long count = 0;
+		for ( CacheShard shard : shards )
+		{
+			count += shard.missCount.get( );
+		}
+		return count;
+	}
+
+	/**
+	 * return the hit rate of the cache policy, it is between 0 and 1.
+	 */
+	public double getHitRate( )
+	{
+		long hitCount = getHitCount( );
+		long totalCount = hitCount + getMissCount( );
+		if ( totalCount == 0 )
+		{
+			return 0;
+		}
+		return (double) hitCount / totalCount;
+	}
+
+	/**
+	 * return the count of the caches evicted by the cache policy.
+	 */
+	public long getEvictionCount( )
+	{
+		long count = 0;
+		for ( CacheShard shard : shards )
+		{
+			count += shard.evictionCount;
+		}
+		return count;
+	}
+
+	/**
+	 * return the count of the shards.
+	 */
+	public int getShardCount( )
+	{
+		return shards.length;
+	}
+
+	/**
+	 * return the total times the shard locks are acquired.
+	 */
+	public long getLockCount( )
+	{
+		long count = 0;
+		for ( CacheShard shard : shards )
+		{
+			count += shard.lockCount;
+		}
+		return count;
+	}
+
+	/**
+	 * return the times the shard lock is held by other thread when it is
+	 * acquired.
+	 */
+	public long getContendedLockCount( )
+	{
+		long count = 0;
+		for ( CacheShard shard : shards )
+		{
+			count += shard.contendedCount;
+		}
+		return count;
+	}
+
+	/**
+	 * return the total time in nanoseconds waited for the shard locks.
+	 */
+	public long getLockWaitTime( )
+	{
+		long time = 0;
+		for ( CacheShard shard : shards )
+		{
+			time += shard.waitTime;
+		}
+		return time;
+	}
+
+	private CacheShard getShard( FileCacheManager manager, Object cacheKey )
+	{
+		int hash = System.identityHashCode( manager ) * 31
+				+ cacheKey.hashCode( );
+		hash ^= ( hash >>> 16 );
+		hash ^= ( hash >>> 7 );
+		return shards[hash & shardMask];
+	}
+
+	private CacheShard getShard( Cacheable cache )
+	{
+		return getShard( cache.manager, cache.getCacheKey( ) );
+	}
+
+	/**
+	 * record the cache is not found by the file cache.
+	 */
+	void recordMiss( FileCacheManager manager, Object cacheKey )
+	{
+		getShard( manager, cacheKey ).missCount.incrementAndGet( );
 	}
 
 	void removeCaches( FileCacheManager manager )
 	{
-		Cacheable cache = caches.first( );
-		while ( cache != null )
+		for ( CacheShard shard : shards )
 		{
-			Cacheable next = cache.getNext( );
-			if ( cache.manager == manager )
+			shard.lock( );
+			try
 			{
-				caches.remove( cache );
-				manager.caches.remove( cache.getCacheKey( ) );
-				usedCacheSize--;
+				shard.removeCaches( manager );
+			}
+			finally
+			{
+				shard.unlock( );
 			}
-			cache = next;
+		}
+	}
+
+	/**
+	 * remove the cache got back by the file cache.
+	 */
+	void reuseCache( Cacheable cache )
+	{
+		CacheShard shard = getShard( cache );
+		shard.hitCount.incrementAndGet( );
+		shard.lock( );
+		try
+		{
+			shard.removeCache( cache );
+		}
+		finally
+		{
+			shard.unlock( );
 		}
 	}
 
 	void removeCache( Cacheable cache )
 	{
-		caches.remove( cache );
+		CacheShard shard = getShard( cache );
+		shard.lock( );
+		try
+		{
+			shard.removeCache( cache );
+		}
+		finally
+		{
+			shard.unlock( );
+		}
 	}
 
 	void addCaches( Cacheable[] caches )
 	{
-		if ( maxCacheSize == 0 )
+		for ( Cacheable cache : caches )
+		{
+			addCache( cache );
+		}
+	}
+
+	void addCache( Cacheable cache )
+	{
+		if ( maxCacheMemory == 0 )
 		{
 			// remove the cache directly
-			for ( Cacheable cache : caches )
-			{
-				cache.getReferenceCount( ).set( -2 );
-				cache.manager.caches.remove( cache.getCacheKey( ) );
-			}
+			cache.getReferenceCount( ).set( -2 );
+			cache.manager.caches.remove( cache.getCacheKey( ), cache );
+			decreaseUsedCache( cache );
+			cache.dispose( );
 		}
 		else
 		{
-			for ( Cacheable cache : caches )
+			CacheShard shard = getShard( cache );
+			shard.lock( );
+			try
 			{
 				cache.getReferenceCount( ).set( -1 );
-				this.caches.add( cache );
+				shard.addCache( cache );
+			}
+			finally
+			{
+				shard.unlock( );
 			}
-			adjustSystemCaches( );
 		}
 	}
 
-	void addCache( Cacheable cache )
+	/**
+	 * a shard of the system cache.
+	 * 
+	 * All the methods except lock() must be called with the lock held.
+	 */
+	class CacheShard
 	{
-		if ( maxCacheSize == 0 )
+
+		private final ReentrantLock lock = new ReentrantLock( );
+		final CachePolicy policy;
+		/**
+		 * the memory used by the caches in the policy.
+		 */
+		private long cacheMemory;
+
+		final AtomicLong hitCount = new AtomicLong( );
+		final AtomicLong missCount = new AtomicLong( );
+
+		/**
+		 * the statistics of the lock, they are only changed with the lock
+		 * held.
+		 */
+		volatile long lockCount;
+		volatile long contendedCount;
+		volatile long waitTime;
+		volatile long evictionCount;
+
+		CacheShard( CachePolicy policy )
 		{
-			// remove the cache directly
-			cache.getReferenceCount( ).set( -2 );
-			cache.manager.caches.remove( cache.getCacheKey( ) );
+			this.policy = policy;
 		}
-		else
+
+		void lock( )
 		{
-			cache.getReferenceCount( ).set( -1 );
-			caches.add( cache );
-			adjustSystemCaches( );
+			if ( !lock.tryLock( ) )
+			{
+				long start = System.nanoTime( );
+				lock.lock( );
+				contendedCount++;
+				waitTime += System.nanoTime( ) - start;
+			}
+			lockCount++;
 		}
-	}
 
-	private void adjustSystemCaches( )
-	{
-		int releaseCacheSize = caches.size( ) - maxCacheSize;
-		if ( releaseCacheSize > 0 )
+		void unlock( )
+		{
+			lock.unlock( );
+		}
+
+		void addCache( Cacheable cache )
+		{
+			cacheMemory += cache.getMemorySize( );
+			policy.add( cache );
+			adjustCaches( );
+		}
+
+		void removeCache( Cacheable cache )
+		{
+			if ( policy.remove( cache ) )
+			{
+				cacheMemory -= cache.getMemorySize( );
+			}
+		}
+
+		void removeCaches( FileCacheManager manager )
 		{
-			for ( int i = 0; i < releaseCacheSize; i++ )
+			ArrayList<Cacheable> caches = new ArrayList<Cacheable>( );
+			policy.getCaches( caches );
+			for ( Cacheable cache : caches )
 			{
-				Cacheable removed = caches.remove( );
+				if ( cache.manager == manager )
+				{
+					removeCache( cache );
+					if ( cache.getReferenceCount( ).compareAndSet( -1, -2 ) )
+					{
+						manager.caches.remove( cache.getCacheKey( ), cache );
+						decreaseUsedCache( cache );
+						cache.dispose( );
+					}
+				}
+			}
+		}
+
+		void adjustCaches( )
+		{
+			while ( cacheMemory > policy.getCapacity( ) )
+			{
+				Cacheable removed = policy.evict( );
+				if ( removed == null )
+				{
+					break;
+				}
+				cacheMemory -= removed.getMemorySize( );
+				evictionCount++;
+				removed.manager.evictionCount.incrementAndGet( );
+				// the cache may be got back by the file cache at the same
+				// time, it is alive in that case.
 				if ( removed.getReferenceCount( ).compareAndSet( -1, -2 ) )
 				{
-					removed.manager.caches.remove( removed.getCacheKey( ) );
-					usedCacheSize--;
+					removed.manager.caches.remove( removed.getCacheKey( ),
+							removed );
+					decreaseUsedCache( removed );
+					removed.dispose( );
 				}
 			}
 		}
 	}
-}
\ No newline at end of file
+}
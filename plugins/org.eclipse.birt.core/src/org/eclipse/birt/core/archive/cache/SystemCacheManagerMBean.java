@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.cache;
+
+/**
+ * the management interface of the system cache, it exposes the statistics of
+ * the shared cache through JMX.
+ */
+public interface SystemCacheManagerMBean
+{
+
+	long getMaxCacheMemory( );
+
+	void setMaxCacheMemory( long memory );
+
+	int getUsedCacheSize( );
+
+	long getUsedCacheMemory( );
+
+	String getCachePolicyName( );
+
+	long getHitCount( );
+
+	long getMissCount( );
+
+	double getHitRate( );
+
+	long getEvictionCount( );
+
+	int getShardCount( );
+
+	long getLockCount( );
+
+	long getContendedLockCount( );
+
+	long getLockWaitTime( );
+}
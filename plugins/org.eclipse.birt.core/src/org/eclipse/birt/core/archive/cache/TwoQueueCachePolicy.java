@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * the 2Q policy.
+ * 
+ * The new cache is added into the FIFO in queue, which uses at most 25% of
+ * the capacity. The key of the cache evicted from the in queue is remembered
+ * in the out queue, if the cache is loaded again while the key is still in
+ * the out queue, it is added into the main queue, which is managed in LRU.
+ * The caches read only once are never added into the main queue.
+ */
+public class TwoQueueCachePolicy extends CachePolicy
+{
+
+	public static final String NAME = "2Q";
+
+	public static final CachePolicyFactory FACTORY = new CachePolicyFactory( ) {
+
+		public CachePolicy createCachePolicy( )
+		{
+			return new TwoQueueCachePolicy( );
+		}
+	};
+
+	static final int IN_QUEUE_PERCENTAGE = 25;
+	static final int OUT_QUEUE_PERCENTAGE = 50;
+
+	static final int STATE_IN_QUEUE = 0;
+	static final int STATE_MAIN_QUEUE = 1;
+
+	private CacheList inQueue = new CacheList( );
+	private CacheList mainQueue = new CacheList( );
+	private long inQueueMemory;
+	/**
+	 * the keys of the caches evicted from the in queue, the value is the
+	 * memory size of the evicted cache.
+	 */
+	private LinkedHashMap<GhostKey, Integer> outQueue = new LinkedHashMap<GhostKey, Integer>( );
+	private long outQueueMemory;
+
+	public String getName( )
+	{
+		return NAME;
+	}
+
+	public void add( Cacheable cache )
+	{
+		cache.setReused( false );
+		if ( cache.getPolicyState( ) == STATE_MAIN_QUEUE )
+		{
+			mainQueue.add( cache );
+			return;
+		}
+		Integer memorySize = outQueue.remove( new GhostKey( cache ) );
+		if ( memorySize != null )
+		{
+			outQueueMemory -= memorySize.intValue( );
+			cache.setPolicyState( STATE_MAIN_QUEUE );
+			mainQueue.add( cache );
+			return;
+		}
+		inQueue.add( cache );
+		inQueueMemory += cache.getMemorySize( );
+	}
+
+	public boolean remove( Cacheable cache )
+	{
+		if ( inQueue.contains( cache ) )
+		{
+			inQueue.remove( cache );
+			inQueueMemory -= cache.getMemorySize( );
+			return true;
+		}
+		if ( mainQueue.contains( cache ) )
+		{
+			mainQueue.remove( cache );
+			return true;
+		}
+		return false;
+	}
+
+	public Cacheable evict( )
+	{
+		if ( inQueueMemory > capacity * IN_QUEUE_PERCENTAGE / 100
+				|| mainQueue.size( ) == 0 )
+		{
+			Cacheable cache = inQueue.remove( );
+			if ( cache != null )
+			{
+				inQueueMemory -= cache.getMemorySize( );
+				addGhost( cache );
+				return cache;
+			}
+		}
+		return mainQueue.remove( );
+	}
+
+	private void addGhost( Cacheable cache )
+	{
+		int memorySize = cache.getMemorySize( );
+		Integer oldSize = outQueue.put( new GhostKey( cache ), Integer
+				.valueOf( memorySize ) );
+		if ( oldSize != null )
+		{
+			outQueueMemory -= oldSize.intValue( );
+		}
+		outQueueMemory += memorySize;
+		long maxOutQueueMemory = capacity * OUT_QUEUE_PERCENTAGE / 100;
+		Iterator<Integer> iter = outQueue.values( ).iterator( );
+		while ( outQueueMemory > maxOutQueueMemory && iter.hasNext( ) )
+		{
+			outQueueMemory -= iter.next( ).intValue( );
+			iter.remove( );
+		}
+	}
+
+	public void getCaches( List<Cacheable> list )
+	{
+		for ( Cacheable cache = inQueue.first( ); cache != null; cache = cache
+				.getNext( ) )
+		{
+			list.add( cache );
+		}
+		for ( Cacheable cache = mainQueue.first( ); cache != null; cache = cache
+				.getNext( ) )
+		{
+			list.add( cache );
+		}
+	}
+
+	/**
+	 * the key of the evicted cache, the cache and its manager are not
+	 * referenced so they can be collected. Two managers may have the same
+	 * identity hash code, it only changes the order of the caches.
+	 */
+	static class GhostKey
+	{
+
+		private final int managerHash;
+		private final Object cacheKey;
+
+		GhostKey( Cacheable cache )
+		{
+			this.managerHash = System.identityHashCode( cache.manager );
+			this.cacheKey = cache.getCacheKey( );
+		}
+
+		public int hashCode( )
+		{
+			return managerHash * 31 + cacheKey.hashCode( );
+		}
+
+		public boolean equals( Object obj )
+		{
+			if ( !( obj instanceof GhostKey ) )
+			{
+				return false;
+			}
+			GhostKey key = (GhostKey) obj;
+			return managerHash == key.managerHash
+					&& cacheKey.equals( key.cacheKey );
+		}
+	}
+}
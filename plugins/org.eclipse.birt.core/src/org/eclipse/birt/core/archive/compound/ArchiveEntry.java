@@ -12,6 +12,13 @@
 package org.eclipse.birt.core.archive.compound;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * the user must close the archive 
@@ -36,4 +43,151 @@ abstract public class ArchiveEntry
 			throws IOException;
 
 	abstract public void close( ) throws IOException;
-}
\ No newline at end of file
+
+	/**
+	 * read the data into the remaining of the buffer, the position of the
+	 * buffer is advanced by the bytes read.
+	 * 
+	 * @return the bytes read, -1 if the position is at the end of the entry.
+	 */
+	public int read( long pos, ByteBuffer dst ) throws IOException
+	{
+		if ( dst.hasArray( ) )
+		{
+			int size = read( pos, dst.array( ), dst.arrayOffset( )
+					+ dst.position( ), dst.remaining( ) );
+			if ( size > 0 )
+			{
+				dst.position( dst.position( ) + size );
+			}
+			return size;
+		}
+		byte[] b = new byte[dst.remaining( )];
+		int size = read( pos, b, 0, b.length );
+		if ( size > 0 )
+		{
+			dst.put( b, 0, size );
+		}
+		return size;
+	}
+
+	/**
+	 * read the data into the buffer asynchronously. The data in the cache is
+	 * read by the calling thread and the returned future is done already,
+	 * otherwise the data is read by the shared read threads.
+	 * 
+	 * The asynchronous reads of the entry are done one by one, the entry and
+	 * the buffer mustn't be used by the caller until the future is done.
+	 * 
+	 * @return the future of the bytes read, -1 if the position is at the end
+	 *         of the entry.
+	 */
+	public Future<Integer> readAsync( long pos, ByteBuffer dst )
+	{
+		return readAsync( pos, dst, null );
+	}
+
+	/**
+	 * read the data into the buffer asynchronously, the callback is invoked
+	 * once the read is finished.
+	 * 
+	 * @param callback
+	 *            the callback of the read, it can be null.
+	 * @return the future of the bytes read, -1 if the position is at the end
+	 *         of the entry.
+	 * @see #readAsync(long, ByteBuffer)
+	 */
+	public Future<Integer> readAsync( final long pos, final ByteBuffer dst,
+			final IReadCallback callback )
+	{
+		FutureTask<Integer> task = new FutureTask<Integer>(
+				new Callable<Integer>( ) {
+
+					public Integer call( ) throws IOException
+					{
+						synchronized ( ArchiveEntry.this )
+						{
+							return Integer.valueOf( read( pos, dst ) );
+						}
+					}
+				} ) {
+
+			protected void done( )
+			{
+				if ( callback != null )
+				{
+					notifyCallback( this, callback );
+				}
+			}
+		};
+		boolean cached;
+		// the probe is serialized with the reads of the entry
+		synchronized ( this )
+		{
+			try
+			{
+				cached = isCached( pos, dst.remaining( ) );
+			}
+			catch ( IOException ex )
+			{
+				// the exception is thrown again by the read
+				cached = true;
+			}
+		}
+		if ( cached )
+		{
+			task.run( );
+		}
+		else
+		{
+			ArchiveReadExecutor.execute( task );
+		}
+		return task;
+	}
+
+	private static void notifyCallback( Future<Integer> future,
+			IReadCallback callback )
+	{
+		int size;
+		try
+		{
+			size = future.get( ).intValue( );
+		}
+		catch ( CancellationException ex )
+		{
+			callback.failed( new InterruptedIOException( ex.getMessage( ) ) );
+			return;
+		}
+		catch ( InterruptedException ex )
+		{
+			callback.failed( new InterruptedIOException( ex.getMessage( ) ) );
+			return;
+		}
+		catch ( ExecutionException ex )
+		{
+			Throwable cause = ex.getCause( );
+			if ( cause instanceof IOException )
+			{
+				callback.failed( (IOException) cause );
+			}
+			else
+			{
+				IOException ioEx = new IOException( String.valueOf( cause ) );
+				ioEx.initCause( cause );
+				callback.failed( ioEx );
+			}
+			return;
+		}
+		callback.completed( size );
+	}
+
+	/**
+	 * return true if the data can be read without I/O, so it is read by the
+	 * calling thread. The sub classes return it from their caches, it is
+	 * called with the entry locked and mustn't load any data.
+	 */
+	protected boolean isCached( long pos, int len ) throws IOException
+	{
+		return false;
+	}
+}
@@ -13,6 +13,7 @@ package org.eclipse.birt.core.archive.compound;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.eclipse.birt.core.archive.ArchiveUtil;
 import org.eclipse.birt.core.archive.RAInputStream;
@@ -176,6 +177,75 @@ public class ArchiveEntryInputStream extends RAInputStream
 		return v;
 	}
 
+	/**
+	 * decode the ints from the buffer, the buffer is refreshed once all the
+	 * ints in it are read.
+	 */
+	public void readInts( int[] v, int off, int len ) throws IOException
+	{
+		while ( len > 0 )
+		{
+			if ( buffer_offset + 4 > buffer_size )
+			{
+				refreshBuffer( );
+				if ( buffer_offset + 4 > buffer_size )
+				{
+					throw new EOFException( );
+				}
+			}
+			int count = Math.min( len, ( buffer_size - buffer_offset ) / 4 );
+			for ( int i = 0; i < count; i++ )
+			{
+				v[off++] = ArchiveUtil.bytesToInteger( buffer, buffer_offset );
+				buffer_offset += 4;
+			}
+			len -= count;
+		}
+	}
+
+	public void readLongs( long[] v, int off, int len ) throws IOException
+	{
+		while ( len > 0 )
+		{
+			if ( buffer_offset + 8 > buffer_size )
+			{
+				refreshBuffer( );
+				if ( buffer_offset + 8 > buffer_size )
+				{
+					throw new EOFException( );
+				}
+			}
+			int count = Math.min( len, ( buffer_size - buffer_offset ) / 8 );
+			for ( int i = 0; i < count; i++ )
+			{
+				v[off++] = ArchiveUtil.bytesToLong( buffer, buffer_offset );
+				buffer_offset += 8;
+			}
+			len -= count;
+		}
+	}
+
+	public int read( ByteBuffer dst ) throws IOException
+	{
+		if ( dst.hasArray( ) || !dst.hasRemaining( ) )
+		{
+			return super.read( dst );
+		}
+		// copy the direct buffer from the buffer of the stream
+		if ( buffer_offset >= buffer_size )
+		{
+			refreshBuffer( );
+			if ( buffer_offset >= buffer_size )
+			{
+				return -1;
+			}
+		}
+		int size = Math.min( dst.remaining( ), buffer_size - buffer_offset );
+		dst.put( buffer, buffer_offset, size );
+		buffer_offset += size;
+		return size;
+	}
+
 	private void refreshBuffer( ) throws IOException
 	{
 		if ( buffer_offset < buffer_size )
@@ -12,6 +12,7 @@
 package org.eclipse.birt.core.archive.compound;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.eclipse.birt.core.archive.ArchiveUtil;
 import org.eclipse.birt.core.archive.RAOutputStream;
@@ -127,6 +128,65 @@ public class ArchiveEntryOutputStream extends RAOutputStream
 		offset += len;
 	}
 
+	/**
+	 * encode the ints into the buffer, the buffer is flushed once it is full.
+	 */
+	public void writeInts( int[] v, int off, int len ) throws IOException
+	{
+		while ( len > 0 )
+		{
+			if ( buffer_offset + 4 > buffer_size )
+			{
+				flushBuffer( );
+			}
+			int count = Math.min( len, ( buffer_size - buffer_offset ) / 4 );
+			for ( int i = 0; i < count; i++ )
+			{
+				ArchiveUtil.integerToBytes( v[off++], buffer, buffer_offset );
+				buffer_offset += 4;
+			}
+			len -= count;
+		}
+	}
+
+	public void writeLongs( long[] v, int off, int len ) throws IOException
+	{
+		while ( len > 0 )
+		{
+			if ( buffer_offset + 8 > buffer_size )
+			{
+				flushBuffer( );
+			}
+			int count = Math.min( len, ( buffer_size - buffer_offset ) / 8 );
+			for ( int i = 0; i < count; i++ )
+			{
+				ArchiveUtil.longToBytes( v[off++], buffer, buffer_offset );
+				buffer_offset += 8;
+			}
+			len -= count;
+		}
+	}
+
+	public void write( ByteBuffer src ) throws IOException
+	{
+		if ( src.hasArray( ) )
+		{
+			super.write( src );
+			return;
+		}
+		// copy the direct buffer into the buffer of the stream
+		while ( src.hasRemaining( ) )
+		{
+			if ( buffer_offset >= buffer_size )
+			{
+				flushBuffer( );
+			}
+			int size = Math.min( src.remaining( ), buffer_size - buffer_offset );
+			src.get( buffer, buffer_offset, size );
+			buffer_offset += size;
+		}
+	}
+
 	public void flush( ) throws IOException
 	{
 		if ( entry != null )
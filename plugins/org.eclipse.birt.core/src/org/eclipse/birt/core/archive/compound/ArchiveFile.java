@@ -11,19 +11,23 @@
 
 package org.eclipse.birt.core.archive.compound;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
+import org.eclipse.birt.core.archive.ArchiveStatistics;
 import org.eclipse.birt.core.archive.cache.SystemCacheManager;
 import org.eclipse.birt.core.archive.compound.v3.Ext2FileSystem;
+import org.eclipse.birt.core.archive.compound.v3.SeekableGzipFile;
 import org.eclipse.birt.core.i18n.CoreMessages;
 import org.eclipse.birt.core.i18n.ResourceConstants;
 import org.eclipse.birt.core.util.IOUtil;
@@ -40,9 +44,41 @@ public class ArchiveFile implements IArchiveFile
 	public static final boolean enableFileCache = true;
 	public static final int FILE_CACHE_SIZE = 1024;
 
+	static
+	{
+		ArchiveStatistics.registerMBean( systemCacheManager, "SystemCache" );
+	}
+
 	static final long ARCHIVE_V2_TAG = ArchiveConstants.DOCUMENT_TAG;
 	static final long ARCHIVE_V3_TAG = Ext2FileSystem.EXT2_MAGIC_TAG;
 
+	/**
+	 * the system property to create the "rwz" archive as a GZIP file of the
+	 * whole archive. The value is "true" or "false", it is "false" by default,
+	 * the entries of the "rwz" archive are compressed in frames inside the
+	 * archive, so the archive can be read without unzipping it to a temporary
+	 * file.
+	 */
+	public static final String PROPERTY_LEGACY_ZIP = "org.eclipse.birt.core.archive.compound.LEGACY_ZIP";
+
+	/**
+	 * the system property to share the Ext2 file system by the archives
+	 * opened in "r" mode. The value is "true" or "false", it is "false" by
+	 * default. Otherwise the archives opened for the same unchanged file
+	 * load the tables and cache the blocks only once, the file system is
+	 * closed with the last archive.
+	 */
+	public static final String PROPERTY_SHARED_READER = "org.eclipse.birt.core.archive.compound.SHARED_READER";
+
+	/**
+	 * the system property of the memory in bytes used by a "rwt" archive
+	 * before it is saved into the file. The value is 0 by default, the "rwt"
+	 * archive is created as an Ext2 file. Otherwise the entries are kept in
+	 * the memory until the budget is exceeded, the file isn't created for the
+	 * small transient documents.
+	 */
+	public static final String PROPERTY_MEMORY_BUDGET = "org.eclipse.birt.core.archive.compound.MEMORY_BUDGET";
+
 	/**
 	 * the archive file name.
 	 */
@@ -83,22 +119,84 @@ public class ArchiveFile implements IArchiveFile
 		}
 		else if ( "rwz".equals( mode ) )
 		{
-			// create a zip file
-			zipOnClose = true;
-			tmpFileName = getTmpFileName( );
-			ArchiveFileV3 f3 = new ArchiveFileV3( tmpFileName, "rw" );
-			f3.setSystemId( systemId );
-			this.af = f3;
+			if ( isLegacyZipEnabled( ) )
+			{
+				// create a zip file
+				zipOnClose = true;
+				tmpFileName = getTmpFileName( );
+				ArchiveFileV3 f3 = new ArchiveFileV3( tmpFileName, "rw" );
+				f3.setSystemId( systemId );
+				this.af = f3;
+			}
+			else
+			{
+				// compress the entries inside the archive
+				ArchiveFileV3 f3 = new ArchiveFileV3( fileName, "rw" );
+				f3.setSystemId( systemId );
+				f3.setCompressed( true );
+				this.af = f3;
+			}
 		}
 		else
 		{
 			// rwt, rw mode
-			ArchiveFileV3 f3 = new ArchiveFileV3( fileName, mode );
-			f3.setSystemId( systemId );
-			this.af = f3;
+			long budget = "rwt".equals( mode ) ? getMemoryBudget( ) : 0;
+			if ( budget > 0 )
+			{
+				// keep the entries in memory until the budget is exceeded
+				this.af = new MemoryArchiveFile( fileName, systemId, budget );
+			}
+			else
+			{
+				ArchiveFileV3 f3 = new ArchiveFileV3( fileName, mode );
+				f3.setSystemId( systemId );
+				this.af = f3;
+			}
 		}
 	}
 
+	/**
+	 * read the system property which configures the archive.
+	 */
+	private static String getSystemProperty( final String name )
+	{
+		return (String) AccessController
+				.doPrivileged( new PrivilegedAction<Object>( ) {
+
+					public Object run( )
+					{
+						return System.getProperty( name );
+					}
+				} );
+	}
+
+	private static boolean isLegacyZipEnabled( )
+	{
+		return "true".equalsIgnoreCase( getSystemProperty( PROPERTY_LEGACY_ZIP ) );
+	}
+
+	private static boolean isSharedReaderEnabled( )
+	{
+		return "true".equalsIgnoreCase( getSystemProperty( PROPERTY_SHARED_READER ) );
+	}
+
+	private static long getMemoryBudget( )
+	{
+		String value = getSystemProperty( PROPERTY_MEMORY_BUDGET );
+		if ( value != null )
+		{
+			try
+			{
+				return Long.parseLong( value.trim( ) );
+			}
+			catch ( NumberFormatException ex )
+			{
+				// the memory isn't used
+			}
+		}
+		return 0;
+	}
+
 	protected void openArchiveForReading( ) throws IOException
 	{
 		// test if we need upgrade the document
@@ -114,16 +212,27 @@ public class ArchiveFile implements IArchiveFile
 			}
 			else if ( magicTag == ARCHIVE_V3_TAG )
 			{
-				ArchiveFileV3 fs = new ArchiveFileV3( archiveName, rf, "r" );
+				ArchiveFileV3 fs = isSharedReaderEnabled( )
+						? SharedArchiveRegistry.open( archiveName, rf )
+						: new ArchiveFileV3( archiveName, rf, "r" );
 				upgradeSystemId( fs );
 				af = fs;
 			}
 			else if ( isZipFile( magicTag ) )
 			{
-				tmpFileName = getTmpFileName( );
-				unzip( archiveName, tmpFileName );
-				ArchiveFileV3 fs = new ArchiveFileV3( tmpFileName, "r" );
-				af = fs;
+				if ( SeekableGzipFile.isSeekable( rf ) )
+				{
+					// read the frames in place
+					af = new ArchiveFileV3( archiveName, new SeekableGzipFile(
+							archiveName, rf ) );
+				}
+				else
+				{
+					tmpFileName = getTmpFileName( );
+					unzip( archiveName, tmpFileName );
+					ArchiveFileV3 fs = new ArchiveFileV3( tmpFileName, "r" );
+					af = fs;
+				}
 			}
 			else
 			{
@@ -253,22 +362,35 @@ public class ArchiveFile implements IArchiveFile
 		return 0;
 	}
 
+	/**
+	 * return the I/O and cache statistics of the archive, null if the archive
+	 * is closed.
+	 */
+	public ArchiveStatistics getStatistics( )
+	{
+		if ( af instanceof MemoryArchiveFile )
+		{
+			return ( (MemoryArchiveFile) af ).getStatistics( );
+		}
+		if ( af instanceof ArchiveFileV3 )
+		{
+			return ( (ArchiveFileV3) af ).getStatistics( );
+		}
+		if ( af instanceof ArchiveFileV2 )
+		{
+			return ( (ArchiveFileV2) af ).getStatistics( );
+		}
+		return null;
+	}
+
 	static public long getTotalUsedCache( )
 	{
-		return (long) systemCacheManager.getUsedCacheSize( ) * 4096;
+		return systemCacheManager.getUsedCacheMemory( );
 	}
 
 	static public void setTotalCacheSize( long size )
 	{
-		long blockCount = ( size + 4095 ) / 4096;
-		if ( blockCount > Integer.MAX_VALUE )
-		{
-			systemCacheManager.setMaxCacheSize( Integer.MAX_VALUE );
-		}
-		else
-		{
-			systemCacheManager.setMaxCacheSize( (int) blockCount );
-		}
+		systemCacheManager.setMaxCacheMemory( size );
 	}
 
 	/**
@@ -283,6 +405,10 @@ public class ArchiveFile implements IArchiveFile
 		try
 		{
 			file.setSystemId( systemId );
+			if ( ArchiveFileV3.copy( af, file ) )
+			{
+				return;
+			}
 			List entries = listEntries( "/" );
 			Iterator iter = entries.listIterator( );
 			while ( iter.hasNext( ) )
@@ -363,6 +489,27 @@ public class ArchiveFile implements IArchiveFile
 		}
 	}
 
+	/**
+	 * compact the archive to return the free space left by the removed
+	 * entries. The archive in V3 format must be opened in write mode, the
+	 * archives in the other formats are not changed.
+	 */
+	synchronized public void compact( ) throws IOException
+	{
+		if ( isArchiveFileAvailable( af ) )
+		{
+			if ( af instanceof ArchiveFileV3 )
+			{
+				( (ArchiveFileV3) af ).compact( );
+			}
+		}
+		else
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+		}
+	}
+
 	synchronized public void refresh( ) throws IOException
 	{
 		if ( isArchiveFileAvailable( af ) )
@@ -411,6 +558,33 @@ public class ArchiveFile implements IArchiveFile
 		}
 	}
 
+	/**
+	 * return the iterator of the entries starting with the prefix. The names
+	 * of the V2 and V3 archives are listed in batches instead of in one list.
+	 */
+	public Iterator<String> iterateEntries( String prefix )
+	{
+		IArchiveFile file = af;
+		if ( file instanceof MemoryArchiveFile
+				&& ( (MemoryArchiveFile) file ).getArchive( ) != null )
+		{
+			file = ( (MemoryArchiveFile) file ).getArchive( );
+		}
+		if ( file instanceof ArchiveFileV3 )
+		{
+			return ( (ArchiveFileV3) file ).iterateEntries( prefix );
+		}
+		if ( file instanceof ArchiveFileV2 )
+		{
+			return ( (ArchiveFileV2) file ).iterateEntries( prefix );
+		}
+		if ( isArchiveFileAvailable( file ) )
+		{
+			return file.listEntries( prefix ).iterator( );
+		}
+		return Collections.<String> emptyList( ).iterator( );
+	}
+
 	synchronized public ArchiveEntry createEntry( String name )
 			throws IOException
 	{
@@ -540,6 +714,10 @@ public class ArchiveFile implements IArchiveFile
 		return false;
 	}
 
+	/**
+	 * zip the archive into a seekable GZIP file, so the archive can be read
+	 * without unzipping it to a temporary file.
+	 */
 	private void zip( String src, String tgt ) throws IOException
 	{
 		FileInputStream fi = new FileInputStream( src );
@@ -548,15 +726,9 @@ public class ArchiveFile implements IArchiveFile
 			FileOutputStream fo = new FileOutputStream( tgt );
 			try
 			{
-				GZIPOutputStream gzip = new GZIPOutputStream( fo );
-				byte[] bytes = new byte[4096];
-				int size = fi.read( bytes );
-				while ( size >= 0 )
-				{
-					gzip.write( bytes, 0, size );
-					size = fi.read( bytes );
-				}
-				gzip.close( );
+				BufferedOutputStream out = new BufferedOutputStream( fo );
+				SeekableGzipFile.compress( fi, out );
+				out.flush( );
 			}
 			finally
 			{
@@ -571,6 +743,32 @@ public class ArchiveFile implements IArchiveFile
 
 	protected void unzip( String src, String tgt ) throws IOException
 	{
+		RandomAccessFile rf = new RandomAccessFile( src, "r" );
+		if ( !SeekableGzipFile.isSeekable( rf ) )
+		{
+			rf.close( );
+		}
+		else
+		{
+			SeekableGzipFile gzip = new SeekableGzipFile( src, rf );
+			try
+			{
+				FileOutputStream fo = new FileOutputStream( tgt );
+				try
+				{
+					gzip.copyTo( fo );
+				}
+				finally
+				{
+					fo.close( );
+				}
+			}
+			finally
+			{
+				gzip.close( );
+			}
+			return;
+		}
 		FileInputStream fi = new FileInputStream( src );
 		try
 		{
@@ -22,6 +22,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
+import org.eclipse.birt.core.archive.ArchiveStatistics;
+import org.eclipse.birt.core.archive.EntryNameIndex;
 import org.eclipse.birt.core.archive.cache.CacheListener;
 import org.eclipse.birt.core.archive.cache.Cacheable;
 import org.eclipse.birt.core.archive.cache.FileCacheManager;
@@ -87,11 +89,21 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 	 */
 	protected HashMap<String, NameEntry> entries;
 
+	/**
+	 * the sorted names of the entries, used by the prefix listings.
+	 */
+	protected EntryNameIndex entryNames = new EntryNameIndex( );
+
 	/**
 	 * cache manager of the archive file.
 	 */
 	protected FileCacheManager caches;
 
+	/**
+	 * the I/O and cache statistics of the archive.
+	 */
+	protected ArchiveStatistics statistics;
+
 	/**
 	 * the total blocks exits in this file
 	 */
@@ -215,32 +227,54 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 		this.caches = new FileCacheManager( );
 		caches.setCacheListener( new ArchiveFileV2CacheListener( ) );
 		caches.setSystemCacheManager( ArchiveFile.systemCacheManager );
+		statistics = new ArchiveStatistics( fileName );
+		statistics.setCacheManager( caches );
 
-		setupArchiveMode( mode );
-
-		if ( isWritable && !isAppend )
-		{
-			// rw mode
-			createDocument( );
-		}
-		else if ( isWritable && isAppend )
+		boolean opened = false;
+		try
 		{
-			// rw+ mode
-			if ( !( new File( fileName ) ).exists( ) )
+			setupArchiveMode( mode );
+
+			if ( isWritable && !isAppend )
 			{
+				// rw mode
 				createDocument( );
 			}
+			else if ( isWritable && isAppend )
+			{
+				// rw+ mode
+				if ( !( new File( fileName ) ).exists( ) )
+				{
+					createDocument( );
+				}
+				else
+				{
+					openDocument( );
+				}
+			}
 			else
 			{
 				openDocument( );
 			}
+
+			isClosed = false;
+			opened = true;
 		}
-		else
+		finally
 		{
-			openDocument( );
+			if ( !opened )
+			{
+				statistics.close( );
+			}
 		}
+	}
 
-		isClosed = false;
+	/**
+	 * return the I/O and cache statistics of the archive.
+	 */
+	public ArchiveStatistics getStatistics( )
+	{
+		return statistics;
 	}
 
 	/**
@@ -320,11 +354,13 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 			allocTbl = AllocTable.loadTable( this );
 			entryTbl = NameTable.loadTable( this );
 			entries = new HashMap( );
+			entryNames.clear( );
 			Iterator iter = entryTbl.listEntries( ).iterator( );
 			while ( iter.hasNext( ) )
 			{
 				NameEntry nameEnt = (NameEntry) iter.next( );
 				entries.put( nameEnt.getName( ), nameEnt );
+				entryNames.add( nameEnt.getName( ) );
 			}
 		}
 		catch ( IOException ex )
@@ -361,6 +397,7 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 			allocTbl = AllocTable.createTable( this );
 			entryTbl = NameTable.createTable( this );
 			entries = new HashMap( );
+			entryNames.clear( );
 		}
 		catch ( IOException ex )
 		{
@@ -421,6 +458,7 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 			caches.clear( );
 		}
 		isClosed = true;
+		statistics.close( );
 	}
 
 	public synchronized void flush( ) throws IOException
@@ -480,17 +518,25 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 
 	public synchronized List listEntries( String namePattern )
 	{
-		ArrayList<String> list = new ArrayList<String>( );
-		Iterator<String> iter = entries.keySet( ).iterator( );
-		while ( iter.hasNext( ) )
-		{
-			String name = iter.next( );
-			if ( namePattern == null || name.startsWith( namePattern ) )
+		return entryNames.list( namePattern );
+	}
+
+	/**
+	 * return the iterator of the entries starting with the prefix, the names
+	 * are listed in batches instead of in one list.
+	 */
+	public Iterator<String> iterateEntries( String prefix )
+	{
+		return EntryNameIndex.iterator( prefix, new EntryNameIndex.Source( ) {
+
+			public List<String> list( String prefix, String after, int max )
 			{
-				list.add( name );
+				synchronized ( ArchiveFileV2.this )
+				{
+					return entryNames.list( prefix, after, max );
+				}
 			}
-		}
-		return list;
+		} );
 	}
 
 	public synchronized ArchiveEntry createEntry( String name )
@@ -507,6 +553,7 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 		}
 		nameEnt = entryTbl.createEntry( name );
 		entries.put( name, nameEnt );
+		entryNames.add( name );
 		return new ArchiveEntryV2( this, nameEnt );
 	}
 
@@ -518,6 +565,7 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 		if ( nameEntry != null )
 		{
 			entries.remove( name );
+			entryNames.remove( name );
 			entryTbl.removeEntry( nameEntry );
 			int blockId = nameEntry.getBlock( );
 			if ( blockId != -1 )
@@ -546,6 +594,7 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 			}
 			entry = entryTbl.createEntry( name );
 			entries.put( name, entry );
+			entryNames.add( name );
 		}
 		return entry;
 	}
@@ -632,6 +681,7 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 			}
 			readSize += size;
 		} while ( readSize < len );
+		statistics.recordRead( 1, readSize );
 		return readSize;
 	}
 
@@ -661,6 +711,7 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 		long pos = (long) blockId * BLOCK_SIZE + blockOff;
 		rf.seek( pos );
 		rf.write( b, off, len );
+		statistics.recordWrite( 1, len );
 	}
 
 	synchronized protected Block createBlock( ) throws IOException
@@ -752,6 +803,10 @@ public class ArchiveFileV2 implements IArchiveFile, ArchiveConstants
 			Block block = (Block) cache;
 			try
 			{
+				if ( block.isDirty( ) )
+				{
+					block.af.statistics.recordDirtyFlush( );
+				}
 				block.flush( );
 			}
 			catch ( IOException ex )
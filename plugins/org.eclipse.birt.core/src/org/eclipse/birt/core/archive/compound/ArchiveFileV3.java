@@ -14,13 +14,15 @@ package org.eclipse.birt.core.archive.compound;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
+import org.eclipse.birt.core.archive.ArchiveStatistics;
 import org.eclipse.birt.core.archive.compound.v3.Ext2Entry;
 import org.eclipse.birt.core.archive.compound.v3.Ext2File;
 import org.eclipse.birt.core.archive.compound.v3.Ext2FileSystem;
 import org.eclipse.birt.core.archive.compound.v3.Ext2Node;
+import org.eclipse.birt.core.archive.compound.v3.IReadOnlyStorage;
 
 public class ArchiveFileV3 implements IArchiveFile
 {
@@ -40,7 +42,40 @@ public class ArchiveFileV3 implements IArchiveFile
 			throws IOException
 
 	{
-		fs = new Ext2FileSystem( fileName, rf, mode );
+		this( new Ext2FileSystem( fileName, rf, mode ) );
+	}
+
+	/**
+	 * create the archive with the block size, the block size is only used if
+	 * a new archive is created.
+	 */
+	public ArchiveFileV3( String fileName, RandomAccessFile rf, String mode,
+			int blockSize ) throws IOException
+
+	{
+		this( new Ext2FileSystem( fileName, rf, mode, blockSize ) );
+	}
+
+	/**
+	 * open the read only archive saved in the storage.
+	 */
+	public ArchiveFileV3( String fileName, IReadOnlyStorage storage )
+			throws IOException
+	{
+		this( new Ext2FileSystem( fileName, storage ) );
+	}
+
+	/**
+	 * create the archive sharing the file system of the archive.
+	 */
+	ArchiveFileV3( ArchiveFileV3 archive )
+	{
+		this.fs = archive.fs;
+	}
+
+	private ArchiveFileV3( Ext2FileSystem fs )
+	{
+		this.fs = fs;
 		if ( ArchiveFile.enableSystemCache )
 		{
 			fs.setCacheManager( ArchiveFile.systemCacheManager );
@@ -51,6 +86,44 @@ public class ArchiveFileV3 implements IArchiveFile
 		}
 	}
 
+	/**
+	 * copy the source archive into the empty target archive. The file of the
+	 * source is copied directly if both archives are saved in the Ext2 file
+	 * system, the streams and the tables are neither parsed nor cached.
+	 * 
+	 * @return false if the archive can't be copied directly, the caller
+	 *         should copy the entries one by one.
+	 */
+	public static boolean copy( IArchiveFile source, IArchiveFile target )
+			throws IOException
+	{
+		ArchiveFileV3 sourceV3 = toArchiveFileV3( source );
+		ArchiveFileV3 targetV3 = toArchiveFileV3( target );
+		if ( sourceV3 == null || targetV3 == null || sourceV3.fs == null
+				|| targetV3.fs == null )
+		{
+			return false;
+		}
+		return targetV3.fs.copyFrom( sourceV3.fs );
+	}
+
+	private static ArchiveFileV3 toArchiveFileV3( IArchiveFile file )
+	{
+		if ( file instanceof ArchiveFile )
+		{
+			file = ( (ArchiveFile) file ).af;
+		}
+		if ( file instanceof MemoryArchiveFile )
+		{
+			file = ( (MemoryArchiveFile) file ).getArchive( );
+		}
+		if ( file instanceof ArchiveFileV3 )
+		{
+			return (ArchiveFileV3) file;
+		}
+		return null;
+	}
+
 	public void close( ) throws IOException
 	{
 		if ( fs != null )
@@ -70,6 +143,23 @@ public class ArchiveFileV3 implements IArchiveFile
 		fs.setProperty( PROPERTY_DEPEND_ID, id );
 	}
 
+	/**
+	 * save the entries created after this call in compressed frames.
+	 */
+	public void setCompressed( boolean compressed ) throws IOException
+	{
+		fs.setCompressed( compressed );
+	}
+
+	/**
+	 * relocate the entries to the beginning of the archive and truncate the
+	 * free space left by the removed entries.
+	 */
+	public void compact( ) throws IOException
+	{
+		fs.compact( );
+	}
+
 	public ArchiveEntry createEntry( String name ) throws IOException
 	{
 		Ext2File file = fs.createFile( name );
@@ -113,20 +203,29 @@ public class ArchiveFileV3 implements IArchiveFile
 
 	public long getUsedCache( )
 	{
-		return (long) fs.getUsedCacheSize( ) * 4096;
+		return (long) fs.getUsedCacheSize( ) * fs.getBlockSize( );
+	}
+
+	/**
+	 * return the I/O and cache statistics of the archive.
+	 */
+	public ArchiveStatistics getStatistics( )
+	{
+		return fs.getStatistics( );
 	}
 
 	public List listEntries( String namePattern )
 	{
-		ArrayList<String> files = new ArrayList<String>( );
-		for ( String file : fs.listFiles( ) )
-		{
-			if ( file.startsWith( namePattern ) )
-			{
-				files.add( file );
-			}
-		}
-		return files;
+		return fs.listFiles( namePattern );
+	}
+
+	/**
+	 * return the iterator of the entries starting with the prefix, the names
+	 * are listed in batches instead of in one list.
+	 */
+	public Iterator<String> iterateEntries( String prefix )
+	{
+		return fs.iterateFiles( prefix );
 	}
 
 	public synchronized Object lockEntry( String name ) throws IOException
@@ -149,6 +248,7 @@ public class ArchiveFileV3 implements IArchiveFile
 
 	public void refresh( ) throws IOException
 	{
+		fs.refresh( );
 	}
 
 	public boolean removeEntry( String name ) throws IOException
@@ -165,7 +265,7 @@ public class ArchiveFileV3 implements IArchiveFile
 
 	public void setCacheSize( long cacheSize )
 	{
-		long cacheBlock = cacheSize / 4096;
+		long cacheBlock = cacheSize / fs.getBlockSize( );
 		if ( cacheBlock > Integer.MAX_VALUE )
 		{
 			fs.setCacheSize( Integer.MAX_VALUE );
@@ -219,9 +319,16 @@ public class ArchiveFileV3 implements IArchiveFile
 			return file.read( b, off, len );
 		}
 
+		@Override
+		protected boolean isCached( long pos, int len ) throws IOException
+		{
+			return file.isCached( pos, len );
+		}
+
 		@Override
 		public void refresh( ) throws IOException
 		{
+			file.refresh( );
 		}
 
 		@Override
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * the daemon threads shared by all the archives to read the entries
+ * asynchronously.
+ */
+class ArchiveReadExecutor
+{
+
+	/**
+	 * the system property of the threads reading the entries asynchronously.
+	 * The value is the count of the threads, it is the count of the
+	 * processors by default.
+	 */
+	static final String PROPERTY_ASYNC_READ_THREADS = "org.eclipse.birt.core.archive.compound.ASYNC_READ_THREADS";
+
+	private static ExecutorService executor;
+
+	static synchronized void execute( Runnable task )
+	{
+		if ( executor == null )
+		{
+			executor = Executors.newFixedThreadPool( getThreadCount( ),
+					new ThreadFactory( ) {
+
+						public Thread newThread( Runnable runnable )
+						{
+							Thread thread = new Thread( runnable,
+									"Archive async read" );
+							thread.setDaemon( true );
+							return thread;
+						}
+					} );
+		}
+		executor.execute( task );
+	}
+
+	private static int getThreadCount( )
+	{
+		String value = (String) AccessController
+				.doPrivileged( new PrivilegedAction<Object>( ) {
+
+					public Object run( )
+					{
+						return System.getProperty( PROPERTY_ASYNC_READ_THREADS );
+					}
+				} );
+		if ( value != null )
+		{
+			try
+			{
+				int count = Integer.parseInt( value.trim( ) );
+				if ( count > 0 )
+				{
+					return count;
+				}
+			}
+			catch ( NumberFormatException ex )
+			{
+				// use the default thread count
+			}
+		}
+		return Runtime.getRuntime( ).availableProcessors( );
+	}
+}
@@ -210,7 +210,8 @@ public class ArchiveWriter implements IDocArchiveWriter
 	public List listStreams( String namePattern ) throws IOException
 	{
 		ArrayList list = new ArrayList( );
-		Iterator iter = archive.listEntries( "/" ).iterator( );
+		// the archive lists the entries with the prefix by its name index
+		Iterator iter = archive.listEntries( namePattern ).iterator( );
 		while ( iter.hasNext( ) )
 		{
 			String name = (String) iter.next( );
@@ -77,11 +77,21 @@ public class Block extends Cacheable implements ArchiveConstants
 		dirtyEnd = dirtyStart = 0;
 	}
 
+	boolean isDirty( )
+	{
+		return dirtyEnd != dirtyStart;
+	}
+
 	public byte[] getData( )
 	{
 		return blockData;
 	}
 
+	public int getMemorySize( )
+	{
+		return blockSize;
+	}
+
 	public int write( int tgt, byte b[], int off, int len ) throws IOException
 	{
 		int size = blockSize - tgt;
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound;
+
+import java.io.IOException;
+
+/**
+ * the callback of the asynchronous read of the archive entry. It is invoked
+ * by the thread finishing the read, which is the calling thread if the data
+ * is cached.
+ */
+public interface IReadCallback
+{
+
+	/**
+	 * the read is finished.
+	 * 
+	 * @param size
+	 *            the bytes read, -1 if the position is at the end of the entry.
+	 */
+	void completed( int size );
+
+	/**
+	 * the read is failed or cancelled.
+	 */
+	void failed( IOException ex );
+}
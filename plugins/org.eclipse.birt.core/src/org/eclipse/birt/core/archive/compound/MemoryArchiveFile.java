@@ -0,0 +1,780 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.birt.core.archive.ArchiveStatistics;
+import org.eclipse.birt.core.archive.EntryNameIndex;
+import org.eclipse.birt.core.i18n.CoreMessages;
+import org.eclipse.birt.core.i18n.ResourceConstants;
+
+/**
+ * the transient archive kept in the memory.
+ * 
+ * The entries are saved in the heap until the memory used by them exceeds
+ * the budget, then all the entries are moved into a transient Ext2 archive
+ * created with the archive name and the archive works as that archive since
+ * then. The opened entries are moved too, so the user doesn't know where the
+ * data is saved. The file is never created if the archive is kept in the
+ * budget.
+ */
+public class MemoryArchiveFile implements IArchiveFile
+{
+
+	/**
+	 * the size of the chunks used to save the entry data in the memory.
+	 */
+	static final int CHUNK_SIZE = 4096;
+
+	/**
+	 * the memory used by a reference in the chunk table.
+	 */
+	static final int REFERENCE_SIZE = 8;
+
+	private final String archiveName;
+	private final long budget;
+	private String systemId;
+	private String dependId;
+	private long cacheSize = -1;
+
+	private HashMap<String, EntryData> entries = new HashMap<String, EntryData>( );
+	private EntryNameIndex entryNames = new EntryNameIndex( );
+	private HashSet<MemoryEntry> openedEntries = new HashSet<MemoryEntry>( );
+	private HashMap<String, Object> lockers = new HashMap<String, Object>( );
+	private long usedMemory;
+	private boolean closed;
+
+	/**
+	 * the transient Ext2 archive created when the budget is exceeded.
+	 */
+	private volatile IArchiveFile archive;
+
+	/**
+	 * create the transient archive.
+	 * 
+	 * @param fileName
+	 *            the archive name, the Ext2 archive is created with it once
+	 *            the budget is exceeded.
+	 * @param systemId
+	 *            the system id of the archive.
+	 * @param budget
+	 *            the max memory in bytes used by the entries.
+	 */
+	public MemoryArchiveFile( String fileName, String systemId, long budget )
+	{
+		this.archiveName = fileName;
+		this.systemId = systemId;
+		this.budget = budget;
+	}
+
+	/**
+	 * return the Ext2 archive the entries are moved into, null if the entries
+	 * are still in the memory.
+	 */
+	IArchiveFile getArchive( )
+	{
+		return archive;
+	}
+
+	public void setSystemId( String id )
+	{
+		IArchiveFile file = archive;
+		if ( file instanceof ArchiveFileV3 )
+		{
+			( (ArchiveFileV3) file ).setSystemId( id );
+		}
+		systemId = id;
+	}
+
+	public void setDependId( String id )
+	{
+		IArchiveFile file = archive;
+		if ( file instanceof ArchiveFileV3 )
+		{
+			( (ArchiveFileV3) file ).setDependId( id );
+		}
+		dependId = id;
+	}
+
+	public String getName( )
+	{
+		return archiveName;
+	}
+
+	public String getSystemId( )
+	{
+		return systemId;
+	}
+
+	public String getDependId( )
+	{
+		return dependId;
+	}
+
+	/**
+	 * return the I/O and cache statistics of the Ext2 archive, null if the
+	 * entries are still in the memory.
+	 */
+	public ArchiveStatistics getStatistics( )
+	{
+		IArchiveFile file = archive;
+		if ( file instanceof ArchiveFileV3 )
+		{
+			return ( (ArchiveFileV3) file ).getStatistics( );
+		}
+		return null;
+	}
+
+	synchronized public void close( ) throws IOException
+	{
+		if ( closed )
+		{
+			return;
+		}
+		closed = true;
+		if ( archive != null )
+		{
+			archive.close( );
+			return;
+		}
+		for ( MemoryEntry entry : openedEntries )
+		{
+			entry.data = null;
+		}
+		openedEntries.clear( );
+		entries.clear( );
+		entryNames.clear( );
+		lockers.clear( );
+		usedMemory = 0;
+	}
+
+	synchronized public void flush( ) throws IOException
+	{
+		ensureOpened( );
+		if ( archive != null )
+		{
+			archive.flush( );
+		}
+	}
+
+	synchronized public void refresh( ) throws IOException
+	{
+		ensureOpened( );
+		if ( archive != null )
+		{
+			archive.refresh( );
+		}
+	}
+
+	/**
+	 * save the archive, the entries are moved into the Ext2 archive and the
+	 * archive isn't removed after closing.
+	 */
+	synchronized public void save( ) throws IOException
+	{
+		ensureOpened( );
+		if ( archive == null )
+		{
+			spill( );
+		}
+		archive.save( );
+	}
+
+	synchronized public boolean exists( String name )
+	{
+		if ( archive != null )
+		{
+			return archive.exists( name );
+		}
+		return entries.containsKey( name );
+	}
+
+	synchronized public void setCacheSize( long cacheSize )
+	{
+		this.cacheSize = cacheSize;
+		if ( archive != null )
+		{
+			archive.setCacheSize( cacheSize );
+		}
+	}
+
+	synchronized public long getUsedCache( )
+	{
+		if ( archive != null )
+		{
+			return archive.getUsedCache( );
+		}
+		return usedMemory;
+	}
+
+	synchronized public List<String> listEntries( String namePattern )
+	{
+		if ( archive != null )
+		{
+			return archive.listEntries( namePattern );
+		}
+		return entryNames.list( namePattern );
+	}
+
+	synchronized public ArchiveEntry createEntry( String name )
+			throws IOException
+	{
+		ensureOpened( );
+		if ( archive != null )
+		{
+			return archive.createEntry( name );
+		}
+		EntryData data = entries.get( name );
+		if ( data == null )
+		{
+			data = new EntryData( );
+			entries.put( name, data );
+			entryNames.add( name );
+		}
+		else
+		{
+			usedMemory += data.setLength( 0 );
+		}
+		return openEntry( name, data );
+	}
+
+	synchronized public ArchiveEntry openEntry( String name )
+			throws IOException
+	{
+		ensureOpened( );
+		if ( archive != null )
+		{
+			return archive.openEntry( name );
+		}
+		EntryData data = entries.get( name );
+		if ( data == null )
+		{
+			throw new FileNotFoundException( name );
+		}
+		return openEntry( name, data );
+	}
+
+	private ArchiveEntry openEntry( String name, EntryData data )
+	{
+		MemoryEntry entry = new MemoryEntry( name, data );
+		openedEntries.add( entry );
+		return entry;
+	}
+
+	synchronized public boolean removeEntry( String name ) throws IOException
+	{
+		ensureOpened( );
+		if ( archive != null )
+		{
+			return archive.removeEntry( name );
+		}
+		EntryData data = entries.remove( name );
+		if ( data != null )
+		{
+			entryNames.remove( name );
+			lockers.remove( name );
+			usedMemory -= data.getMemory( );
+			// the opened entries are closed as the Ext2 files
+			ArrayList<MemoryEntry> removedEntries = new ArrayList<MemoryEntry>( );
+			for ( MemoryEntry entry : openedEntries )
+			{
+				if ( entry.data == data )
+				{
+					removedEntries.add( entry );
+				}
+			}
+			for ( MemoryEntry entry : removedEntries )
+			{
+				entry.data = null;
+				openedEntries.remove( entry );
+			}
+		}
+		return true;
+	}
+
+	synchronized public Object lockEntry( String name ) throws IOException
+	{
+		ensureOpened( );
+		if ( archive != null )
+		{
+			// the locker got before moving the entries is still used
+			archive.lockEntry( name );
+		}
+		else if ( !entries.containsKey( name ) )
+		{
+			entries.put( name, new EntryData( ) );
+			entryNames.add( name );
+		}
+		Object locker = lockers.get( name );
+		if ( locker == null )
+		{
+			locker = new Object( );
+			lockers.put( name, locker );
+		}
+		return locker;
+	}
+
+	synchronized public void unlockEntry( Object locker ) throws IOException
+	{
+	}
+
+	private void ensureOpened( ) throws IOException
+	{
+		if ( closed )
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+		}
+	}
+
+	/**
+	 * reserve the memory used to write the data, the entries are moved into
+	 * the Ext2 archive if the budget is exceeded.
+	 * 
+	 * @return true if the data can be written into the memory.
+	 */
+	private boolean reserve( EntryData data, long pos, int len )
+			throws IOException
+	{
+		long memory = data.getRequiredMemory( pos, len );
+		if ( memory >= 0 && usedMemory + memory <= budget )
+		{
+			return true;
+		}
+		spill( );
+		return false;
+	}
+
+	/**
+	 * move all the entries into the transient Ext2 archive, the opened
+	 * entries are reopened from it.
+	 */
+	private void spill( ) throws IOException
+	{
+		ArchiveFileV3 file = new ArchiveFileV3( archiveName, null, "rwt" );
+		try
+		{
+			if ( systemId != null )
+			{
+				file.setSystemId( systemId );
+			}
+			if ( dependId != null )
+			{
+				file.setDependId( dependId );
+			}
+			if ( cacheSize >= 0 )
+			{
+				file.setCacheSize( cacheSize );
+			}
+			byte[] zeros = new byte[CHUNK_SIZE];
+			for ( Map.Entry<String, EntryData> entry : entries.entrySet( ) )
+			{
+				ArchiveEntry target = file.createEntry( entry.getKey( ) );
+				try
+				{
+					entry.getValue( ).copyTo( target, zeros );
+				}
+				finally
+				{
+					target.close( );
+				}
+			}
+			for ( MemoryEntry entry : openedEntries )
+			{
+				entry.delegate = file.openEntry( entry.name );
+			}
+		}
+		catch ( IOException ex )
+		{
+			for ( MemoryEntry entry : openedEntries )
+			{
+				entry.delegate = null;
+			}
+			file.close( );
+			throw ex;
+		}
+		archive = file;
+		for ( MemoryEntry entry : openedEntries )
+		{
+			entry.data = null;
+		}
+		openedEntries.clear( );
+		entries.clear( );
+		entryNames.clear( );
+		usedMemory = 0;
+	}
+
+	/**
+	 * the entry data saved in chunks. The chunks are allocated when the data
+	 * is written, the null chunk is read as zeros.
+	 */
+	private static class EntryData
+	{
+
+		private byte[][] chunks = new byte[0][];
+		private int chunkCount;
+		private long length;
+
+		long getLength( )
+		{
+			return length;
+		}
+
+		long getMemory( )
+		{
+			return (long) chunkCount * CHUNK_SIZE + (long) chunks.length
+					* REFERENCE_SIZE;
+		}
+
+		/**
+		 * return the memory allocated to write the data, -1 if the data can't
+		 * be saved in the memory.
+		 */
+		long getRequiredMemory( long pos, int len )
+		{
+			if ( len <= 0 )
+			{
+				return 0;
+			}
+			long lastChunk = ( pos + len - 1 ) / CHUNK_SIZE;
+			if ( lastChunk >= Integer.MAX_VALUE )
+			{
+				return -1;
+			}
+			long memory = 0;
+			if ( lastChunk >= chunks.length )
+			{
+				memory += ( lastChunk + 1 - chunks.length ) * REFERENCE_SIZE;
+			}
+			for ( long index = pos / CHUNK_SIZE; index <= lastChunk; index++ )
+			{
+				if ( index >= chunks.length || chunks[(int) index] == null )
+				{
+					memory += CHUNK_SIZE;
+				}
+			}
+			return memory;
+		}
+
+		int read( long pos, byte[] b, int off, int len )
+		{
+			if ( len == 0 )
+			{
+				return 0;
+			}
+			if ( pos >= length )
+			{
+				return -1;
+			}
+			if ( len > length - pos )
+			{
+				len = (int) ( length - pos );
+			}
+			int size = 0;
+			while ( size < len )
+			{
+				int index = (int) ( pos / CHUNK_SIZE );
+				int chunkOff = (int) ( pos % CHUNK_SIZE );
+				int count = Math.min( len - size, CHUNK_SIZE - chunkOff );
+				byte[] chunk = index < chunks.length ? chunks[index] : null;
+				if ( chunk != null )
+				{
+					System.arraycopy( chunk, chunkOff, b, off + size, count );
+				}
+				else
+				{
+					for ( int i = 0; i < count; i++ )
+					{
+						b[off + size + i] = 0;
+					}
+				}
+				size += count;
+				pos += count;
+			}
+			return size;
+		}
+
+		/**
+		 * write the data, return the memory allocated.
+		 */
+		long write( long pos, byte[] b, int off, int len )
+		{
+			long memory = getMemory( );
+			int size = 0;
+			while ( size < len )
+			{
+				int index = (int) ( pos / CHUNK_SIZE );
+				int chunkOff = (int) ( pos % CHUNK_SIZE );
+				int count = Math.min( len - size, CHUNK_SIZE - chunkOff );
+				ensureChunks( index + 1 );
+				byte[] chunk = chunks[index];
+				if ( chunk == null )
+				{
+					chunk = new byte[CHUNK_SIZE];
+					chunks[index] = chunk;
+					chunkCount++;
+				}
+				System.arraycopy( b, off + size, chunk, chunkOff, count );
+				size += count;
+				pos += count;
+			}
+			if ( pos > length )
+			{
+				length = pos;
+			}
+			return getMemory( ) - memory;
+		}
+
+		/**
+		 * change the length, the chunks after the length are freed. Return the
+		 * memory allocated, it is negative if the memory is freed.
+		 */
+		long setLength( long newLength )
+		{
+			long memory = getMemory( );
+			if ( newLength < length )
+			{
+				long lastChunk = ( newLength + CHUNK_SIZE - 1 ) / CHUNK_SIZE;
+				for ( long index = lastChunk; index < chunks.length; index++ )
+				{
+					if ( chunks[(int) index] != null )
+					{
+						chunks[(int) index] = null;
+						chunkCount--;
+					}
+				}
+				// the data after the length is read as zeros once extended
+				int chunkOff = (int) ( newLength % CHUNK_SIZE );
+				if ( chunkOff != 0 )
+				{
+					byte[] chunk = chunks.length > newLength / CHUNK_SIZE
+							? chunks[(int) ( newLength / CHUNK_SIZE )]
+							: null;
+					if ( chunk != null )
+					{
+						for ( int i = chunkOff; i < CHUNK_SIZE; i++ )
+						{
+							chunk[i] = 0;
+						}
+					}
+				}
+			}
+			length = newLength;
+			return getMemory( ) - memory;
+		}
+
+		private void ensureChunks( int count )
+		{
+			if ( count > chunks.length )
+			{
+				int newCount = Math.max( count, chunks.length
+						+ ( chunks.length >> 1 ) );
+				byte[][] newChunks = new byte[newCount][];
+				System.arraycopy( chunks, 0, newChunks, 0, chunks.length );
+				chunks = newChunks;
+			}
+		}
+
+		/**
+		 * copy the data into the target entry, the null chunks are written as
+		 * zeros.
+		 */
+		void copyTo( ArchiveEntry target, byte[] zeros ) throws IOException
+		{
+			long pos = 0;
+			for ( int index = 0; index < chunks.length && pos < length; index++ )
+			{
+				int count = (int) Math.min( CHUNK_SIZE, length - pos );
+				byte[] chunk = chunks[index];
+				if ( chunk != null )
+				{
+					target.write( pos, chunk, 0, count );
+				}
+				pos += count;
+			}
+			target.setLength( length );
+		}
+	}
+
+	/**
+	 * the entry opened from the memory. The operations are done in the memory
+	 * with the lock of the archive, then they are done with the entry
+	 * reopened from the Ext2 archive once the entries are moved.
+	 */
+	private class MemoryEntry extends ArchiveEntry
+	{
+
+		final String name;
+		EntryData data;
+		volatile ArchiveEntry delegate;
+
+		MemoryEntry( String name, EntryData data )
+		{
+			this.name = name;
+			this.data = data;
+		}
+
+		private EntryData getData( ) throws IOException
+		{
+			if ( data == null )
+			{
+				throw new IOException(
+						CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+			}
+			return data;
+		}
+
+		public String getName( )
+		{
+			return name;
+		}
+
+		public long getLength( ) throws IOException
+		{
+			ArchiveEntry entry = delegate;
+			if ( entry == null )
+			{
+				synchronized ( MemoryArchiveFile.this )
+				{
+					entry = delegate;
+					if ( entry == null )
+					{
+						return getData( ).getLength( );
+					}
+				}
+			}
+			return entry.getLength( );
+		}
+
+		public void setLength( long length ) throws IOException
+		{
+			ArchiveEntry entry = delegate;
+			if ( entry == null )
+			{
+				synchronized ( MemoryArchiveFile.this )
+				{
+					entry = delegate;
+					if ( entry == null )
+					{
+						EntryData entryData = getData( );
+						// the extended data isn't allocated until it is written
+						if ( length / CHUNK_SIZE < Integer.MAX_VALUE )
+						{
+							usedMemory += entryData.setLength( length );
+							return;
+						}
+						spill( );
+						entry = delegate;
+					}
+				}
+			}
+			entry.setLength( length );
+		}
+
+		public void flush( ) throws IOException
+		{
+			ArchiveEntry entry = delegate;
+			if ( entry != null )
+			{
+				entry.flush( );
+			}
+		}
+
+		public void refresh( ) throws IOException
+		{
+			ArchiveEntry entry = delegate;
+			if ( entry != null )
+			{
+				entry.refresh( );
+			}
+		}
+
+		protected boolean isCached( long pos, int len ) throws IOException
+		{
+			ArchiveEntry entry = delegate;
+			if ( entry != null )
+			{
+				return entry.isCached( pos, len );
+			}
+			// the data in the memory is always cached
+			return true;
+		}
+
+		public int read( long pos, byte[] b, int off, int len )
+				throws IOException
+		{
+			ArchiveEntry entry = delegate;
+			if ( entry == null )
+			{
+				synchronized ( MemoryArchiveFile.this )
+				{
+					entry = delegate;
+					if ( entry == null )
+					{
+						return getData( ).read( pos, b, off, len );
+					}
+				}
+			}
+			return entry.read( pos, b, off, len );
+		}
+
+		public void write( long pos, byte[] b, int off, int len )
+				throws IOException
+		{
+			ArchiveEntry entry = delegate;
+			if ( entry == null )
+			{
+				synchronized ( MemoryArchiveFile.this )
+				{
+					entry = delegate;
+					if ( entry == null )
+					{
+						EntryData entryData = getData( );
+						if ( reserve( entryData, pos, len ) )
+						{
+							usedMemory += entryData.write( pos, b, off, len );
+							return;
+						}
+						entry = delegate;
+					}
+				}
+			}
+			entry.write( pos, b, off, len );
+		}
+
+		public void close( ) throws IOException
+		{
+			ArchiveEntry entry = delegate;
+			if ( entry == null )
+			{
+				synchronized ( MemoryArchiveFile.this )
+				{
+					entry = delegate;
+					if ( entry == null )
+					{
+						data = null;
+						openedEntries.remove( this );
+						return;
+					}
+				}
+			}
+			entry.close( );
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * the registry of the Ext2 file systems shared by the read only archives.
+ * 
+ * The file system is keyed by the canonical path, it is shared only if the
+ * modification time and the length of the file are unchanged, so the archive
+ * saved again is opened as a new file system. Each archive gets a handle of
+ * the file system, the header, the tables and the cached blocks are loaded
+ * once for all the handles. The file system is closed by the last handle.
+ */
+class SharedArchiveRegistry
+{
+
+	private static final HashMap<String, SharedFileSystem> fileSystems = new HashMap<String, SharedFileSystem>( );
+
+	/**
+	 * open the read only archive with the shared file system.
+	 * 
+	 * @param fileName
+	 *            the canonical path of the archive.
+	 * @param rf
+	 *            the file opened by the caller, it is used by the new file
+	 *            system or closed if the file system is shared.
+	 */
+	static ArchiveFileV3 open( String fileName, RandomAccessFile rf )
+			throws IOException
+	{
+		File file = new File( fileName );
+		long modified = file.lastModified( );
+		long length = file.length( );
+
+		SharedFileSystem shared;
+		synchronized ( fileSystems )
+		{
+			shared = fileSystems.get( fileName );
+			if ( shared == null || shared.modified != modified
+					|| shared.length != length )
+			{
+				// the changed archive is released by the handles opened
+				// before
+				shared = new SharedFileSystem( fileName, modified, length );
+				fileSystems.put( fileName, shared );
+			}
+			shared.refCount++;
+		}
+
+		boolean opened = false;
+		try
+		{
+			synchronized ( shared )
+			{
+				if ( shared.archive == null )
+				{
+					shared.archive = new ArchiveFileV3( fileName, rf, "r" );
+					rf = null;
+				}
+			}
+			ArchiveFileV3 handle = new SharedArchiveFile( shared );
+			opened = true;
+			return handle;
+		}
+		finally
+		{
+			if ( rf != null )
+			{
+				rf.close( );
+			}
+			if ( !opened )
+			{
+				release( shared );
+			}
+		}
+	}
+
+	private static void release( SharedFileSystem shared ) throws IOException
+	{
+		synchronized ( fileSystems )
+		{
+			if ( --shared.refCount > 0 )
+			{
+				return;
+			}
+			if ( fileSystems.get( shared.fileName ) == shared )
+			{
+				fileSystems.remove( shared.fileName );
+			}
+		}
+		synchronized ( shared )
+		{
+			if ( shared.archive != null )
+			{
+				shared.archive.close( );
+				shared.archive = null;
+			}
+		}
+	}
+
+	private static class SharedFileSystem
+	{
+
+		final String fileName;
+		final long modified;
+		final long length;
+		/**
+		 * the handles of the file system, protected by the registry lock.
+		 */
+		int refCount;
+		ArchiveFileV3 archive;
+		/**
+		 * the max cache size set by the handles.
+		 */
+		long cacheSize = -1;
+
+		SharedFileSystem( String fileName, long modified, long length )
+		{
+			this.fileName = fileName;
+			this.modified = modified;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * the handle of the shared file system, closing it releases the file
+	 * system.
+	 */
+	private static class SharedArchiveFile extends ArchiveFileV3
+	{
+
+		private SharedFileSystem shared;
+
+		SharedArchiveFile( SharedFileSystem shared )
+		{
+			super( shared.archive );
+			this.shared = shared;
+		}
+
+		public synchronized void close( ) throws IOException
+		{
+			if ( shared != null )
+			{
+				SharedFileSystem file = shared;
+				shared = null;
+				fs = null;
+				release( file );
+			}
+		}
+
+		public List<String> listEntries( String namePattern )
+		{
+			return fs.listFiles( namePattern );
+		}
+
+		/**
+		 * the cache is shared by the handles, it is only enlarged.
+		 */
+		public void setCacheSize( long cacheSize )
+		{
+			SharedFileSystem file = shared;
+			if ( file != null )
+			{
+				synchronized ( file )
+				{
+					if ( cacheSize > file.cacheSize )
+					{
+						file.cacheSize = cacheSize;
+						super.setCacheSize( cacheSize );
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the pool of the direct buffers used by the data blocks.
+ * 
+ * The direct memory is allocated in slabs, each slab is sliced into the
+ * buffers of the block size. The buffer of the dropped block is returned to
+ * the pool and reused by the next block, so the block data is neither
+ * allocated in the heap nor garbage collected. The slabs are kept by the pool
+ * once allocated, the pool grows to the max blocks cached at the same time.
+ * 
+ * There is a pool for each block size, it is shared by all the file systems.
+ */
+class BlockBufferPool
+{
+
+	static final int SLAB_SIZE = 1024 * 1024;
+
+	private static final ConcurrentHashMap<Integer, BlockBufferPool> pools = new ConcurrentHashMap<Integer, BlockBufferPool>( );
+
+	private static final byte[] ZEROS = new byte[4096];
+
+	private final int bufferSize;
+	/**
+	 * the buffers sliced from a slab.
+	 */
+	private final int slabBuffers;
+	private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<ByteBuffer>( );
+	private final AtomicInteger slabCount = new AtomicInteger( );
+
+	private BlockBufferPool( int bufferSize )
+	{
+		this.bufferSize = bufferSize;
+		this.slabBuffers = Math.max( 1, SLAB_SIZE / bufferSize );
+	}
+
+	/**
+	 * allocate the buffer of the block.
+	 * 
+	 * @param size
+	 *            the block size.
+	 * @param direct
+	 *            allocate a direct buffer from the pool or a heap buffer.
+	 */
+	static ByteBuffer allocate( int size, boolean direct )
+	{
+		if ( !direct || size == 0 )
+		{
+			return ByteBuffer.wrap( new byte[size] );
+		}
+		return getPool( size ).allocate( );
+	}
+
+	/**
+	 * return the buffer to the pool, the heap buffer is left to the garbage
+	 * collector. The buffer mustn't be used after it is released.
+	 */
+	static void release( ByteBuffer buffer )
+	{
+		if ( buffer.isDirect( ) )
+		{
+			getPool( buffer.capacity( ) ).freeBuffers.offer( buffer );
+		}
+	}
+
+	static BlockBufferPool getPool( int size )
+	{
+		Integer key = Integer.valueOf( size );
+		BlockBufferPool pool = pools.get( key );
+		if ( pool == null )
+		{
+			pool = new BlockBufferPool( size );
+			BlockBufferPool existPool = pools.putIfAbsent( key, pool );
+			if ( existPool != null )
+			{
+				pool = existPool;
+			}
+		}
+		return pool;
+	}
+
+	ByteBuffer allocate( )
+	{
+		ByteBuffer buffer = freeBuffers.poll( );
+		if ( buffer == null )
+		{
+			// the new slab is filled with zero
+			return allocateSlab( );
+		}
+		// the reused buffer is cleared as the new heap buffer
+		buffer.clear( );
+		while ( buffer.hasRemaining( ) )
+		{
+			buffer.put( ZEROS, 0, Math.min( ZEROS.length, buffer.remaining( ) ) );
+		}
+		buffer.clear( );
+		return buffer;
+	}
+
+	/**
+	 * allocate a new slab, one buffer is returned and the others are added to
+	 * the free buffers.
+	 */
+	private ByteBuffer allocateSlab( )
+	{
+		ByteBuffer slab = ByteBuffer.allocateDirect( slabBuffers * bufferSize );
+		slabCount.incrementAndGet( );
+		for ( int i = 1; i < slabBuffers; i++ )
+		{
+			slab.limit( ( i + 1 ) * bufferSize );
+			slab.position( i * bufferSize );
+			freeBuffers.offer( slab.slice( ) );
+		}
+		slab.limit( bufferSize );
+		slab.position( 0 );
+		return slab.slice( );
+	}
+
+	/**
+	 * return the direct memory in bytes allocated by the pool.
+	 */
+	long getAllocatedMemory( )
+	{
+		return (long) slabCount.get( ) * slabBuffers * bufferSize;
+	}
+
+	int getFreeBufferCount( )
+	{
+		return freeBuffers.size( );
+	}
+}
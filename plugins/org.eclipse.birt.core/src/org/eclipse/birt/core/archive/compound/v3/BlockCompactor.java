@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * relocate the used blocks of the file system to the beginning of the file.
+ * 
+ * The used blocks are collected from the used nodes, the blocks which are not
+ * used by any node are free. Each used block is moved to the position of its
+ * rank in the used blocks, so the blocks keep their order and the continuous
+ * blocks are still continuous after the compaction. The ids saved in the FAT
+ * blocks are changed before the FAT blocks are moved, then the blocks are
+ * moved in runs and the ids in the nodes are changed.
+ * 
+ * The compactor reads and writes the file directly, the caller must flush and
+ * clear the cached blocks before it and write the changed nodes after it.
+ */
+class BlockCompactor
+{
+
+	private Ext2FileSystem fs;
+	private NodeTable nodeTable;
+	private int fatBlockSize;
+	private BitSet usedBlocks = new BitSet( );
+	private BitSet fatBlocks = new BitSet( );
+
+	BlockCompactor( Ext2FileSystem fs, NodeTable nodeTable )
+	{
+		this.fs = fs;
+		this.nodeTable = nodeTable;
+		this.fatBlockSize = fs.getBlockSize( ) / 4;
+	}
+
+	/**
+	 * compact the blocks.
+	 * 
+	 * @return the count of the used blocks, the blocks after it are free.
+	 */
+	int compact( ) throws IOException
+	{
+		int nodeCount = nodeTable.getNodeCount( );
+		for ( int i = 0; i < nodeCount; i++ )
+		{
+			Ext2Node node = nodeTable.getNode( i );
+			if ( node.getStatus( ) != Ext2Node.STATUS_UNUSED )
+			{
+				collectBlocks( node );
+			}
+		}
+
+		int[] blockMap = new int[usedBlocks.length( )];
+		int usedCount = 0;
+		boolean moved = false;
+		for ( int i = usedBlocks.nextSetBit( 0 ); i >= 0; i = usedBlocks
+				.nextSetBit( i + 1 ) )
+		{
+			blockMap[i] = usedCount++;
+			moved |= blockMap[i] != i;
+		}
+		if ( !moved )
+		{
+			return usedCount;
+		}
+
+		for ( int i = fatBlocks.nextSetBit( 0 ); i >= 0; i = fatBlocks
+				.nextSetBit( i + 1 ) )
+		{
+			remapFatBlock( i, blockMap );
+		}
+		moveBlocks( blockMap );
+		for ( int i = 0; i < nodeCount; i++ )
+		{
+			Ext2Node node = nodeTable.getNode( i );
+			if ( node.getStatus( ) != Ext2Node.STATUS_UNUSED )
+			{
+				remapNode( node, blockMap );
+			}
+		}
+		return usedCount;
+	}
+
+	private void collectBlocks( Ext2Node node ) throws IOException
+	{
+		if ( node.isExtentLayout( ) )
+		{
+			ExtentList extents = node.getExtents( );
+			extents.load( fs );
+			for ( int i = 0; i < extents.size( ); i++ )
+			{
+				int start = extents.getStart( i );
+				if ( start != -1 )
+				{
+					usedBlocks.set( start, start + extents.getCount( i ) );
+				}
+			}
+			for ( int blockId : extents.getOverflowBlocks( ) )
+			{
+				usedBlocks.set( blockId );
+			}
+			return;
+		}
+		for ( int i = 0; i < Ext2Node.DIRECT_BLOCK_COUNT; i++ )
+		{
+			int blockId = node.getDirectBlock( i );
+			if ( blockId >= 0 )
+			{
+				// the block 0 is used by the header node
+				usedBlocks.set( blockId );
+			}
+		}
+		for ( int level = 0; level < Ext2Node.INDIRECT_BLOCK_COUNT; level++ )
+		{
+			int blockId = node.getIndirectBlock( level );
+			if ( blockId > 0 )
+			{
+				collectFatBlocks( blockId, level );
+			}
+		}
+	}
+
+	/**
+	 * collect the FAT block and the blocks referred by it.
+	 * 
+	 * @param depth
+	 *            the levels of the FAT blocks under it, 0 if it refers to the
+	 *            data blocks.
+	 */
+	private void collectFatBlocks( int blockId, int depth ) throws IOException
+	{
+		usedBlocks.set( blockId );
+		fatBlocks.set( blockId );
+		FatBlock fatBlock = new FatBlock( fs, blockId );
+		fatBlock.refresh( );
+		for ( int i = 0; i < fatBlockSize; i++ )
+		{
+			int nextBlockId = fatBlock.getBlock( i );
+			if ( nextBlockId > 0 )
+			{
+				if ( depth > 0 )
+				{
+					collectFatBlocks( nextBlockId, depth - 1 );
+				}
+				else
+				{
+					usedBlocks.set( nextBlockId );
+				}
+			}
+		}
+	}
+
+	/**
+	 * change the ids saved in the FAT block, it is written in the old
+	 * position and moved with the other blocks.
+	 */
+	private void remapFatBlock( int blockId, int[] blockMap )
+			throws IOException
+	{
+		FatBlock fatBlock = new FatBlock( fs, blockId );
+		fatBlock.refresh( );
+		for ( int i = 0; i < fatBlockSize; i++ )
+		{
+			int nextBlockId = fatBlock.getBlock( i );
+			if ( nextBlockId > 0 )
+			{
+				fatBlock.setBlock( i, blockMap[nextBlockId] );
+			}
+		}
+		fatBlock.flush( );
+	}
+
+	/**
+	 * move the used blocks in the order of the block id. The new position is
+	 * never after the old one, so the blocks are never overwritten before
+	 * they are moved.
+	 */
+	private void moveBlocks( int[] blockMap ) throws IOException
+	{
+		int blockSizeBits = fs.getBlockSizeBits( );
+		int maxCount = Math.max( 1,
+				Ext2FileSystem.MAX_WRITE_SIZE >> blockSizeBits );
+		byte[] buffer = new byte[maxCount << blockSizeBits];
+		int start = usedBlocks.nextSetBit( 0 );
+		while ( start >= 0 )
+		{
+			if ( blockMap[start] == start )
+			{
+				start = usedBlocks.nextSetBit( start + 1 );
+				continue;
+			}
+			int end = Math.min( usedBlocks.nextClearBit( start ), start
+					+ maxCount );
+			int count = end - start;
+			// the last block of the file may be partial
+			Arrays.fill( buffer, 0, count << blockSizeBits, (byte) 0 );
+			fs.readBlocks( start, buffer, 0, count );
+			fs.writeBlocks( blockMap[start], buffer, 0, count );
+			start = usedBlocks.nextSetBit( end );
+		}
+	}
+
+	private void remapNode( Ext2Node node, int[] blockMap )
+	{
+		if ( node.isExtentLayout( ) )
+		{
+			node.getExtents( ).remap( blockMap );
+			return;
+		}
+		for ( int i = 0; i < Ext2Node.DIRECT_BLOCK_COUNT; i++ )
+		{
+			int blockId = node.getDirectBlock( i );
+			if ( blockId >= 0 && blockMap[blockId] != blockId )
+			{
+				node.setDirectBlock( i, blockMap[blockId] );
+			}
+		}
+		for ( int level = 0; level < Ext2Node.INDIRECT_BLOCK_COUNT; level++ )
+		{
+			int blockId = node.getIndirectBlock( level );
+			if ( blockId > 0 && blockMap[blockId] != blockId )
+			{
+				node.setIndirectBlock( level, blockMap[blockId] );
+			}
+		}
+	}
+}
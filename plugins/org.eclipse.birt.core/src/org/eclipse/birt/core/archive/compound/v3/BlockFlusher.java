@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * write-behind flusher of the dirty blocks released by the file system.
+ * 
+ * The dirty blocks released from the file cache are queued instead of being
+ * written by the releasing thread. A background thread writes the blocks
+ * queued for more than MAX_AGE milliseconds in the order of the block id, the
+ * continuous blocks are merged into one write.
+ * 
+ * The blocks are written with the file system locked, the same as the blocks
+ * written by the file system, so the lock order is always file system, block
+ * and then the flusher. If the queued blocks use more memory than the limit,
+ * the releasing thread writes the queued blocks itself until the memory falls
+ * below the half of the limit, or wakes up the flusher to write all the
+ * blocks if it doesn't lock the file system.
+ */
+class BlockFlusher implements Runnable
+{
+
+	protected static Logger logger = Logger.getLogger( BlockFlusher.class
+			.getName( ) );
+
+	/**
+	 * the age in milliseconds of the block to be written by the flusher.
+	 */
+	static final long MAX_AGE = 1000;
+	/**
+	 * the interval in milliseconds to check the aged blocks.
+	 */
+	static final long FLUSH_INTERVAL = 200;
+	/**
+	 * the max blocks written in one lock of the file system.
+	 */
+	static final int BATCH_SIZE = 16;
+
+	private Ext2FileSystem fs;
+	private long maxDirtyMemory;
+	private long dirtyMemory;
+	private TreeMap<Integer, QueuedBlock> blocks = new TreeMap<Integer, QueuedBlock>( );
+	private Thread thread;
+	private volatile boolean stopped;
+	/**
+	 * the exception thrown by the flusher thread, it is thrown again by
+	 * flushAll() until the file system is closed.
+	 */
+	private volatile IOException error;
+
+	BlockFlusher( Ext2FileSystem fs, long maxDirtyMemory )
+	{
+		this.fs = fs;
+		this.maxDirtyMemory = maxDirtyMemory;
+	}
+
+	void start( )
+	{
+		thread = new Thread( this, "Ext2 block flusher: " + fs.getFileName( ) );
+		thread.setDaemon( true );
+		thread.start( );
+	}
+
+	/**
+	 * stop the flusher thread, the queued blocks must be written before it.
+	 */
+	synchronized void stop( )
+	{
+		stopped = true;
+		notifyAll( );
+	}
+
+	synchronized long getDirtyMemory( )
+	{
+		return dirtyMemory;
+	}
+
+	/**
+	 * queue the dirty block.
+	 */
+	void add( Ext2Block block ) throws IOException
+	{
+		synchronized ( this )
+		{
+			Integer blockId = Integer.valueOf( block.getBlockId( ) );
+			QueuedBlock queued = blocks.get( blockId );
+			if ( queued == null )
+			{
+				blocks.put( blockId, new QueuedBlock( block ) );
+				dirtyMemory += block.getMemorySize( );
+			}
+			else if ( queued.block != block )
+			{
+				// the block id is reused, the old content is discarded
+				dirtyMemory += block.getMemorySize( )
+						- queued.block.getMemorySize( );
+				queued.block = block;
+			}
+			if ( dirtyMemory <= maxDirtyMemory )
+			{
+				return;
+			}
+			if ( !Thread.holdsLock( fs ) )
+			{
+				// the file system can't be locked after the cache manager,
+				// wake up the flusher to write all the blocks
+				notifyAll( );
+				return;
+			}
+		}
+		// the flusher falls behind, write the blocks in this thread
+		while ( getDirtyMemory( ) > maxDirtyMemory / 2 )
+		{
+			if ( !flushBlocks( Long.MAX_VALUE ) )
+			{
+				break;
+			}
+		}
+	}
+
+	/**
+	 * write the queued block, it must be called before the block is loaded
+	 * from the disk.
+	 */
+	void flush( int blockId ) throws IOException
+	{
+		QueuedBlock queued;
+		synchronized ( this )
+		{
+			queued = blocks.remove( Integer.valueOf( blockId ) );
+			if ( queued == null )
+			{
+				return;
+			}
+			dirtyMemory -= queued.block.getMemorySize( );
+		}
+		synchronized ( fs )
+		{
+			try
+			{
+				queued.block.flush( );
+			}
+			catch ( IOException ex )
+			{
+				requeue( queued );
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * discard the queued blocks as the blocks are reallocated, the old content
+	 * of the blocks needn't be written.
+	 */
+	synchronized void discard( int start, int count )
+	{
+		if ( blocks.isEmpty( ) )
+		{
+			return;
+		}
+		Map<Integer, QueuedBlock> discarded = blocks.subMap( Integer
+				.valueOf( start ), Integer.valueOf( start + count ) );
+		for ( QueuedBlock queued : discarded.values( ) )
+		{
+			queued.block.clearDirty( );
+			dirtyMemory -= queued.block.getMemorySize( );
+		}
+		discarded.clear( );
+	}
+
+	/**
+	 * write all the queued blocks and wait until they are written.
+	 */
+	void flushAll( ) throws IOException
+	{
+		while ( flushBlocks( Long.MAX_VALUE ) )
+		{
+		}
+		IOException ex = error;
+		if ( ex != null )
+		{
+			throw ex;
+		}
+	}
+
+	/**
+	 * write a batch of the blocks queued before the time.
+	 * 
+	 * @return true if some blocks are written.
+	 */
+	private boolean flushBlocks( long time ) throws IOException
+	{
+		synchronized ( fs )
+		{
+			ArrayList<QueuedBlock> dequeued = new ArrayList<QueuedBlock>(
+					BATCH_SIZE );
+			ArrayList<Ext2Block> flushed = new ArrayList<Ext2Block>( BATCH_SIZE );
+			synchronized ( this )
+			{
+				Iterator<Map.Entry<Integer, QueuedBlock>> iter = blocks
+						.entrySet( ).iterator( );
+				while ( iter.hasNext( ) && flushed.size( ) < BATCH_SIZE )
+				{
+					QueuedBlock queued = iter.next( ).getValue( );
+					if ( queued.time <= time )
+					{
+						iter.remove( );
+						dirtyMemory -= queued.block.getMemorySize( );
+						dequeued.add( queued );
+						flushed.add( queued.block );
+					}
+				}
+			}
+			try
+			{
+				fs.writeBlocks( flushed );
+			}
+			catch ( IOException ex )
+			{
+				for ( QueuedBlock queued : dequeued )
+				{
+					requeue( queued );
+				}
+				throw ex;
+			}
+			return !flushed.isEmpty( );
+		}
+	}
+
+	/**
+	 * queue the block again if it isn't written, unless the block id has been
+	 * queued with the new content.
+	 */
+	private synchronized void requeue( QueuedBlock queued )
+	{
+		if ( !queued.block.isDirty( ) )
+		{
+			return;
+		}
+		Integer blockId = Integer.valueOf( queued.block.getBlockId( ) );
+		if ( !blocks.containsKey( blockId ) )
+		{
+			blocks.put( blockId, queued );
+			dirtyMemory += queued.block.getMemorySize( );
+		}
+	}
+
+	public void run( )
+	{
+		while ( !stopped )
+		{
+			synchronized ( this )
+			{
+				try
+				{
+					wait( FLUSH_INTERVAL );
+				}
+				catch ( InterruptedException ex )
+				{
+					return;
+				}
+				if ( stopped )
+				{
+					return;
+				}
+			}
+			try
+			{
+				long time = System.currentTimeMillis( ) - MAX_AGE;
+				if ( getDirtyMemory( ) > maxDirtyMemory )
+				{
+					time = Long.MAX_VALUE;
+				}
+				while ( !stopped && flushBlocks( time ) )
+				{
+				}
+			}
+			catch ( IOException ex )
+			{
+				logger.log( Level.WARNING, ex.getMessage( ), ex );
+				error = ex;
+			}
+		}
+	}
+
+	private static class QueuedBlock
+	{
+
+		Ext2Block block;
+		long time;
+
+		QueuedBlock( Ext2Block block )
+		{
+			this.block = block;
+			this.time = System.currentTimeMillis( );
+		}
+	}
+}
@@ -0,0 +1,495 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.birt.core.archive.ArchiveUtil;
+import org.eclipse.birt.core.i18n.CoreMessages;
+import org.eclipse.birt.core.i18n.ResourceConstants;
+
+/**
+ * the file saves the data in compressed frames.
+ * 
+ * The data is divided into frames of FRAME_SIZE bytes, each frame is
+ * compressed by the deflater separately, so any position can be read by
+ * inflating only one frame. The node of the file contains:
+ * 
+ * header: magic, frame size, length of the data, offset of the frame index,
+ * frame count.
+ * 
+ * frames: the compressed frames. A frame is saved uncompressed if it can't be
+ * compressed.
+ * 
+ * frame index: the offset and the size of each frame. The size is negative if
+ * the frame is saved uncompressed, the offset is -1 if the frame has never
+ * been written.
+ * 
+ * The changed frame is saved in its old place if the compressed data fits,
+ * otherwise it is appended to the end. The frame index is saved when the file
+ * is closed, so the data written by a file can only be read by the files
+ * opened after it is closed.
+ */
+class CompressedFile extends Ext2File
+{
+
+	static final int MAGIC = 0x45325A46;
+	static final int HEADER_SIZE = 28;
+	static final int FRAME_SIZE = 64 * 1024;
+
+	private Ext2FileSystem fileSystem;
+	private boolean closed;
+
+	private int frameSize;
+	/**
+	 * the length of the uncompressed data
+	 */
+	private long dataLength;
+	/**
+	 * the end of the saved frames, the new frame is appended here.
+	 */
+	private long frameEnd;
+	private int frameCount;
+	private long[] frameOffsets;
+	private int[] frameSizes;
+	private boolean indexDirty;
+
+	/**
+	 * the position of the uncompressed data
+	 */
+	private long dataPosition;
+	/**
+	 * the frame loaded into the buffer, -1 if no frame is loaded.
+	 */
+	private int frameIndex;
+	private byte[] frame;
+	private boolean frameDirty;
+	private byte[] compressed;
+
+	private Deflater deflater;
+	private Inflater inflater;
+
+	CompressedFile( Ext2FileSystem fs, Ext2Entry entry, Ext2Node node )
+			throws IOException
+	{
+		super( fs, entry, node, true );
+		this.fileSystem = fs;
+		this.frameIndex = -1;
+		if ( super.length( ) >= HEADER_SIZE )
+		{
+			readIndex( );
+		}
+		else
+		{
+			initIndex( );
+		}
+		this.frame = new byte[frameSize];
+		this.compressed = new byte[frameSize];
+		this.inflater = new Inflater( );
+	}
+
+	private void initIndex( )
+	{
+		frameSize = FRAME_SIZE;
+		dataLength = 0;
+		frameEnd = HEADER_SIZE;
+		frameCount = 0;
+		frameOffsets = new long[4];
+		frameSizes = new int[4];
+		indexDirty = true;
+	}
+
+	private void readIndex( ) throws IOException
+	{
+		byte[] header = new byte[HEADER_SIZE];
+		super.seek( 0 );
+		readFully( header, 0, HEADER_SIZE );
+		if ( ArchiveUtil.bytesToInteger( header, 0 ) != MAGIC )
+		{
+			throw new IOException( CoreMessages.getFormattedString(
+					ResourceConstants.INVALID_COMPRESSED_STREAM,
+					new Object[]{getName( )} ) );
+		}
+		frameSize = ArchiveUtil.bytesToInteger( header, 4 );
+		dataLength = ArchiveUtil.bytesToLong( header, 8 );
+		long indexOffset = ArchiveUtil.bytesToLong( header, 16 );
+		frameCount = ArchiveUtil.bytesToInteger( header, 24 );
+
+		frameOffsets = new long[Math.max( frameCount, 4 )];
+		frameSizes = new int[frameOffsets.length];
+		byte[] index = new byte[frameCount * 12];
+		super.seek( indexOffset );
+		readFully( index, 0, index.length );
+		for ( int i = 0; i < frameCount; i++ )
+		{
+			frameOffsets[i] = ArchiveUtil.bytesToLong( index, i * 12 );
+			frameSizes[i] = ArchiveUtil.bytesToInteger( index, i * 12 + 8 );
+		}
+		// the index is saved again at the end when the file is closed
+		frameEnd = indexOffset;
+		indexDirty = false;
+	}
+
+	private void writeIndex( ) throws IOException
+	{
+		byte[] index = new byte[frameCount * 12];
+		for ( int i = 0; i < frameCount; i++ )
+		{
+			ArchiveUtil.longToBytes( frameOffsets[i], index, i * 12 );
+			ArchiveUtil.integerToBytes( frameSizes[i], index, i * 12 + 8 );
+		}
+		super.seek( frameEnd );
+		super.write( index, 0, index.length );
+		super.setLength( frameEnd + index.length );
+
+		byte[] header = new byte[HEADER_SIZE];
+		ArchiveUtil.integerToBytes( MAGIC, header, 0 );
+		ArchiveUtil.integerToBytes( frameSize, header, 4 );
+		ArchiveUtil.longToBytes( dataLength, header, 8 );
+		ArchiveUtil.longToBytes( frameEnd, header, 16 );
+		ArchiveUtil.integerToBytes( frameCount, header, 24 );
+		super.seek( 0 );
+		super.write( header, 0, HEADER_SIZE );
+		indexDirty = false;
+	}
+
+	private void readFully( byte[] buffer, int off, int size )
+			throws IOException
+	{
+		while ( size > 0 )
+		{
+			int readSize = super.read( buffer, off, size );
+			if ( readSize <= 0 )
+			{
+				throw new IOException( CoreMessages.getFormattedString(
+						ResourceConstants.INVALID_COMPRESSED_STREAM,
+						new Object[]{getName( )} ) );
+			}
+			off += readSize;
+			size -= readSize;
+		}
+	}
+
+	public void close( ) throws IOException
+	{
+		if ( closed )
+		{
+			return;
+		}
+		try
+		{
+			if ( !fileSystem.isReadOnly( ) )
+			{
+				flushFrame( );
+				if ( indexDirty )
+				{
+					writeIndex( );
+				}
+			}
+		}
+		finally
+		{
+			closed = true;
+			inflater.end( );
+			if ( deflater != null )
+			{
+				deflater.end( );
+			}
+			super.close( );
+		}
+	}
+
+	/**
+	 * read the index of the new node, the index is only saved when the file
+	 * is closed by the writer.
+	 */
+	public boolean refresh( ) throws IOException
+	{
+		if ( closed || !super.refresh( ) )
+		{
+			return false;
+		}
+		frameIndex = -1;
+		if ( super.length( ) >= HEADER_SIZE )
+		{
+			readIndex( );
+		}
+		else
+		{
+			initIndex( );
+		}
+		if ( frame.length < frameSize )
+		{
+			frame = new byte[frameSize];
+			compressed = new byte[frameSize];
+		}
+		return true;
+	}
+
+	public long length( ) throws IOException
+	{
+		return dataLength;
+	}
+
+	public void setLength( long length ) throws IOException
+	{
+		ensureWritable( );
+		if ( length == 0 )
+		{
+			// drop all the frames
+			initIndex( );
+			frameIndex = -1;
+			frameDirty = false;
+			super.setLength( 0 );
+		}
+		else if ( length < dataLength )
+		{
+			int count = (int) ( ( length + frameSize - 1 ) / frameSize );
+			if ( count < frameCount )
+			{
+				frameCount = count;
+			}
+			if ( frameIndex >= count )
+			{
+				frameIndex = -1;
+				frameDirty = false;
+			}
+		}
+		dataLength = length;
+		indexDirty = true;
+		if ( dataPosition > length )
+		{
+			dataPosition = length;
+		}
+	}
+
+	public void seek( long position ) throws IOException
+	{
+		this.dataPosition = position;
+	}
+
+	public long getPointer( ) throws IOException
+	{
+		return dataPosition;
+	}
+
+	public int read( byte[] buffer, int off, int size ) throws IOException
+	{
+		ensureOpened( );
+		// the cached frame may be read without the blocks
+		ensureNotRemoved( );
+		if ( size == 0 )
+		{
+			return 0;
+		}
+		if ( dataPosition >= dataLength )
+		{
+			return -1;
+		}
+		if ( dataPosition + size > dataLength )
+		{
+			size = (int) ( dataLength - dataPosition );
+		}
+		int remain = size;
+		while ( remain > 0 )
+		{
+			loadFrame( (int) ( dataPosition / frameSize ) );
+			int frameOff = (int) ( dataPosition % frameSize );
+			int readSize = Math.min( remain, frameSize - frameOff );
+			System.arraycopy( frame, frameOff, buffer, off, readSize );
+			off += readSize;
+			remain -= readSize;
+			dataPosition += readSize;
+		}
+		return size;
+	}
+
+	public void write( byte[] buffer, int off, int size ) throws IOException
+	{
+		ensureWritable( );
+		while ( size > 0 )
+		{
+			loadFrame( (int) ( dataPosition / frameSize ) );
+			int frameOff = (int) ( dataPosition % frameSize );
+			int writeSize = Math.min( size, frameSize - frameOff );
+			System.arraycopy( buffer, off, frame, frameOff, writeSize );
+			frameDirty = true;
+			off += writeSize;
+			size -= writeSize;
+			dataPosition += writeSize;
+			if ( dataPosition > dataLength )
+			{
+				dataLength = dataPosition;
+				indexDirty = true;
+			}
+		}
+	}
+
+	private void ensureOpened( ) throws IOException
+	{
+		if ( closed )
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+		}
+	}
+
+	private void ensureWritable( ) throws IOException
+	{
+		ensureOpened( );
+		if ( fileSystem.isReadOnly( ) )
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_IN_READONLY_MODE ) );
+		}
+	}
+
+	private void loadFrame( int index ) throws IOException
+	{
+		if ( frameIndex == index )
+		{
+			return;
+		}
+		flushFrame( );
+		frameIndex = index;
+		if ( index >= frameCount || frameOffsets[index] == -1 )
+		{
+			// the frame has never been written
+			fill( frame, 0, frameSize );
+			return;
+		}
+		int validSize = getFrameLength( index );
+		int size = frameSizes[index];
+		super.seek( frameOffsets[index] );
+		if ( size < 0 )
+		{
+			readFully( frame, 0, -size );
+			fill( frame, -size, frameSize );
+			return;
+		}
+		readFully( compressed, 0, size );
+		inflater.reset( );
+		inflater.setInput( compressed, 0, size );
+		try
+		{
+			int inflated = 0;
+			while ( inflated < validSize && !inflater.finished( ) )
+			{
+				int count = inflater.inflate( frame, inflated, validSize
+						- inflated );
+				if ( count == 0 && inflater.needsInput( ) )
+				{
+					break;
+				}
+				inflated += count;
+			}
+			fill( frame, inflated, frameSize );
+		}
+		catch ( DataFormatException ex )
+		{
+			IOException ioex = new IOException( CoreMessages
+					.getFormattedString(
+							ResourceConstants.INVALID_COMPRESSED_STREAM,
+							new Object[]{getName( )} ) );
+			ioex.initCause( ex );
+			throw ioex;
+		}
+	}
+
+	/**
+	 * return the length of the data in the frame.
+	 */
+	private int getFrameLength( int index )
+	{
+		long remain = dataLength - (long) index * frameSize;
+		return (int) Math.min( frameSize, Math.max( remain, 0 ) );
+	}
+
+	private void flushFrame( ) throws IOException
+	{
+		if ( !frameDirty )
+		{
+			return;
+		}
+		frameDirty = false;
+		int index = frameIndex;
+		int length = getFrameLength( index );
+		if ( deflater == null )
+		{
+			deflater = new Deflater( Deflater.BEST_SPEED );
+		}
+		deflater.reset( );
+		deflater.setInput( frame, 0, length );
+		deflater.finish( );
+		int size = 0;
+		while ( !deflater.finished( ) && size < compressed.length )
+		{
+			size += deflater.deflate( compressed, size, compressed.length
+					- size );
+		}
+		byte[] data = compressed;
+		if ( !deflater.finished( ) || size >= length )
+		{
+			// the frame can't be compressed, save it directly
+			data = frame;
+			size = length;
+		}
+		int savedSize = data == frame ? -size : size;
+
+		ensureFrameCapacity( index + 1 );
+		long offset = frameOffsets[index];
+		if ( offset == -1 || Math.abs( frameSizes[index] ) < size )
+		{
+			offset = frameEnd;
+			frameEnd += size;
+		}
+		super.seek( offset );
+		super.write( data, 0, size );
+		frameOffsets[index] = offset;
+		frameSizes[index] = savedSize;
+		indexDirty = true;
+	}
+
+	private void ensureFrameCapacity( int count )
+	{
+		if ( count > frameOffsets.length )
+		{
+			int length = Math.max( count, frameOffsets.length * 2 );
+			long[] offsets = new long[length];
+			int[] sizes = new int[length];
+			System.arraycopy( frameOffsets, 0, offsets, 0, frameCount );
+			System.arraycopy( frameSizes, 0, sizes, 0, frameCount );
+			frameOffsets = offsets;
+			frameSizes = sizes;
+		}
+		for ( int i = frameCount; i < count; i++ )
+		{
+			frameOffsets[i] = -1;
+			frameSizes[i] = 0;
+		}
+		if ( count > frameCount )
+		{
+			frameCount = count;
+		}
+	}
+
+	private static void fill( byte[] buffer, int from, int to )
+	{
+		for ( int i = from; i < to; i++ )
+		{
+			buffer[i] = 0;
+		}
+	}
+}
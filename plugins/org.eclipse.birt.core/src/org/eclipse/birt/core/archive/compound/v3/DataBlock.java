@@ -12,6 +12,7 @@
 package org.eclipse.birt.core.archive.compound.v3;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.eclipse.birt.core.i18n.CoreMessages;
 import org.eclipse.birt.core.i18n.ResourceConstants;
@@ -19,9 +20,23 @@ import org.eclipse.birt.core.i18n.ResourceConstants;
 public class DataBlock extends Ext2Block
 {
 
-	private byte[] buffer;
+	/**
+	 * the data of the block, it is a heap buffer or a direct buffer got from
+	 * the BlockBufferPool. The position is moved by the synchronized methods,
+	 * the limit is always the capacity.
+	 */
+	private ByteBuffer buffer;
+	/**
+	 * the block is dropped by the cache before the changes are written, the
+	 * buffer is released once the block is flushed.
+	 */
+	private boolean disposed;
 	private int dirtyStart;
 	private int dirtyEnd;
+	/**
+	 * if the block is loaded by the read ahead and hasn't been read yet.
+	 */
+	volatile boolean readAhead;
 
 	DataBlock( Ext2FileSystem fs )
 	{
@@ -31,7 +46,8 @@ public class DataBlock extends Ext2Block
 	DataBlock( Ext2FileSystem fs, int blockId )
 	{
 		super( fs, blockId );
-		this.buffer = new byte[BLOCK_SIZE];
+		this.buffer = BlockBufferPool.allocate( fs == null ? 0 : fs
+				.getBlockSize( ), fs != null && fs.isDirectBuffer( ) );
 		this.dirtyStart = -1;
 		this.dirtyEnd = -1;
 	}
@@ -40,12 +56,13 @@ public class DataBlock extends Ext2Block
 			throws IOException
 	{
 		assert ( b != null );
-		assert ( tgt + len <= buffer.length );
+		assert ( tgt + len <= buffer.capacity( ) );
 		assert ( off + len <= b.length );
 
 		if ( len > 0 )
 		{
-			System.arraycopy( b, off, buffer, tgt, len );
+			buffer.position( tgt );
+			buffer.put( b, off, len );
 			if ( dirtyStart == -1 )
 			{
 				dirtyStart = tgt;
@@ -71,19 +88,60 @@ public class DataBlock extends Ext2Block
 	{
 		assert ( b != null );
 		assert ( off + len <= b.length );
-		assert ( src + len <= buffer.length );
-		System.arraycopy( buffer, src, b, off, len );
+		assert ( src + len <= buffer.capacity( ) );
+		buffer.position( src );
+		buffer.get( b, off, len );
 		return len;
 	}
 
+	/**
+	 * set the data of the block read from the disk.
+	 */
+	synchronized void setData( byte[] data, int offset )
+	{
+		buffer.position( 0 );
+		buffer.put( data, offset, buffer.capacity( ) );
+		dirtyStart = dirtyEnd = -1;
+	}
+
 	public void refresh( ) throws IOException
 	{
 		assert blockId != -1;
-		fs.readBlock( blockId, buffer, 0, BLOCK_SIZE );
+		fs.readBlock( blockId, buffer );
 		dirtyStart = dirtyEnd = -1;
 	}
 
-	public void flush( ) throws IOException
+	synchronized boolean isDirty( )
+	{
+		return dirtyStart != dirtyEnd;
+	}
+
+	synchronized void clearDirty( )
+	{
+		dirtyStart = dirtyEnd = -1;
+		if ( disposed )
+		{
+			releaseBuffer( );
+		}
+	}
+
+	synchronized ByteBuffer getDirtyData( boolean toStart, boolean toEnd )
+	{
+		if ( dirtyStart == dirtyEnd )
+		{
+			return null;
+		}
+		// the buffer always contains the whole block, so the data around the
+		// changed range can be written too.
+		int start = toStart ? 0 : dirtyStart;
+		int end = toEnd ? buffer.capacity( ) : dirtyEnd;
+		byte[] data = new byte[end - start];
+		buffer.position( start );
+		buffer.get( data );
+		return ByteBuffer.wrap( data );
+	}
+
+	public synchronized void flush( ) throws IOException
 	{
 		if ( blockId == -1 )
 		{
@@ -92,8 +150,43 @@ public class DataBlock extends Ext2Block
 		}
 		if ( dirtyStart != dirtyEnd )
 		{
-			fs.writeBlock( blockId, buffer, dirtyStart, dirtyEnd - dirtyStart );
+			ByteBuffer data = buffer.duplicate( );
+			data.limit( dirtyEnd );
+			data.position( dirtyStart );
+			fs.writeBlock( blockId, dirtyStart, data );
 			dirtyStart = dirtyEnd = -1;
+			if ( disposed )
+			{
+				releaseBuffer( );
+			}
+		}
+	}
+
+	/**
+	 * return the direct buffer to the pool once the block is dropped by the
+	 * cache. The dirty block is still referenced by the write-behind flusher,
+	 * its buffer is released after it is written.
+	 */
+	protected synchronized void dispose( )
+	{
+		if ( buffer == null || !buffer.isDirect( ) )
+		{
+			return;
+		}
+		if ( dirtyStart != dirtyEnd )
+		{
+			disposed = true;
+			return;
+		}
+		releaseBuffer( );
+	}
+
+	private void releaseBuffer( )
+	{
+		if ( buffer.isDirect( ) )
+		{
+			BlockBufferPool.release( buffer );
+			buffer = null;
 		}
 	}
 
@@ -0,0 +1,512 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.eclipse.birt.core.archive.ArchiveUtil;
+import org.eclipse.birt.core.i18n.CoreMessages;
+import org.eclipse.birt.core.i18n.ResourceConstants;
+
+/**
+ * the entry table saved as a linear hash table in pages.
+ * 
+ * The entries are hashed into the buckets, each bucket is saved in a chain of
+ * pages. Only the header and the bucket directory are read when the table is
+ * opened, a bucket is read when an entry in it is accessed. Only the changed
+ * buckets are written when the table is saved.
+ * 
+ * The table grows by linear hashing: once the average entries of the buckets
+ * exceed MAX_BUCKET_LOAD, the bucket at the split pointer is split into two,
+ * so the table never rehashes all the entries at once.
+ * 
+ * layout of the page: next page id, data size, data.
+ * 
+ * page 0: magic, page size, level, split pointer, entry count, page count,
+ * free page, first page of the directory.
+ * 
+ * directory: the first page of each bucket, -1 if the bucket is empty and
+ * has never been saved.
+ * 
+ * bucket: the entries of the bucket, each is saved as the name and the inode.
+ */
+class EntryIndex
+{
+
+	static final int MAGIC = 0x45325449;
+	static final int PAGE_SIZE = 4096;
+	static final int PAGE_HEADER_SIZE = 8;
+	static final int PAGE_DATA_SIZE = PAGE_SIZE - PAGE_HEADER_SIZE;
+	static final int INITIAL_LEVEL = 4;
+	static final int MAX_BUCKET_LOAD = 48;
+
+	private Ext2FileSystem fs;
+	private int level;
+	private int splitPointer;
+	private int entryCount;
+	private int pageCount;
+	private int freePage;
+	private int directoryPage;
+	/**
+	 * the first page of each bucket.
+	 */
+	private int[] directory;
+	private int bucketCount;
+	private boolean headerDirty;
+	private boolean directoryDirty;
+	private HashMap<Integer, Bucket> buckets = new HashMap<Integer, Bucket>( );
+
+	EntryIndex( Ext2FileSystem fs )
+	{
+		this.fs = fs;
+	}
+
+	/**
+	 * create an empty table, the old content of the table is discarded.
+	 */
+	void create( ) throws IOException
+	{
+		level = INITIAL_LEVEL;
+		splitPointer = 0;
+		entryCount = 0;
+		// page 0 is the header
+		pageCount = 1;
+		freePage = -1;
+		directoryPage = -1;
+		bucketCount = 1 << level;
+		directory = new int[bucketCount];
+		for ( int i = 0; i < bucketCount; i++ )
+		{
+			directory[i] = -1;
+		}
+		buckets.clear( );
+		headerDirty = true;
+		directoryDirty = true;
+
+		Ext2File file = openFile( );
+		try
+		{
+			file.setLength( 0 );
+		}
+		finally
+		{
+			file.close( );
+		}
+	}
+
+	void read( ) throws IOException
+	{
+		Ext2File file = openFile( );
+		try
+		{
+			byte[] header = new byte[32];
+			file.seek( 0 );
+			readFully( file, header, 0, header.length );
+			if ( ArchiveUtil.bytesToInteger( header, 0 ) != MAGIC
+					|| ArchiveUtil.bytesToInteger( header, 4 ) != PAGE_SIZE )
+			{
+				throw new IOException( CoreMessages.getFormattedString(
+						ResourceConstants.INVALID_MAGIC_TAG,
+						new Object[]{ArchiveUtil.bytesToInteger( header, 0 )} ) );
+			}
+			level = ArchiveUtil.bytesToInteger( header, 8 );
+			splitPointer = ArchiveUtil.bytesToInteger( header, 12 );
+			entryCount = ArchiveUtil.bytesToInteger( header, 16 );
+			pageCount = ArchiveUtil.bytesToInteger( header, 20 );
+			freePage = ArchiveUtil.bytesToInteger( header, 24 );
+			directoryPage = ArchiveUtil.bytesToInteger( header, 28 );
+			bucketCount = ( 1 << level ) + splitPointer;
+
+			byte[] bytes = readChain( file, directoryPage );
+			directory = new int[Math.max( bucketCount, 16 )];
+			for ( int i = 0; i < bucketCount; i++ )
+			{
+				directory[i] = ArchiveUtil.bytesToInteger( bytes, i * 4 );
+			}
+		}
+		finally
+		{
+			file.close( );
+		}
+		buckets.clear( );
+		headerDirty = false;
+		directoryDirty = false;
+	}
+
+	/**
+	 * write the changed buckets, the directory and the header.
+	 */
+	void write( ) throws IOException
+	{
+		if ( !headerDirty )
+		{
+			return;
+		}
+		Ext2File file = openFile( );
+		try
+		{
+			for ( Bucket bucket : buckets.values( ) )
+			{
+				if ( bucket.dirty )
+				{
+					directory[bucket.index] = writeChain( file,
+							directory[bucket.index], bucket.toBytes( ) );
+					bucket.dirty = false;
+					directoryDirty = true;
+				}
+			}
+			if ( directoryDirty )
+			{
+				byte[] bytes = new byte[bucketCount * 4];
+				for ( int i = 0; i < bucketCount; i++ )
+				{
+					ArchiveUtil.integerToBytes( directory[i], bytes, i * 4 );
+				}
+				directoryPage = writeChain( file, directoryPage, bytes );
+				directoryDirty = false;
+			}
+			byte[] header = new byte[32];
+			ArchiveUtil.integerToBytes( MAGIC, header, 0 );
+			ArchiveUtil.integerToBytes( PAGE_SIZE, header, 4 );
+			ArchiveUtil.integerToBytes( level, header, 8 );
+			ArchiveUtil.integerToBytes( splitPointer, header, 12 );
+			ArchiveUtil.integerToBytes( entryCount, header, 16 );
+			ArchiveUtil.integerToBytes( pageCount, header, 20 );
+			ArchiveUtil.integerToBytes( freePage, header, 24 );
+			ArchiveUtil.integerToBytes( directoryPage, header, 28 );
+			file.seek( 0 );
+			file.write( header, 0, header.length );
+			headerDirty = false;
+		}
+		finally
+		{
+			file.close( );
+		}
+	}
+
+	Ext2Entry getEntry( String name ) throws IOException
+	{
+		return getBucket( getBucketIndex( name ) ).entries.get( name );
+	}
+
+	Ext2Entry removeEntry( String name ) throws IOException
+	{
+		Bucket bucket = getBucket( getBucketIndex( name ) );
+		Ext2Entry entry = bucket.entries.remove( name );
+		if ( entry != null )
+		{
+			bucket.dirty = true;
+			entryCount--;
+			headerDirty = true;
+		}
+		return entry;
+	}
+
+	void addEntry( Ext2Entry entry ) throws IOException
+	{
+		Bucket bucket = getBucket( getBucketIndex( entry.name ) );
+		if ( bucket.entries.put( entry.name, entry ) == null )
+		{
+			entryCount++;
+		}
+		bucket.dirty = true;
+		headerDirty = true;
+		if ( entryCount > bucketCount * MAX_BUCKET_LOAD )
+		{
+			split( );
+		}
+	}
+
+	/**
+	 * list all the entries, all the buckets are loaded.
+	 */
+	ArrayList<Ext2Entry> listEntries( ) throws IOException
+	{
+		ArrayList<Ext2Entry> entries = new ArrayList<Ext2Entry>( entryCount );
+		for ( int i = 0; i < bucketCount; i++ )
+		{
+			entries.addAll( getBucket( i ).entries.values( ) );
+		}
+		return entries;
+	}
+
+	/**
+	 * list the entries of the buckets which have been read.
+	 */
+	ArrayList<Ext2Entry> listLoadedEntries( )
+	{
+		ArrayList<Ext2Entry> entries = new ArrayList<Ext2Entry>( );
+		for ( Bucket bucket : buckets.values( ) )
+		{
+			entries.addAll( bucket.entries.values( ) );
+		}
+		return entries;
+	}
+
+	private static int hash( String name )
+	{
+		int h = name.hashCode( );
+		return h ^ ( h >>> 16 );
+	}
+
+	private int getBucketIndex( String name )
+	{
+		int h = hash( name );
+		int index = h & ( ( 1 << level ) - 1 );
+		if ( index < splitPointer )
+		{
+			index = h & ( ( 2 << level ) - 1 );
+		}
+		return index;
+	}
+
+	/**
+	 * split the bucket at the split pointer into itself and a new bucket.
+	 */
+	private void split( ) throws IOException
+	{
+		Bucket bucket = getBucket( splitPointer );
+		int newIndex = splitPointer + ( 1 << level );
+		Bucket newBucket = new Bucket( newIndex );
+		int mask = ( 2 << level ) - 1;
+		Iterator<Ext2Entry> iter = bucket.entries.values( ).iterator( );
+		while ( iter.hasNext( ) )
+		{
+			Ext2Entry entry = iter.next( );
+			if ( ( hash( entry.name ) & mask ) == newIndex )
+			{
+				iter.remove( );
+				newBucket.entries.put( entry.name, entry );
+			}
+		}
+		bucket.dirty = true;
+		newBucket.dirty = true;
+
+		if ( bucketCount == directory.length )
+		{
+			int[] newDirectory = new int[directory.length * 2];
+			System.arraycopy( directory, 0, newDirectory, 0, bucketCount );
+			directory = newDirectory;
+		}
+		directory[bucketCount++] = -1;
+		buckets.put( Integer.valueOf( newIndex ), newBucket );
+		directoryDirty = true;
+		headerDirty = true;
+
+		splitPointer++;
+		if ( splitPointer == ( 1 << level ) )
+		{
+			level++;
+			splitPointer = 0;
+		}
+	}
+
+	private Bucket getBucket( int index ) throws IOException
+	{
+		Integer key = Integer.valueOf( index );
+		Bucket bucket = buckets.get( key );
+		if ( bucket == null )
+		{
+			bucket = new Bucket( index );
+			int page = directory[index];
+			if ( page != -1 )
+			{
+				Ext2File file = openFile( );
+				try
+				{
+					bucket.read( readChain( file, page ) );
+				}
+				finally
+				{
+					file.close( );
+				}
+			}
+			buckets.put( key, bucket );
+		}
+		return bucket;
+	}
+
+	private Ext2File openFile( ) throws IOException
+	{
+		return new Ext2File( fs, NodeTable.INODE_ENTRY_TABLE, false );
+	}
+
+	/**
+	 * read the data saved in the chain of pages.
+	 */
+	private byte[] readChain( Ext2File file, int page ) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream( );
+		byte[] bytes = new byte[PAGE_SIZE];
+		while ( page != -1 )
+		{
+			file.seek( (long) page * PAGE_SIZE );
+			readFully( file, bytes, 0, PAGE_SIZE );
+			int size = ArchiveUtil.bytesToInteger( bytes, 4 );
+			buffer.write( bytes, PAGE_HEADER_SIZE, size );
+			page = ArchiveUtil.bytesToInteger( bytes, 0 );
+		}
+		return buffer.toByteArray( );
+	}
+
+	/**
+	 * write the data into the chain of pages, the pages of the old chain are
+	 * reused and the unused pages are released.
+	 * 
+	 * @return the first page of the chain.
+	 */
+	private int writeChain( Ext2File file, int firstPage, byte[] data )
+			throws IOException
+	{
+		int page = firstPage == -1 ? allocPage( file ) : firstPage;
+		int first = page;
+		byte[] bytes = new byte[PAGE_SIZE];
+		int offset = 0;
+		while ( true )
+		{
+			int size = Math.min( data.length - offset, PAGE_DATA_SIZE );
+			int next = getNextPage( file, page );
+			if ( offset + size < data.length )
+			{
+				if ( next == -1 )
+				{
+					next = allocPage( file );
+				}
+			}
+			else
+			{
+				releaseChain( file, next );
+				next = -1;
+			}
+			ArchiveUtil.integerToBytes( next, bytes, 0 );
+			ArchiveUtil.integerToBytes( size, bytes, 4 );
+			System.arraycopy( data, offset, bytes, PAGE_HEADER_SIZE, size );
+			file.seek( (long) page * PAGE_SIZE );
+			file.write( bytes, 0, PAGE_SIZE );
+			offset += size;
+			if ( next == -1 )
+			{
+				return first;
+			}
+			page = next;
+		}
+	}
+
+	private int getNextPage( Ext2File file, int page ) throws IOException
+	{
+		byte[] bytes = new byte[4];
+		file.seek( (long) page * PAGE_SIZE );
+		readFully( file, bytes, 0, 4 );
+		return ArchiveUtil.bytesToInteger( bytes, 0 );
+	}
+
+	private int allocPage( Ext2File file ) throws IOException
+	{
+		headerDirty = true;
+		int page;
+		if ( freePage != -1 )
+		{
+			page = freePage;
+			freePage = getNextPage( file, page );
+		}
+		else
+		{
+			page = pageCount++;
+		}
+		// the page is linked into a chain by the caller
+		byte[] bytes = new byte[PAGE_HEADER_SIZE];
+		ArchiveUtil.integerToBytes( -1, bytes, 0 );
+		file.seek( (long) page * PAGE_SIZE );
+		file.write( bytes, 0, bytes.length );
+		return page;
+	}
+
+	/**
+	 * add the pages of the chain into the free page list.
+	 */
+	private void releaseChain( Ext2File file, int page ) throws IOException
+	{
+		byte[] bytes = new byte[PAGE_HEADER_SIZE];
+		while ( page != -1 )
+		{
+			int next = getNextPage( file, page );
+			ArchiveUtil.integerToBytes( freePage, bytes, 0 );
+			file.seek( (long) page * PAGE_SIZE );
+			file.write( bytes, 0, bytes.length );
+			freePage = page;
+			headerDirty = true;
+			page = next;
+		}
+	}
+
+	private static void readFully( Ext2File file, byte[] bytes, int off,
+			int size ) throws IOException
+	{
+		while ( size > 0 )
+		{
+			int readSize = file.read( bytes, off, size );
+			if ( readSize <= 0 )
+			{
+				throw new IOException( CoreMessages.getFormattedString(
+						ResourceConstants.INVALID_INDEX, new Object[]{off} ) );
+			}
+			off += readSize;
+			size -= readSize;
+		}
+	}
+
+	private static class Bucket
+	{
+
+		int index;
+		HashMap<String, Ext2Entry> entries = new HashMap<String, Ext2Entry>( );
+		boolean dirty;
+
+		Bucket( int index )
+		{
+			this.index = index;
+		}
+
+		void read( byte[] bytes ) throws IOException
+		{
+			DataInputStream in = new DataInputStream( new ByteArrayInputStream(
+					bytes ) );
+			int count = in.readInt( );
+			for ( int i = 0; i < count; i++ )
+			{
+				String name = in.readUTF( );
+				int inode = in.readInt( );
+				entries.put( name, new Ext2Entry( name, inode ) );
+			}
+		}
+
+		byte[] toBytes( ) throws IOException
+		{
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream( );
+			DataOutputStream out = new DataOutputStream( buffer );
+			out.writeInt( entries.size( ) );
+			for ( Ext2Entry entry : entries.values( ) )
+			{
+				out.writeUTF( entry.name );
+				out.writeInt( entry.inode );
+			}
+			return buffer.toByteArray( );
+		}
+	}
+}
@@ -18,15 +18,35 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.birt.core.archive.EntryNameIndex;
 
 public class EntryTable
 {
 
+	protected static Logger logger = Logger.getLogger( EntryTable.class
+			.getName( ) );
+
 	private Ext2FileSystem fs;
 	private HashMap<String, Ext2Entry> entries;
 	private boolean dirty;
+	/**
+	 * the indexed table used if the file system saves the entry table in
+	 * pages, the entries are kept in the index instead of the entries map.
+	 */
+	private EntryIndex index;
+	/**
+	 * the sorted names used by the prefix listings, it is built by the first
+	 * listing, so the indexed table isn't read until it is needed.
+	 */
+	private EntryNameIndex nameIndex;
 
 	EntryTable( Ext2FileSystem fs )
 	{
@@ -37,6 +57,14 @@ public class EntryTable
 
 	void read( ) throws IOException
 	{
+		nameIndex = null;
+		if ( fs.isIndexedEntryTable( ) )
+		{
+			index = new EntryIndex( fs );
+			index.read( );
+			dirty = false;
+			return;
+		}
 		Ext2File file = new Ext2File( fs, NodeTable.INODE_ENTRY_TABLE, false );
 		try
 		{
@@ -66,8 +94,60 @@ public class EntryTable
 		this.dirty = false;
 	}
 
+	/**
+	 * read the table as a snapshot, all the buckets of the indexed table are
+	 * read now instead of on demand, so the later commits don't change it.
+	 * 
+	 * @return false if an entry refers to a node unused in the node table,
+	 *         the tables are changed by the writer while they are read.
+	 */
+	boolean readSnapshot( NodeTable nodeTable ) throws IOException
+	{
+		read( );
+		if ( index != null )
+		{
+			index.listEntries( );
+		}
+		return checkNodes( nodeTable );
+	}
+
+	/**
+	 * return false if an entry read refers to a node unused in the node
+	 * table, the buckets of the indexed table which aren't read are skipped.
+	 */
+	boolean checkNodes( NodeTable nodeTable )
+	{
+		Collection<Ext2Entry> list = index != null ? index
+				.listLoadedEntries( ) : entries.values( );
+		for ( Ext2Entry entry : list )
+		{
+			if ( !nodeTable.isUsedNode( entry.inode ) )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
 	void write( ) throws IOException
 	{
+		if ( index == null && fs.isIndexedEntryTable( ) )
+		{
+			// move the entries into the new index
+			index = new EntryIndex( fs );
+			index.create( );
+			for ( Ext2Entry entry : entries.values( ) )
+			{
+				index.addEntry( entry );
+			}
+			entries.clear( );
+		}
+		if ( index != null )
+		{
+			index.write( );
+			dirty = false;
+			return;
+		}
 		if ( !dirty )
 		{
 			return;
@@ -107,27 +187,119 @@ public class EntryTable
 
 	Ext2Entry getEntry( String name )
 	{
+		if ( index != null )
+		{
+			try
+			{
+				return index.getEntry( name );
+			}
+			catch ( IOException ex )
+			{
+				logger.log( Level.WARNING, ex.getMessage( ), ex );
+				return null;
+			}
+		}
 		return entries.get( name );
 	}
 
-	Ext2Entry removeEntry( String name )
+	Ext2Entry removeEntry( String name ) throws IOException
 	{
-		Ext2Entry entry = entries.remove( name );
-		if ( entry != null )
+		Ext2Entry entry;
+		if ( index != null )
 		{
-			dirty = true;
+			entry = index.removeEntry( name );
+		}
+		else
+		{
+			entry = entries.remove( name );
+			if ( entry != null )
+			{
+				dirty = true;
+			}
+		}
+		if ( entry != null && nameIndex != null )
+		{
+			nameIndex.remove( name );
 		}
 		return entry;
 	}
 
-	void addEntry( Ext2Entry entry )
+	void addEntry( Ext2Entry entry ) throws IOException
 	{
-		dirty = true;
-		entries.put( entry.name, entry );
+		if ( index != null )
+		{
+			index.addEntry( entry );
+		}
+		else
+		{
+			dirty = true;
+			entries.put( entry.name, entry );
+		}
+		if ( nameIndex != null )
+		{
+			nameIndex.add( entry.name );
+		}
 	}
 
 	String[] listEntries( )
 	{
+		if ( index != null )
+		{
+			try
+			{
+				ArrayList<Ext2Entry> list = index.listEntries( );
+				String[] names = new String[list.size( )];
+				for ( int i = 0; i < names.length; i++ )
+				{
+					names[i] = list.get( i ).name;
+				}
+				return names;
+			}
+			catch ( IOException ex )
+			{
+				logger.log( Level.WARNING, ex.getMessage( ), ex );
+				return new String[0];
+			}
+		}
 		return entries.keySet( ).toArray( new String[entries.size( )] );
 	}
+
+	/**
+	 * list at most max names starting with the prefix after the name, in the
+	 * order of the names.
+	 * 
+	 * @see EntryNameIndex#list(String, String, int)
+	 */
+	List<String> listEntries( String prefix, String after, int max )
+	{
+		if ( nameIndex == null )
+		{
+			EntryNameIndex names = new EntryNameIndex( );
+			if ( index != null )
+			{
+				try
+				{
+					for ( Ext2Entry entry : index.listEntries( ) )
+					{
+						names.add( entry.name );
+					}
+				}
+				catch ( IOException ex )
+				{
+					// the names are read again by the next listing
+					logger.log( Level.WARNING, ex.getMessage( ), ex );
+					return new ArrayList<String>( );
+				}
+			}
+			else
+			{
+				for ( String name : entries.keySet( ) )
+				{
+					names.add( name );
+				}
+			}
+			nameIndex = names;
+		}
+		return nameIndex.list( prefix, after, max );
+	}
 }
@@ -11,11 +11,11 @@
 
 package org.eclipse.birt.core.archive.compound.v3;
 
+import java.nio.ByteBuffer;
+
 abstract public class Ext2Block extends Block
 {
 
-	static final int BLOCK_SIZE = Ext2FileSystem.BLOCK_SIZE;
-
 	Ext2FileSystem fs;
 
 	Ext2Block( Ext2FileSystem fs, int blockId )
@@ -26,6 +26,41 @@ abstract public class Ext2Block extends Block
 		this.cacheKey = Integer.valueOf( blockId );
 	}
 
+	public int getMemorySize( )
+	{
+		if ( fs == null )
+		{
+			return super.getMemorySize( );
+		}
+		return fs.getBlockSize( );
+	}
+
+	/**
+	 * return true if the block has changes not written to the disk.
+	 */
+	abstract boolean isDirty( );
+
+	/**
+	 * drop the changes of the block, it is called after the block is released
+	 * and allocated again, or after the changed data is written.
+	 */
+	abstract void clearDirty( );
+
+	/**
+	 * return a copy of the changed data, the block is marked as clean by
+	 * clearDirty() once the data is written. It is used to write the
+	 * continuous blocks in one I/O, so the data may be extended to the start
+	 * or the end of the block.
+	 * 
+	 * @param toStart
+	 *            if the data must start from the start of the block.
+	 * @param toEnd
+	 *            if the data must end at the end of the block.
+	 * @return the data which ends at the end of the block if toEnd is true,
+	 *         null if the block isn't changed.
+	 */
+	abstract ByteBuffer getDirtyData( boolean toStart, boolean toEnd );
+
 	Ext2FileSystem getFileSystem( )
 	{
 		return fs;
@@ -12,6 +12,7 @@
 package org.eclipse.birt.core.archive.compound.v3;
 
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
 
 import org.eclipse.birt.core.i18n.CoreMessages;
 import org.eclipse.birt.core.i18n.ResourceConstants;
@@ -34,14 +35,31 @@ import org.eclipse.birt.core.i18n.ResourceConstants;
 public class Ext2File
 {
 
-	static final int BLOCK_SIZE = Ext2FileSystem.BLOCK_SIZE;
-	static final int BLOCK_SIZE_BITS = Ext2FileSystem.BLOCK_SIZE_BITS;
-	static final int BLOCK_OFFSET_MASK = Ext2FileSystem.BLOCK_OFFSET_MASK;
-
 	/**
 	 * 
 	 */
-	private Ext2FileSystem fs;
+	private final Ext2FileSystem fs;
+
+	/**
+	 * the read only file is read without the lock of the file system, so the
+	 * file system is kept after closing and the reads racing with the close
+	 * test the flag.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * the entry of the file is removed in the snapshot taken by the refresh of
+	 * the read only file system, so the blocks of the file may be reused by
+	 * the writer.
+	 */
+	private volatile boolean removed;
+
+	/**
+	 * the block size of the file system
+	 */
+	private final int blockSize;
+	private final int blockSizeBits;
+	private final int blockOffsetMask;
 
 	private Ext2Entry entry;
 
@@ -69,6 +87,26 @@ public class Ext2File
 	 */
 	private DataBlock cachedBlock;
 
+	static final int MIN_READ_AHEAD = 4;
+	/**
+	 * the max blocks read ahead, 0 if the read ahead is disabled.
+	 */
+	private final int maxReadAhead;
+	/**
+	 * the last block read by the file, it is used to detect the sequential
+	 * read.
+	 */
+	private int lastBlockId;
+	/**
+	 * the blocks before it have been read ahead.
+	 */
+	private int readAheadEnd;
+	/**
+	 * the blocks read ahead each time, it is doubled for each read ahead until
+	 * maxReadAhead.
+	 */
+	private int readAheadSize;
+
 	Ext2File( Ext2FileSystem fs, int inode, boolean enableCache )
 			throws IOException
 	{
@@ -85,13 +123,26 @@ public class Ext2File
 			boolean enableCache ) throws IOException
 	{
 		this.fs = fs;
+		this.blockSize = fs.getBlockSize( );
+		this.blockSizeBits = fs.getBlockSizeBits( );
+		this.blockOffsetMask = fs.getBlockOffsetMask( );
 		this.entry = entry;
 		this.node = node;
-		this.blocks = new FatBlockList( fs, node );
+		if ( node.isExtentLayout( ) )
+		{
+			this.blocks = new ExtentBlockList( fs, node );
+		}
+		else
+		{
+			this.blocks = new FatBlockList( fs, node );
+		}
 		this.fs.registerOpenedFile( this );
-		this.enableCache = enableCache;
+		// the memory mapped file is cached by the OS, read it directly
+		this.enableCache = enableCache && !fs.isMemoryMapped( );
 		this.cachedBlockId = -1;
 		this.cachedBlock = DataBlock.READ_ONLY_BLOCK;
+		this.maxReadAhead = this.enableCache ? fs.getMaxReadAhead( ) : 0;
+		this.lastBlockId = -1;
 	}
 
 	public Ext2Entry getEntry( )
@@ -110,25 +161,100 @@ public class Ext2File
 
 	public void close( ) throws IOException
 	{
-		if ( fs == null )
+		if ( closed )
 		{
 			// the file has been closed
 			return;
 		}
+		Lock lock = fs.lockBlocks( );
 		try
 		{
-			if ( cachedBlock != DataBlock.READ_ONLY_BLOCK )
-			{
-				fs.unloadBlock( cachedBlock );
-			}
-			cachedBlockId = -1;
-			cachedBlock = DataBlock.READ_ONLY_BLOCK;
-			blocks.clear( );
+			releaseBlocks( );
 		}
 		finally
 		{
 			fs.unregisterOpenedFile( this );
-			fs = null;
+			closed = true;
+			if ( lock != null )
+			{
+				lock.unlock( );
+			}
+		}
+	}
+
+	/**
+	 * release the cached blocks, the blocks are loaded again by the next read
+	 * and write. It is called before the blocks are relocated.
+	 */
+	void releaseBlocks( ) throws IOException
+	{
+		if ( cachedBlock != DataBlock.READ_ONLY_BLOCK )
+		{
+			fs.unloadBlock( cachedBlock );
+		}
+		cachedBlockId = -1;
+		cachedBlock = DataBlock.READ_ONLY_BLOCK;
+		blocks.clear( );
+	}
+
+	/**
+	 * switch the file to the node of its entry in the snapshot taken by the
+	 * refresh of the read only file system, so the data committed by the
+	 * writer after the file is opened is visible.
+	 * 
+	 * @return true if the node is changed.
+	 * @throws IOException
+	 *             if the entry has been removed.
+	 */
+	public boolean refresh( ) throws IOException
+	{
+		if ( closed || entry == null || !fs.isReadOnly( ) )
+		{
+			return false;
+		}
+		ensureNotRemoved( );
+		Ext2Entry newEntry = fs.getEntry( entry.name );
+		if ( newEntry == null )
+		{
+			return false;
+		}
+		Ext2Node newNode = fs.getNode( newEntry.inode );
+		if ( newNode == node )
+		{
+			return false;
+		}
+		releaseBlocks( );
+		entry = newEntry;
+		node = newNode;
+		if ( node.isExtentLayout( ) )
+		{
+			blocks = new ExtentBlockList( fs, node );
+		}
+		else
+		{
+			blocks = new FatBlockList( fs, node );
+		}
+		lastBlockId = -1;
+		readAheadEnd = 0;
+		readAheadSize = 0;
+		return true;
+	}
+
+	/**
+	 * called by the refresh of the file system if the entry of the file is
+	 * removed, the reads of the file fail after it.
+	 */
+	void setRemoved( )
+	{
+		removed = true;
+	}
+
+	void ensureNotRemoved( ) throws IOException
+	{
+		if ( removed )
+		{
+			throw new IOException( CoreMessages.getFormattedString(
+					ResourceConstants.ENTRY_REMOVED, entry.name ) );
 		}
 	}
 
@@ -139,7 +265,7 @@ public class Ext2File
 
 	public void setLength( long length ) throws IOException
 	{
-		if ( fs == null )
+		if ( closed )
 		{
 			throw new IOException(
 					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
@@ -169,11 +295,12 @@ public class Ext2File
 
 	public int read( byte[] buffer, int off, int size ) throws IOException
 	{
-		if ( fs == null )
+		if ( closed )
 		{
 			throw new IOException(
 					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
 		}
+		ensureNotRemoved( );
 
 		assert buffer != null;
 		assert off >= 0;
@@ -184,11 +311,22 @@ public class Ext2File
 			return 0;
 		}
 
-		if ( enableCache )
+		Lock lock = fs.lockBlocks( );
+		try
 		{
-			return read_with_cache( buffer, off, size );
+			if ( enableCache )
+			{
+				return read_with_cache( buffer, off, size );
+			}
+			return read_without_cache( buffer, off, size );
+		}
+		finally
+		{
+			if ( lock != null )
+			{
+				lock.unlock( );
+			}
 		}
-		return read_without_cache( buffer, off, size );
 	}
 
 	private int read_without_cache( byte[] buffer, int off, int size )
@@ -204,46 +342,105 @@ public class Ext2File
 			}
 		}
 
-		int blockId = (int) ( position >> BLOCK_SIZE_BITS );
-		int blockOff = (int) ( position & BLOCK_OFFSET_MASK );
+		int blockId = (int) ( position >> blockSizeBits );
+		int blockOff = (int) ( position & blockOffsetMask );
 
-		int blockSize = BLOCK_SIZE - blockOff;
+		int blockRemain = blockSize - blockOff;
 		int fileBlockId = getDataBlock( blockId );
-		if ( size <= blockSize )
+		if ( size <= blockRemain )
 		{
-			fs.readBlock( fileBlockId, blockOff, buffer, off, size );
+			readDataBlock( fileBlockId, blockOff, buffer, off, size );
 		}
 		else
 		{
-			fs.readBlock( fileBlockId, blockOff, buffer, off, blockSize );
-			off += blockSize;
-			int remainSize = size - blockSize;
-			int wholeBlocks = remainSize >> BLOCK_SIZE_BITS;
-			for ( int i = 0; i < wholeBlocks; i++ )
+			readDataBlock( fileBlockId, blockOff, buffer, off, blockRemain );
+			off += blockRemain;
+			int remainSize = size - blockRemain;
+			int wholeBlocks = remainSize >> blockSizeBits;
+			while ( wholeBlocks > 0 )
 			{
+				// read the continuous blocks in one I/O
 				blockId++;
 				fileBlockId = getDataBlock( blockId );
+				int count = 1;
 				if ( fileBlockId != -1 )
 				{
-					fs.readBlock( fileBlockId, 0, buffer, off, BLOCK_SIZE );
+					count = blocks.getContiguousBlocks( blockId, wholeBlocks );
+					fs.readBlocks( fileBlockId, buffer, off, count );
 				}
-				off += BLOCK_SIZE;
+				else
+				{
+					readDataBlock( fileBlockId, 0, buffer, off, blockSize );
+				}
+				blockId += count - 1;
+				off += count << blockSizeBits;
+				wholeBlocks -= count;
 			}
-			remainSize = remainSize & BLOCK_OFFSET_MASK;
+			remainSize = remainSize & blockOffsetMask;
 			if ( remainSize > 0 )
 			{
 				blockId++;
 				fileBlockId = getDataBlock( blockId );
-				if ( fileBlockId != -1 )
-				{
-					fs.readBlock( fileBlockId, 0, buffer, off, remainSize );
-				}
+				readDataBlock( fileBlockId, 0, buffer, off, remainSize );
 			}
 		}
 		position += size;
 		return size;
 	}
 
+	/**
+	 * read the data from the file block directly. The block which hasn't been
+	 * allocated is read as 0, the same as the READ_ONLY_BLOCK.
+	 */
+	private void readDataBlock( int fileBlockId, int blockOff, byte[] buffer,
+			int off, int size ) throws IOException
+	{
+		if ( fileBlockId == -1 )
+		{
+			for ( int i = 0; i < size; i++ )
+			{
+				buffer[off + i] = 0;
+			}
+			return;
+		}
+		fs.readBlock( fileBlockId, blockOff, buffer, off, size );
+	}
+
+	/**
+	 * read the continuous blocks of the read only file directly in one I/O.
+	 * The blocks in the read only file never change, so the large read
+	 * needn't go through the data cache.
+	 * 
+	 * @return the blocks read, 0 if the blocks should be read through the
+	 *         cache.
+	 */
+	private int readBlocks( int blockId, byte[] buffer, int off, int maxCount )
+			throws IOException
+	{
+		if ( !fs.isReadOnly( ) || maxCount < 2 )
+		{
+			return 0;
+		}
+		int fileBlockId = blocks.getFileBlock( blockId );
+		if ( fileBlockId == -1 )
+		{
+			return 0;
+		}
+		int count = blocks.getContiguousBlocks( blockId, maxCount );
+		if ( count < 2 )
+		{
+			return 0;
+		}
+		fs.readBlocks( fileBlockId, buffer, off, count );
+		// the blocks have been read, continue the read ahead after them
+		lastBlockId = blockId + count - 1;
+		if ( readAheadEnd <= lastBlockId )
+		{
+			readAheadEnd = lastBlockId + 1;
+		}
+		return count;
+	}
+
 	private int read_with_cache( byte[] buffer, int off, int size )
 			throws IOException
 	{
@@ -257,29 +454,36 @@ public class Ext2File
 			}
 		}
 
-		int blockId = (int) ( position >> BLOCK_SIZE_BITS );
-		int blockOff = (int) ( position & BLOCK_OFFSET_MASK );
+		int blockId = (int) ( position >> blockSizeBits );
+		int blockOff = (int) ( position & blockOffsetMask );
 
-		int blockSize = BLOCK_SIZE - blockOff;
+		int blockRemain = blockSize - blockOff;
 		DataBlock block = loadDataBlock( blockId );
-		if ( size <= blockSize )
+		if ( size <= blockRemain )
 		{
 			block.read( blockOff, buffer, off, size );
 		}
 		else
 		{
-			block.read( blockOff, buffer, off, blockSize );
-			off += blockSize;
-			int remainSize = size - blockSize;
-			int wholeBlocks = remainSize >> BLOCK_SIZE_BITS;
-			for ( int i = 0; i < wholeBlocks; i++ )
+			block.read( blockOff, buffer, off, blockRemain );
+			off += blockRemain;
+			int remainSize = size - blockRemain;
+			int wholeBlocks = remainSize >> blockSizeBits;
+			while ( wholeBlocks > 0 )
 			{
 				blockId++;
-				block = loadDataBlock( blockId );
-				block.read( 0, buffer, off, BLOCK_SIZE );
-				off += BLOCK_SIZE;
+				int count = readBlocks( blockId, buffer, off, wholeBlocks );
+				if ( count == 0 )
+				{
+					count = 1;
+					block = loadDataBlock( blockId );
+					block.read( 0, buffer, off, blockSize );
+				}
+				blockId += count - 1;
+				off += count << blockSizeBits;
+				wholeBlocks -= count;
 			}
-			remainSize = remainSize & BLOCK_OFFSET_MASK;
+			remainSize = remainSize & blockOffsetMask;
 			if ( remainSize > 0 )
 			{
 				blockId++;
@@ -291,9 +495,52 @@ public class Ext2File
 		return size;
 	}
 
+	/**
+	 * return true if the data is in the block cache, so it is read without
+	 * I/O. It only looks at the blocks in the memory and never waits for the
+	 * compaction, false is returned if a FAT block of the data isn't cached.
+	 * The answer may be stale once the compaction relocates the blocks, it
+	 * only decides the thread to read the data.
+	 */
+	public boolean isCached( long pos, int size ) throws IOException
+	{
+		if ( closed || removed || !enableCache )
+		{
+			return false;
+		}
+		long length = node.getLength( );
+		if ( pos + size > length )
+		{
+			size = (int) Math.max( 0, length - pos );
+		}
+		if ( size == 0 )
+		{
+			return true;
+		}
+		int startBlockId = (int) ( pos >> blockSizeBits );
+		int endBlockId = (int) ( ( pos + size - 1 ) >> blockSizeBits );
+		for ( int blockId = startBlockId; blockId <= endBlockId; blockId++ )
+		{
+			if ( blockId == cachedBlockId )
+			{
+				continue;
+			}
+			int fileBlockId = blocks.getLoadedFileBlock( blockId );
+			if ( fileBlockId == FatBlockList.UNKNOWN_BLOCK )
+			{
+				return false;
+			}
+			if ( fileBlockId != -1 && !fs.isBlockCached( fileBlockId ) )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public void write( byte[] buffer, int off, int size ) throws IOException
 	{
-		if ( fs == null )
+		if ( closed )
 		{
 			throw new IOException(
 					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
@@ -313,13 +560,24 @@ public class Ext2File
 			return;
 		}
 
-		if ( enableCache )
+		Lock lock = fs.lockBlocks( );
+		try
 		{
-			write_with_cache( buffer, off, size );
+			if ( enableCache )
+			{
+				write_with_cache( buffer, off, size );
+			}
+			else
+			{
+				write_without_cache( buffer, off, size );
+			}
 		}
-		else
+		finally
 		{
-			write_without_cache( buffer, off, size );
+			if ( lock != null )
+			{
+				lock.unlock( );
+			}
 		}
 	}
 
@@ -327,29 +585,29 @@ public class Ext2File
 			throws IOException
 	{
 
-		int blockId = (int) ( position >> BLOCK_SIZE_BITS );
-		int blockOff = (int) ( position & BLOCK_OFFSET_MASK );
+		int blockId = (int) ( position >> blockSizeBits );
+		int blockOff = (int) ( position & blockOffsetMask );
 
-		int blockSize = BLOCK_SIZE - blockOff;
+		int blockRemain = blockSize - blockOff;
 		int fileBlockId = getDataBlock( blockId );
-		if ( size <= blockSize )
+		if ( size <= blockRemain )
 		{
 			fs.writeBlock( fileBlockId, blockOff, buffer, off, size );
 		}
 		else
 		{
-			fs.writeBlock( fileBlockId, blockOff, buffer, off, blockSize );
-			off += blockSize;
-			int remainSize = size - blockSize;
-			int wholeBlocks = remainSize >> BLOCK_SIZE_BITS;
+			fs.writeBlock( fileBlockId, blockOff, buffer, off, blockRemain );
+			off += blockRemain;
+			int remainSize = size - blockRemain;
+			int wholeBlocks = remainSize >> blockSizeBits;
 			for ( int i = 0; i < wholeBlocks; i++ )
 			{
 				blockId++;
 				fileBlockId = getDataBlock( blockId );
-				fs.writeBlock( fileBlockId, 0, buffer, off, BLOCK_SIZE );
-				off += BLOCK_SIZE;
+				fs.writeBlock( fileBlockId, 0, buffer, off, blockSize );
+				off += blockSize;
 			}
-			remainSize = remainSize & BLOCK_OFFSET_MASK;
+			remainSize = remainSize & blockOffsetMask;
 			if ( remainSize > 0 )
 			{
 				blockId++;
@@ -368,29 +626,29 @@ public class Ext2File
 			throws IOException
 	{
 
-		int blockId = (int) ( position >> BLOCK_SIZE_BITS );
-		int blockOff = (int) ( position & BLOCK_OFFSET_MASK );
+		int blockId = (int) ( position >> blockSizeBits );
+		int blockOff = (int) ( position & blockOffsetMask );
 
-		int blockSize = BLOCK_SIZE - blockOff;
+		int blockRemain = blockSize - blockOff;
 		DataBlock block = loadDataBlock( blockId );
-		if ( size <= blockSize )
+		if ( size <= blockRemain )
 		{
 			block.write( blockOff, buffer, off, size );
 		}
 		else
 		{
-			block.write( blockOff, buffer, off, blockSize );
-			off += blockSize;
-			int remainSize = size - blockSize;
-			int wholeBlocks = remainSize >> BLOCK_SIZE_BITS;
+			block.write( blockOff, buffer, off, blockRemain );
+			off += blockRemain;
+			int remainSize = size - blockRemain;
+			int wholeBlocks = remainSize >> blockSizeBits;
 			for ( int i = 0; i < wholeBlocks; i++ )
 			{
 				blockId++;
 				block = loadDataBlock( blockId );
-				block.write( 0, buffer, off, BLOCK_SIZE );
-				off += BLOCK_SIZE;
+				block.write( 0, buffer, off, blockSize );
+				off += blockSize;
 			}
-			remainSize = remainSize & BLOCK_OFFSET_MASK;
+			remainSize = remainSize & blockOffsetMask;
 			if ( remainSize > 0 )
 			{
 				blockId++;
@@ -415,25 +673,82 @@ public class Ext2File
 		{
 			fs.unloadBlock( cachedBlock );
 		}
+		// the released block isn't kept if the block can't be loaded
+		cachedBlockId = -1;
+		cachedBlock = DataBlock.READ_ONLY_BLOCK;
 
-		cachedBlockId = blockId;
+		if ( maxReadAhead > 0 )
+		{
+			readAhead( blockId );
+		}
 		int fileBlockId = blocks.getFileBlock( blockId );
 		if ( fileBlockId != -1 )
 		{
 			cachedBlock = fs.loadDataBlock( fileBlockId );
+			cachedBlockId = blockId;
+			if ( cachedBlock.readAhead )
+			{
+				cachedBlock.readAhead = false;
+				fs.recordReadAheadHit( );
+			}
 			return cachedBlock;
 		}
 		if ( fs.isReadOnly( ) )
 		{
-			cachedBlock = DataBlock.READ_ONLY_BLOCK;
+			cachedBlockId = blockId;
 			return cachedBlock;
 		}
-		cachedBlock = fs.createDataBlock( );
+		cachedBlock = fs.createDataBlock( blocks.allocBlock( ) );
+		cachedBlockId = blockId;
 		node.setBlockCount( node.getBlockCount( ) + 1 );
 		blocks.setFileBlock( blockId, cachedBlock.getBlockId( ) );
 		return cachedBlock;
 	}
 
+	/**
+	 * read ahead the blocks after the block if the file is read sequentially.
+	 * The blocks are read ahead before the reader reaches the last half of
+	 * the blocks read ahead last time.
+	 */
+	private void readAhead( int blockId ) throws IOException
+	{
+		if ( blockId != lastBlockId + 1 )
+		{
+			// random access, restart the read ahead
+			lastBlockId = blockId;
+			readAheadSize = 0;
+			readAheadEnd = blockId + 1;
+			return;
+		}
+		lastBlockId = blockId;
+		if ( blockId + readAheadSize / 2 < readAheadEnd )
+		{
+			return;
+		}
+		if ( readAheadSize == 0 )
+		{
+			readAheadSize = Math.min( MIN_READ_AHEAD, maxReadAhead );
+		}
+		else
+		{
+			readAheadSize = Math.min( readAheadSize * 2, maxReadAhead );
+		}
+		int totalBlocks = (int) ( ( node.getLength( ) + blockSize - 1 ) >> blockSizeBits );
+		int start = Math.max( readAheadEnd, blockId + 1 );
+		int end = Math.min( blockId + 1 + readAheadSize, totalBlocks );
+		if ( start >= end )
+		{
+			return;
+		}
+		int[] blockIds = new int[end - start];
+		for ( int i = 0; i < blockIds.length; i++ )
+		{
+			blockIds[i] = blocks.getFileBlock( start + i );
+		}
+		readAheadEnd = end;
+		fs.readAhead( blockIds );
+	}
+
 	private int getDataBlock( int blockId ) throws IOException
 	{
 		int fileBlockId = blocks.getFileBlock( blockId );
@@ -445,7 +760,7 @@ public class Ext2File
 		{
 			return -1;
 		}
-		fileBlockId = fs.allocFreeBlock( );
+		fileBlockId = blocks.allocBlock( );
 		node.setBlockCount( node.getBlockCount( ) + 1 );
 		blocks.setFileBlock( blockId, fileBlockId );
 		return fileBlockId;
@@ -15,15 +15,30 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.eclipse.birt.core.archive.ArchiveStatistics;
+import org.eclipse.birt.core.archive.EntryNameIndex;
 import org.eclipse.birt.core.archive.cache.CacheListener;
 import org.eclipse.birt.core.archive.cache.Cacheable;
 import org.eclipse.birt.core.archive.cache.FileCacheManager;
@@ -41,10 +56,148 @@ import org.eclipse.birt.core.i18n.ResourceConstants;
 public class Ext2FileSystem
 {
 
+	/**
+	 * the system property enables the memory mapped read for the archives
+	 * opened in "r" mode. The value is "true" or "false", it is "false" by
+	 * default.
+	 */
+	public static final String PROPERTY_MEMORY_MAPPED = "org.eclipse.birt.core.archive.compound.v3.MEMORY_MAPPED";
+
+	/**
+	 * the system property defines the block size of the archives created
+	 * without an explicit block size. It must be power of 2 between
+	 * MIN_BLOCK_SIZE and MAX_BLOCK_SIZE, it is 4096 by default.
+	 */
+	public static final String PROPERTY_BLOCK_SIZE = "org.eclipse.birt.core.archive.compound.v3.BLOCK_SIZE";
+
+	/**
+	 * the system property enables the extent layout for the files created in
+	 * the archive. The value is "true" or "false", it is "false" by default.
+	 * The archive contains files in extent layout can't be opened by the old
+	 * versions.
+	 */
+	public static final String PROPERTY_EXTENT_LAYOUT = "org.eclipse.birt.core.archive.compound.v3.EXTENT_LAYOUT";
+
+	/**
+	 * the system property enables the indexed entry table for the archives
+	 * created. The value is "true" or "false", it is "false" by default. The
+	 * indexed entry table is read and written by buckets, so the archive with
+	 * lots of entries can be opened and flushed without reading and writing
+	 * all the entries. The archive can't be opened by the old versions.
+	 */
+	public static final String PROPERTY_INDEXED_ENTRY_TABLE = "org.eclipse.birt.core.archive.compound.v3.INDEXED_ENTRY_TABLE";
+
+	/**
+	 * the system property enables the free space bitmap for the archives
+	 * created. The value is "true" or "false", it is "false" by default. The
+	 * free blocks are allocated from the lowest one and the free blocks at the
+	 * end of the file are truncated. The archive can't be opened by the old
+	 * versions.
+	 */
+	public static final String PROPERTY_FREE_SPACE_BITMAP = "org.eclipse.birt.core.archive.compound.v3.FREE_SPACE_BITMAP";
+
+	/**
+	 * the system property enables the write-behind flusher for the archives
+	 * opened in write mode. The value is "true" or "false", it is "false" by
+	 * default.
+	 */
+	public static final String PROPERTY_WRITE_BEHIND = "org.eclipse.birt.core.archive.compound.v3.WRITE_BEHIND";
+
+	/**
+	 * the system property defines the max memory in bytes used by the dirty
+	 * blocks waiting for the write-behind flusher. The releasing thread
+	 * writes the blocks itself once the limit is exceeded. It is 32M by
+	 * default.
+	 */
+	public static final String PROPERTY_WRITE_BEHIND_LIMIT = "org.eclipse.birt.core.archive.compound.v3.WRITE_BEHIND_LIMIT";
+
+	static final long DEFAULT_WRITE_BEHIND_LIMIT = 32 * 1024 * 1024;
+
+	/**
+	 * the system property defines the max blocks read ahead by the sequential
+	 * reads of the archives opened in "r" mode. 0 disables the read ahead. It
+	 * is 32 by default.
+	 */
+	public static final String PROPERTY_READ_AHEAD = "org.eclipse.birt.core.archive.compound.v3.READ_AHEAD";
+
+	/**
+	 * the system property enables the read ahead in the background threads.
+	 * The value is "true" or "false", it is "false" by default.
+	 */
+	public static final String PROPERTY_READ_AHEAD_ASYNC = "org.eclipse.birt.core.archive.compound.v3.READ_AHEAD_ASYNC";
+
+	static final int DEFAULT_READ_AHEAD = 32;
+
+	/**
+	 * the system property keeps the data blocks in the direct buffers pooled
+	 * by the block size instead of the heap. The value is "true" or "false",
+	 * it is "false" by default. The buffers of the dropped blocks are reused
+	 * by the new blocks, so the cached data doesn't churn the heap.
+	 */
+	public static final String PROPERTY_DIRECT_BUFFER = "org.eclipse.birt.core.archive.compound.v3.DIRECT_BUFFER";
+
 	private volatile RandomAccessFile rf;
-	private long length;
+	/**
+	 * the channel of the rf, it is used to read the blocks by position, so
+	 * the reads don't share the file pointer and needn't be synchronized.
+	 */
+	private volatile FileChannel channel;
+	/**
+	 * the storage used by the read only file system, it is the memory mapped
+	 * file or the storage passed in by the caller. The blocks are read from
+	 * the storage instead of the rf if it is not null.
+	 */
+	private volatile IReadOnlyStorage storage;
+	private volatile long length;
 	private int maxBlockId;
 
+	/**
+	 * the block size, it is defined when the file system is created and saved
+	 * in the header.
+	 */
+	private int blockSize;
+	private int blockSizeBits;
+	private int blockOffsetMask;
+
+	/**
+	 * the version saved in the header, it is EXT2_VERSION_1 if the file system
+	 * may contain nodes in extent layout.
+	 */
+	private int version;
+	/**
+	 * if the new files are created in extent layout.
+	 */
+	private boolean extentLayout;
+	/**
+	 * if the data blocks use the pooled direct buffers.
+	 */
+	private boolean directBuffer;
+	/**
+	 * if the entry table is saved in the indexed pages.
+	 */
+	private boolean indexedEntryTable;
+	/**
+	 * if the free blocks are saved in the bitmap.
+	 */
+	private boolean freeSpaceBitmap;
+	/**
+	 * if the new files are saved in compressed frames, it is saved in the
+	 * header so the files added by the later sessions are compressed too.
+	 */
+	private boolean compressed;
+	/**
+	 * the generation of the committed metadata saved in the header. The
+	 * writer makes it odd before it writes the tables and even after all the
+	 * tables are written, so the readers only take the snapshot of an even
+	 * generation which is unchanged after the tables are read.
+	 */
+	private long generation;
+	/**
+	 * the first node of the files written by the last commit, -1 if no node
+	 * of the files is written.
+	 */
+	private int changedNode = -1;
+
 	private String fileName;
 	private boolean readOnly;
 	private boolean removeOnExit;
@@ -56,237 +209,1289 @@ public class Ext2FileSystem
 	private boolean propertyDirty = true;
 
 	protected FileCacheManager cacheManager = new FileCacheManager( );
+	/**
+	 * the I/O and cache statistics of the file system.
+	 */
+	private ArchiveStatistics statistics;
+	/**
+	 * the write-behind flusher, null if the dirty blocks are written by the
+	 * releasing thread.
+	 */
+	private volatile BlockFlusher flusher;
+	/**
+	 * the max blocks read ahead, 0 if the read ahead is disabled.
+	 */
+	private int maxReadAhead;
+	private boolean asyncReadAhead;
+	private AtomicLong readAheadCount = new AtomicLong( );
+	private AtomicLong readAheadHitCount = new AtomicLong( );
 	/**
 	 * nodes define the logical stream
 	 */
-	private NodeTable nodeTable = new NodeTable( this );
+	private volatile NodeTable nodeTable = new NodeTable( this );
 	/**
 	 * named entries to define the logical stream
 	 */
-	private EntryTable entryTable = new EntryTable( this );
+	private volatile EntryTable entryTable = new EntryTable( this );
 
 	private FreeBlockTable freeTable = new FreeBlockTable( this );
+	/**
+	 * the free nodes and the runs released since the last commit. They are
+	 * added to the free table by the next commit, so the blocks of the
+	 * committed snapshot aren't reused while the readers refresh it.
+	 */
+	private ArrayList<Ext2Node> releasedNodes = new ArrayList<Ext2Node>( );
+	private ArrayList<int[]> releasedRuns = new ArrayList<int[]>( );
+	/**
+	 * increased once the cache of the read only file system is invalidated by
+	 * refresh, the blocks read before it mustn't be cached.
+	 */
+	private volatile int cacheVersion;
+
+	/**
+	 * the files hold the read lock while they read and write the blocks, the
+	 * compaction holds the write lock while it relocates the blocks.
+	 */
+	private ReentrantReadWriteLock compactionLock = new ReentrantReadWriteLock( );
+
+	/**
+	 * opened streams
+	 */
+	private HashSet<Ext2File> openedFiles = new HashSet<Ext2File>( );
+
+	/**
+	 * mode
+	 * 
+	 * @param filePath
+	 * @param mode
+	 *            defines the archive open mode: "r": read mode "rw": read write
+	 *            mode, if the file exist, create a empty one. "rw+": read write
+	 *            mode, if the file exist, open the exits file. "rwt": read
+	 *            write cache mode, if the file exist, create a empty one. the
+	 *            file is removed after the file is closed.
+	 * @throws IOException
+	 */
+	public Ext2FileSystem( String filePath, String mode ) throws IOException
+	{
+		this( filePath, null, mode );
+	}
+
+	public Ext2FileSystem( String filePath, RandomAccessFile rf, String mode )
+			throws IOException
+	{
+		this( filePath, rf, mode, getDefaultBlockSize( ) );
+	}
+
+	/**
+	 * open the read only file system saved in the storage, such as the
+	 * seekable GZIP file. The storage is closed with the file system.
+	 */
+	public Ext2FileSystem( String filePath, IReadOnlyStorage storage )
+			throws IOException
+	{
+		fileName = new File( filePath ).getCanonicalPath( );
+		this.storage = storage;
+		readOnly = true;
+		removeOnExit = false;
+
+		cacheManager.setCacheListener( new Ext2FileSystemCacheListener( ) );
+		openFileSystem( "r" );
+	}
+
+	/**
+	 * @param blockSize
+	 *            the block size used if a new file system is created, it must
+	 *            be power of 2 between MIN_BLOCK_SIZE and MAX_BLOCK_SIZE. The
+	 *            existing file system always uses the block size saved in the
+	 *            file.
+	 */
+	public Ext2FileSystem( String filePath, RandomAccessFile rf, String mode,
+			int blockSize ) throws IOException
+	{
+		if ( !isValidBlockSize( blockSize ) )
+		{
+			throw new IllegalArgumentException( CoreMessages
+					.getFormattedString( ResourceConstants.UNSUPPORTED_BLOCK_SIZE,
+							new Object[]{blockSize} ) );
+		}
+		setBlockSize( blockSize );
+		extentLayout = isExtentLayoutEnabled( );
+		version = extentLayout ? EXT2_VERSION_1 : EXT2_VERSION_0;
+		if ( !"r".equals( mode ) && isIndexedEntryTableEnabled( ) )
+		{
+			// only used if a new file system is created
+			indexedEntryTable = true;
+		}
+		if ( !"r".equals( mode ) && isFreeSpaceBitmapEnabled( ) )
+		{
+			freeSpaceBitmap = true;
+		}
+		fileName = new File( filePath ).getCanonicalPath( );
+		this.rf = rf;
+
+		cacheManager.setCacheListener( new Ext2FileSystemCacheListener( ) );
+		openFileSystem( mode );
+	}
+
+	/**
+	 * open or create the file system in the mode, the statistics are closed
+	 * if the file system can't be opened.
+	 */
+	private void openFileSystem( String mode ) throws IOException
+	{
+		statistics = new ArchiveStatistics( fileName );
+		statistics.setCacheManager( cacheManager );
+		directBuffer = isDirectBufferEnabled( );
+		boolean opened = false;
+		try
+		{
+			if ( "rw".equals( mode ) )
+			{
+				readOnly = false;
+				removeOnExit = false;
+				createFileSystem( );
+				opened = true;
+				return;
+			}
+			if ( "rw+".equals( mode ) )
+			{
+				readOnly = false;
+				removeOnExit = false;
+				if ( new File( fileName ).exists( ) )
+				{
+					openFileSystem( );
+				}
+				else
+				{
+					createFileSystem( );
+				}
+				opened = true;
+				return;
+			}
+
+			if ( "r".equals( mode ) )
+			{
+				readOnly = true;
+				removeOnExit = false;
+				openFileSystem( );
+				opened = true;
+				return;
+			}
+
+			if ( "rwt".equals( mode ) )
+			{
+				readOnly = false;
+				removeOnExit = true;
+				createFileSystem( );
+				opened = true;
+				return;
+			}
+			throw new IOException( CoreMessages.getFormattedString(
+					ResourceConstants.UNSUPPORTED_FILE_MODE, new Object[]{mode} ) );
+		}
+		finally
+		{
+			if ( !opened )
+			{
+				statistics.close( );
+			}
+		}
+	}
+
+	private void openFileSystem( ) throws IOException
+	{
+		if ( storage != null )
+		{
+			length = storage.length( );
+		}
+		else
+		{
+			if ( rf == null )
+			{
+				if ( readOnly )
+				{
+					rf = new RandomAccessFile( fileName, "r" );
+				}
+				else
+				{
+					rf = new RandomAccessFile( fileName, "rw" );
+				}
+			}
+			length = rf.length( );
+		}
+		readHeader( );
+		if ( !readOnly )
+		{
+			// the last writer may fail in the middle of a commit
+			generation = ( generation + 1 ) & ~1L;
+		}
+		else if ( storage == null )
+		{
+			// the file may be extended by the commit after the length is read,
+			// the blocks after the length are read as 0
+			length = rf.length( );
+		}
+		if ( freeSpaceBitmap )
+		{
+			freeTable = new FreeBlockMap( this );
+		}
+		maxBlockId = (int) ( ( length + blockSize - 1 ) / blockSize ) + 1;
+		if ( readOnly && storage == null && isMemoryMappedEnabled( ) )
+		{
+			storage = new MappedFile( rf.getChannel( ), length );
+		}
+		if ( readOnly && storage == null )
+		{
+			// the memory mapped file is read ahead by the OS
+			initReadAhead( );
+		}
+
+		readTables( );
+		if ( !readOnly )
+		{
+			startFlusher( );
+		}
+	}
+
+	/**
+	 * the max times the reader reads the tables again if the writer commits
+	 * while they are read, the tables are taken as they are at last as the
+	 * writer may fail in the middle of a commit.
+	 */
+	static final int MAX_SNAPSHOT_RETRIES = 20;
+	static final int SNAPSHOT_RETRY_INTERVAL = 10;
+
+	/**
+	 * read the tables of the opened file system. The read only file system
+	 * reads them again until they are the snapshot of a committed generation.
+	 */
+	private void readTables( ) throws IOException
+	{
+		boolean checked = !readOnly || rf == null;
+		for ( int retry = 0;; retry++ )
+		{
+			if ( retry >= MAX_SNAPSHOT_RETRIES )
+			{
+				checked = true;
+			}
+			try
+			{
+				nodeTable.read( );
+				entryTable.read( );
+				freeTable.read( );
+				readProperties( );
+				if ( checked || isSnapshotCommitted( ) )
+				{
+					return;
+				}
+			}
+			catch ( IOException ex )
+			{
+				if ( checked || isSnapshotCommitted( ) )
+				{
+					throw ex;
+				}
+			}
+			try
+			{
+				Thread.sleep( SNAPSHOT_RETRY_INTERVAL );
+			}
+			catch ( InterruptedException ex )
+			{
+				throw new InterruptedIOException( );
+			}
+			ByteBuffer header = readGeneration( );
+			generation = header.getLong( 0 );
+			changedNode = header.getInt( 8 );
+			length = rf.length( );
+			maxBlockId = (int) ( ( length + blockSize - 1 ) / blockSize ) + 1;
+			if ( storage instanceof MappedFile )
+			{
+				storage = new MappedFile( rf.getChannel( ), length );
+			}
+			invalidateCache( );
+			nodeTable = new NodeTable( this );
+			entryTable = new EntryTable( this );
+			freeTable = freeSpaceBitmap
+					? new FreeBlockMap( this )
+					: new FreeBlockTable( this );
+			properties.clear( );
+		}
+	}
+
+	/**
+	 * return true if the tables read are committed by the writer, the
+	 * generation is even and unchanged after the tables are read, and the
+	 * entries refer to the nodes in the table.
+	 */
+	private boolean isSnapshotCommitted( ) throws IOException
+	{
+		return ( generation & 1 ) == 0
+				&& readGeneration( ).getLong( 0 ) == generation
+				&& entryTable.checkNodes( nodeTable );
+	}
+
+	private void ensureParentFolderCreated( String fileName )
+	{
+		// try to create the parent folder
+		File parentFile = new File( fileName ).getParentFile( );
+		if ( parentFile != null && !parentFile.exists( ) )
+		{
+			parentFile.mkdirs( );
+		}
+	}
+
+	private void createFileSystem( ) throws IOException
+	{
+		if ( indexedEntryTable )
+		{
+			version = EXT2_VERSION_3;
+		}
+		if ( freeSpaceBitmap )
+		{
+			version = EXT2_VERSION_4;
+			freeTable = new FreeBlockMap( this );
+		}
+		// the blocks 0 and 1 are used by the header and the node table, the
+		// tables written below allocate the blocks after them
+		length = 0;
+		maxBlockId = 2;
+		if ( !removeOnExit )
+		{
+			if ( rf == null )
+			{
+				ensureParentFolderCreated( fileName );
+				rf = new RandomAccessFile( fileName, "rw" );
+			}
+			rf.setLength( 0 );
+			writeProperties( );
+			entryTable.write( );
+			freeTable.write( );
+			nodeTable.write( );
+			writeHeader( );
+		}
+		startFlusher( );
+	}
+
+	private void initReadAhead( )
+	{
+		String value = getSystemProperty( PROPERTY_READ_AHEAD );
+		maxReadAhead = DEFAULT_READ_AHEAD;
+		if ( value != null )
+		{
+			try
+			{
+				maxReadAhead = Math.max( 0, Integer.parseInt( value.trim( ) ) );
+			}
+			catch ( NumberFormatException ex )
+			{
+				// just skip the exception
+			}
+		}
+		asyncReadAhead = "true"
+				.equalsIgnoreCase( getSystemProperty( PROPERTY_READ_AHEAD_ASYNC ) );
+	}
+
+	/**
+	 * return the max blocks read ahead by the sequential reads, 0 if the read
+	 * ahead is disabled.
+	 */
+	int getMaxReadAhead( )
+	{
+		return maxReadAhead;
+	}
+
+	/**
+	 * return the count of the blocks loaded by the read ahead.
+	 */
+	public long getReadAheadCount( )
+	{
+		return readAheadCount.get( );
+	}
+
+	/**
+	 * return the count of the blocks loaded by the read ahead and read later.
+	 */
+	public long getReadAheadHitCount( )
+	{
+		return readAheadHitCount.get( );
+	}
+
+	/**
+	 * return true if the block is in the cache, so it is loaded without I/O.
+	 */
+	boolean isBlockCached( int blockId )
+	{
+		return cacheManager.containsCache( Integer.valueOf( blockId ) );
+	}
+
+	void recordReadAheadHit( )
+	{
+		readAheadHitCount.incrementAndGet( );
+	}
+
+	/**
+	 * load the blocks into the cache before they are read. The blocks are
+	 * loaded in the background if the async read ahead is enabled.
+	 * 
+	 * @param blockIds
+	 *            the blocks to be loaded, in the order of the file.
+	 */
+	void readAhead( final int[] blockIds ) throws IOException
+	{
+		if ( !asyncReadAhead )
+		{
+			loadBlocks( blockIds );
+			return;
+		}
+		ReadAheadExecutor.execute( new Runnable( ) {
+
+			public void run( )
+			{
+				try
+				{
+					loadBlocks( blockIds );
+				}
+				catch ( IOException ex )
+				{
+					// the read ahead is only a hint, the blocks are read
+					// again by the reader.
+				}
+			}
+		} );
+	}
+
+	/**
+	 * load the blocks which are not in the cache, the continuous blocks are
+	 * read in one I/O.
+	 */
+	private void loadBlocks( int[] blockIds ) throws IOException
+	{
+		int index = 0;
+		while ( index < blockIds.length )
+		{
+			if ( blockIds[index] < 0
+					|| cacheManager.containsCache( Integer
+							.valueOf( blockIds[index] ) ) )
+			{
+				index++;
+				continue;
+			}
+			int start = blockIds[index];
+			int count = 1;
+			while ( index + count < blockIds.length
+					&& blockIds[index + count] == start + count
+					&& !cacheManager.containsCache( Integer.valueOf( start
+							+ count ) ) )
+			{
+				count++;
+			}
+			int version = cacheVersion;
+			byte[] buffer = new byte[count << blockSizeBits];
+			readBlocks( start, buffer, 0, count );
+			synchronized ( this )
+			{
+				if ( rf == null || version != cacheVersion )
+				{
+					// the file system has been closed or refreshed
+					return;
+				}
+				for ( int i = 0; i < count; i++ )
+				{
+					Integer cacheKey = Integer.valueOf( start + i );
+					if ( !cacheManager.containsCache( cacheKey ) )
+					{
+						DataBlock block = new DataBlock( this, start + i );
+						block.setData( buffer, i << blockSizeBits );
+						block.readAhead = true;
+						cacheManager.addCache( block );
+						cacheManager.releaseCache( block );
+						readAheadCount.incrementAndGet( );
+					}
+				}
+			}
+			index += count;
+		}
+	}
+
+	private void startFlusher( )
+	{
+		if ( !"true".equalsIgnoreCase( getSystemProperty( PROPERTY_WRITE_BEHIND ) ) )
+		{
+			return;
+		}
+		String value = getSystemProperty( PROPERTY_WRITE_BEHIND_LIMIT );
+		long limit = DEFAULT_WRITE_BEHIND_LIMIT;
+		if ( value != null )
+		{
+			try
+			{
+				limit = Long.parseLong( value.trim( ) );
+			}
+			catch ( NumberFormatException ex )
+			{
+				// just skip the exception
+			}
+		}
+		flusher = new BlockFlusher( this, limit );
+		cacheManager.setCacheListener( new WriteBehindCacheListener( ) );
+		flusher.start( );
+	}
+
+	public void setRemoveOnExit( boolean mode )
+	{
+		removeOnExit = mode;
+	}
+
+	synchronized public void close( ) throws IOException
+	{
+		try
+		{
+			closeFiles( );
+			if ( !readOnly && !removeOnExit )
+			{
+				beginCommit( );
+				writeProperties( );
+				entryTable.write( );
+				nodeTable.write( );
+				addReleasedBlocks( );
+				freeTable.write( );
+				nodeTable.write( NodeTable.INODE_FREE_TABLE );
+				if ( flusher != null )
+				{
+					flusher.flushAll( );
+				}
+				flushCaches( );
+				endCommit( );
+				truncate( );
+			}
+			cacheManager.clear( );
+		}
+		finally
+		{
+			if ( flusher != null )
+			{
+				flusher.stop( );
+				flusher = null;
+			}
+			channel = null;
+			try
+			{
+				if ( storage != null )
+				{
+					storage.close( );
+					storage = null;
+				}
+			}
+			finally
+			{
+				if ( rf != null )
+				{
+					rf.close( );
+					rf = null;
+				}
+			}
+			if ( removeOnExit )
+			{
+				new File( fileName ).delete( );
+			}
+			statistics.close( );
+		}
+	}
+
+	private void closeFiles( ) throws IOException
+	{
+		if ( openedFiles != null )
+		{
+			ArrayList<Ext2File> files = new ArrayList<Ext2File>( openedFiles );
+			for ( Ext2File file : files )
+			{
+				if ( file != null )
+				{
+					file.close( );
+				}
+			}
+			openedFiles.clear( );
+		}
+	}
+
+	synchronized public void flush( ) throws IOException
+	{
+		if ( !removeOnExit )
+		{
+			if ( readOnly )
+			{
+				throw new IOException(
+						CoreMessages.getString( ResourceConstants.FILE_IN_READONLY_MODE ) );
+			}
+			commit( );
+		}
+	}
+
+	/**
+	 * write all the tables and the cached data into the disk, so the file is
+	 * a complete archive.
+	 */
+	private void commit( ) throws IOException
+	{
+		ensureFileOpened( );
+		beginCommit( );
+		// flush all the cached data into disk
+		writeProperties( );
+		entryTable.write( );
+		nodeTable.write( );
+		// the blocks released since the last commit are reused after it
+		addReleasedBlocks( );
+		freeTable.write( );
+		nodeTable.write( NodeTable.INODE_FREE_TABLE );
+		if ( flusher != null )
+		{
+			// wait until the queued blocks are written
+			flusher.flushAll( );
+		}
+		flushCaches( );
+		endCommit( );
+	}
+
+	/**
+	 * start to commit the tables, the readers don't take the snapshot until
+	 * the commit is ended.
+	 */
+	private void beginCommit( ) throws IOException
+	{
+		generation++;
+		writeHeader( );
+	}
+
+	/**
+	 * end the commit after all the tables are written, the readers take the
+	 * snapshot of the new generation by refresh.
+	 */
+	private void endCommit( ) throws IOException
+	{
+		generation++;
+		changedNode = nodeTable.takeFirstWrittenNode( );
+		writeHeader( );
+	}
+
+	/**
+	 * the max bytes written by one gathering write.
+	 */
+	static final int MAX_WRITE_SIZE = 1024 * 1024;
+
+	/**
+	 * write all the dirty blocks in the cache, the continuous dirty blocks
+	 * are written in one I/O.
+	 */
+	private void flushCaches( ) throws IOException
+	{
+		Cacheable[] caches = cacheManager.getSortedCaches( );
+		ArrayList<Ext2Block> blocks = new ArrayList<Ext2Block>( caches.length );
+		for ( Cacheable cache : caches )
+		{
+			if ( cache != null )
+			{
+				blocks.add( (Ext2Block) cache );
+			}
+		}
+		writeBlocks( blocks );
+	}
+
+	/**
+	 * write the dirty blocks sorted by the block id. The continuous dirty
+	 * blocks are merged into one gathering write.
+	 */
+	synchronized void writeBlocks( List<Ext2Block> blocks ) throws IOException
+	{
+		ArrayList<Ext2Block> run = new ArrayList<Ext2Block>( );
+		int runSize = 0;
+		for ( Ext2Block block : blocks )
+		{
+			if ( !block.isDirty( ) )
+			{
+				continue;
+			}
+			if ( !run.isEmpty( ) )
+			{
+				Ext2Block last = run.get( run.size( ) - 1 );
+				if ( last.getBlockId( ) + 1 != block.getBlockId( )
+						|| runSize + blockSize > MAX_WRITE_SIZE )
+				{
+					writeRun( run );
+					run.clear( );
+					runSize = 0;
+				}
+			}
+			run.add( block );
+			runSize += blockSize;
+		}
+		writeRun( run );
+	}
+
+	private void writeRun( ArrayList<Ext2Block> run ) throws IOException
+	{
+		int count = run.size( );
+		if ( count == 0 )
+		{
+			return;
+		}
+		if ( count == 1 )
+		{
+			run.get( 0 ).flush( );
+			return;
+		}
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		for ( int i = 0; i < count; i++ )
+		{
+			buffers[i] = run.get( i ).getDirtyData( i > 0, i < count - 1 );
+			assert buffers[i] != null;
+		}
+		int firstBlockId = run.get( 0 ).getBlockId( );
+		long position = ( ( (long) firstBlockId ) << blockSizeBits )
+				+ blockSize - buffers[0].remaining( );
+		ensureFileOpened( );
+		FileChannel fc = getChannel( );
+		fc.position( position );
+		long size = 0;
+		for ( ByteBuffer buffer : buffers )
+		{
+			size += buffer.remaining( );
+		}
+		long remain = size;
+		while ( remain > 0 )
+		{
+			remain -= fc.write( buffers );
+		}
+		// the blocks are still dirty if the write fails
+		for ( Ext2Block block : run )
+		{
+			block.clearDirty( );
+		}
+		statistics.recordWrite( count, size );
+		position += size;
+		if ( position > length )
+		{
+			length = position;
+		}
+	}
+
+	/**
+	 * remove the free blocks at the end of the file.
+	 */
+	private void truncate( ) throws IOException
+	{
+		long maxLength = ( (long) maxBlockId ) << blockSizeBits;
+		if ( length > maxLength )
+		{
+			rf.setLength( maxLength );
+			length = maxLength;
+		}
+	}
+
+	/**
+	 * relocate the used blocks to the beginning of the file and truncate the
+	 * free blocks, so the space left by the removed and rewritten files is
+	 * returned to the OS and the continuous blocks of the files are not
+	 * broken by the free blocks.
+	 * 
+	 * The opened files can be used during and after the compaction. The reads
+	 * and writes of the files wait until the compaction is finished, and the
+	 * cached block ids of the files are discarded by the compaction. The
+	 * archive isn't consistent until the compaction is finished, so it
+	 * mustn't be interrupted.
+	 */
+	public void compact( ) throws IOException
+	{
+		if ( readOnly )
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_IN_READONLY_MODE ) );
+		}
+		compactionLock.writeLock( ).lock( );
+		try
+		{
+			synchronized ( this )
+			{
+				ensureFileOpened( );
+				// release the cached blocks and the reserved runs of the files
+				for ( Ext2File file : new ArrayList<Ext2File>( openedFiles ) )
+				{
+					file.releaseBlocks( );
+				}
+				beginCommit( );
+				// the free blocks are rebuilt by the compactor
+				freeTable.reset( );
+				releasedNodes.clear( );
+				releasedRuns.clear( );
+				writeProperties( );
+				entryTable.write( );
+				nodeTable.write( );
+				freeTable.write( );
+				nodeTable.write( NodeTable.INODE_FREE_TABLE );
+				if ( flusher != null )
+				{
+					flusher.flushAll( );
+				}
+				flushCaches( );
+				cacheManager.clear( );
+
+				maxBlockId = new BlockCompactor( this, nodeTable ).compact( );
+				// the overflow extents loaded by the compactor are cached by
+				// the old block ids
+				cacheManager.clear( );
+				nodeTable.write( );
+				nodeTable.write( NodeTable.INODE_FREE_TABLE );
+				flushCaches( );
+				endCommit( );
+				truncate( );
+			}
+		}
+		finally
+		{
+			compactionLock.writeLock( ).unlock( );
+		}
+	}
+
+	/**
+	 * lock the blocks before the file reads or writes them, so the blocks are
+	 * not relocated by the compaction in the mean time.
+	 * 
+	 * @return the lock to be released by the file, null if the lock isn't
+	 *         needed.
+	 */
+	Lock lockBlocks( )
+	{
+		if ( readOnly || Thread.holdsLock( this ) )
+		{
+			// the read only file system is never compacted, and the
+			// compaction can't run while the file system is locked
+			return null;
+		}
+		Lock lock = compactionLock.readLock( );
+		if ( !lock.tryLock( ) )
+		{
+			// the compaction is running
+			long start = System.nanoTime( );
+			lock.lock( );
+			statistics.recordLockWait( System.nanoTime( ) - start );
+		}
+		return lock;
+	}
+
+	/**
+	 * take the snapshot of the tables committed by the writer since the file
+	 * system is opened or refreshed. It is only supported by the read only
+	 * file system, the writer isn't blocked by it.
+	 * 
+	 * The tables are read again only if the generation in the header is
+	 * changed, and the nodes saved in the same bytes are reused. The snapshot
+	 * is discarded if the writer commits again while the tables are read or an
+	 * entry refers to a node unused in the new table, the file system keeps
+	 * the old snapshot in that case. The writer doesn't reuse the blocks
+	 * released since the last commit until the next commit, so the snapshot
+	 * never refers to the reused blocks. The files opened before keep the old
+	 * nodes until they are refreshed. The blocks of the removed entries may be
+	 * reused by the later commits, so the files of the entries removed in the
+	 * new snapshot throw IOException once they are read or refreshed.
+	 */
+	synchronized public void refresh( ) throws IOException
+	{
+		if ( !readOnly )
+		{
+			return;
+		}
+		if ( rf == null )
+		{
+			if ( storage != null )
+			{
+				// the storage passed in by the caller is never changed
+				return;
+			}
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+		}
+		ByteBuffer header = readGeneration( );
+		long newGeneration = header.getLong( 0 );
+		if ( newGeneration == generation || ( newGeneration & 1 ) != 0 )
+		{
+			// unchanged or the writer is committing
+			return;
+		}
+		length = rf.length( );
+		if ( storage instanceof MappedFile )
+		{
+			// the old segments are released by the GC as the files opened
+			// before may still read them
+			storage = new MappedFile( rf.getChannel( ), length );
+		}
+		// the blocks may be rewritten by the writer
+		invalidateCache( );
+
+		NodeTable oldNodeTable = nodeTable;
+		EntryTable oldEntryTable = entryTable;
+		HashMap<String, String> oldProperties = properties;
+		boolean committed = false;
+		try
+		{
+			if ( newGeneration == generation + 2 )
+			{
+				// only the nodes after the first changed node are read
+				nodeTable = oldNodeTable.refresh( header.getInt( 8 ) );
+			}
+			else
+			{
+				NodeTable table = new NodeTable( this );
+				table.read( );
+				nodeTable = table;
+			}
+			EntryTable table = new EntryTable( this );
+			entryTable = table;
+			boolean consistent = table.readSnapshot( nodeTable );
+			properties = new HashMap<String, String>( );
+			readProperties( );
+			if ( consistent && readGeneration( ).getLong( 0 ) == newGeneration )
+			{
+				generation = newGeneration;
+				committed = true;
+				markRemovedFiles( );
+			}
+		}
+		catch ( IOException ex )
+		{
+			if ( readGeneration( ).getLong( 0 ) == newGeneration )
+			{
+				throw ex;
+			}
+			// the tables are changed by the writer while they are read
+		}
+		finally
+		{
+			if ( !committed )
+			{
+				nodeTable = oldNodeTable;
+				entryTable = oldEntryTable;
+				properties = oldProperties;
+				// the blocks of the discarded snapshot are cached
+				invalidateCache( );
+			}
+		}
+	}
+
+	/**
+	 * discard the cached blocks, the blocks being read now aren't cached.
+	 */
+	private void invalidateCache( )
+	{
+		cacheVersion++;
+		cacheManager.invalidate( );
+	}
+
+	/**
+	 * mark the opened files whose entries are removed in the new snapshot, the
+	 * entry created again with the same name is detected by the node id.
+	 */
+	private void markRemovedFiles( )
+	{
+		for ( Ext2File file : openedFiles )
+		{
+			Ext2Entry oldEntry = file.getEntry( );
+			if ( oldEntry != null )
+			{
+				Ext2Entry newEntry = entryTable.getEntry( oldEntry.name );
+				if ( newEntry == null || newEntry.inode != oldEntry.inode )
+				{
+					file.setRemoved( );
+				}
+			}
+		}
+	}
 
 	/**
-	 * opened streams
+	 * read the generation and the changed node saved in the header.
 	 */
-	private HashSet<Ext2File> openedFiles = new HashSet<Ext2File>( );
+	private ByteBuffer readGeneration( ) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate( 12 );
+		readFully( getChannel( ), buffer, GENERATION_OFFSET );
+		return buffer;
+	}
 
 	/**
-	 * mode
+	 * replace the content of the empty file system with the content of the
+	 * source file system. The whole file is copied by the channel transfer,
+	 * so the blocks are neither read into the memory nor cached, and the
+	 * tables are read from the copy. The properties set to this file system
+	 * are kept.
 	 * 
-	 * @param filePath
-	 * @param mode
-	 *            defines the archive open mode: "r": read mode "rw": read write
-	 *            mode, if the file exist, create a empty one. "rw+": read write
-	 *            mode, if the file exist, open the exits file. "rwt": read
-	 *            write cache mode, if the file exist, create a empty one. the
-	 *            file is removed after the file is closed.
-	 * @throws IOException
+	 * @return false if this file system isn't empty or the source isn't saved
+	 *         in a file, the caller should copy the files one by one in that
+	 *         case.
 	 */
-	public Ext2FileSystem( String filePath, String mode ) throws IOException
-	{
-		this( filePath, null, mode );
-	}
-
-	public Ext2FileSystem( String filePath, RandomAccessFile rf, String mode )
+	synchronized public boolean copyFrom( Ext2FileSystem source )
 			throws IOException
 	{
-		fileName = new File( filePath ).getCanonicalPath( );
-		this.rf = rf;
-
-		cacheManager.setCacheListener( new Ext2FileSystemCacheListener( ) );
-
-		if ( "rw".equals( mode ) )
+		if ( readOnly )
 		{
-			readOnly = false;
-			removeOnExit = false;
-			createFileSystem( );
-			return;
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_IN_READONLY_MODE ) );
 		}
-		if ( "rw+".equals( mode ) )
+		if ( source == this || !openedFiles.isEmpty( )
+				|| entryTable.listEntries( ).length > 0 )
 		{
-			readOnly = false;
-			removeOnExit = false;
-			if ( new File( fileName ).exists( ) )
+			return false;
+		}
+		synchronized ( source )
+		{
+			if ( source.readOnly )
 			{
-				openFileSystem( );
+				if ( source.rf == null )
+				{
+					// the source is saved in the storage
+					return false;
+				}
 			}
 			else
 			{
-				createFileSystem( );
+				if ( source.rf == null && !source.removeOnExit )
+				{
+					// the source has been closed
+					return false;
+				}
+				// the tables of the temporary file are only written here
+				source.commit( );
 			}
-			return;
-		}
-
-		if ( "r".equals( mode ) )
-		{
-			readOnly = true;
-			removeOnExit = false;
-			openFileSystem( );
-			return;
-		}
-
-		if ( "rwt".equals( mode ) )
-		{
-			readOnly = false;
-			removeOnExit = true;
-			createFileSystem( );
-			return;
-		}
-		throw new IOException( CoreMessages.getFormattedString(
-				ResourceConstants.UNSUPPORTED_FILE_MODE, new Object[]{mode} ) );
-	}
-
-	private void openFileSystem( ) throws IOException
-	{
-		if ( rf == null )
-		{
-			if ( readOnly )
+			ensureFileOpened( );
+			if ( flusher != null )
 			{
-				rf = new RandomAccessFile( fileName, "r" );
+				// the queued blocks mustn't be written into the copy
+				flusher.flushAll( );
 			}
-			else
+			cacheManager.clear( );
+			FileChannel in = source.getChannel( );
+			FileChannel out = getChannel( );
+			long size = in.size( );
+			long position = 0;
+			out.position( 0 );
+			while ( position < size )
 			{
-				rf = new RandomAccessFile( fileName, "rw" );
+				long count = in.transferTo( position, size - position, out );
+				if ( count <= 0 )
+				{
+					throw new EOFException( );
+				}
+				position += count;
 			}
+			out.truncate( size );
+			length = size;
+			statistics.recordWrite(
+					(int) ( ( size + blockSize - 1 ) >> blockSizeBits ), size );
 		}
-		length = rf.length( );
-		maxBlockId = (int) ( ( length + BLOCK_SIZE - 1 ) / BLOCK_SIZE ) + 1;
 
 		readHeader( );
-		nodeTable.read( );
-		entryTable.read( );
+		// the generation is continued by this writer
+		generation = ( generation + 1 ) & ~1L;
+		freeTable = new FreeBlockTable( this );
+		releasedNodes.clear( );
+		releasedRuns.clear( );
+		if ( freeSpaceBitmap )
+		{
+			freeTable = new FreeBlockMap( this );
+		}
+		maxBlockId = (int) ( ( length + blockSize - 1 ) / blockSize ) + 1;
+		NodeTable newNodeTable = new NodeTable( this );
+		newNodeTable.read( );
+		nodeTable = newNodeTable;
+		EntryTable newEntryTable = new EntryTable( this );
+		newEntryTable.read( );
+		entryTable = newEntryTable;
 		freeTable.read( );
+		// the properties set before are kept, so they are written again
 		readProperties( );
+		propertyDirty = true;
+		return true;
 	}
 
-	private void ensureParentFolderCreated( String fileName )
+	public boolean isReadOnly( )
 	{
-		// try to create the parent folder
-		File parentFile = new File( fileName ).getParentFile( );
-		if ( parentFile != null && !parentFile.exists( ) )
-		{
-			parentFile.mkdirs( );
-		}
+		return readOnly;
 	}
 
-	private void createFileSystem( ) throws IOException
+	public boolean isRemoveOnExit( )
 	{
-		if ( !removeOnExit )
-		{
-			if ( rf == null )
-			{
-				ensureParentFolderCreated( fileName );
-				rf = new RandomAccessFile( fileName, "rw" );
-			}
-			rf.setLength( 0 );
-			writeProperties( );
-			entryTable.write( );
-			freeTable.write( );
-			nodeTable.write( );
-			writeHeader( );
-		}
-		length = 0;
-		maxBlockId = 2;
+		return removeOnExit;
 	}
 
-	public void setRemoveOnExit( boolean mode )
+	/**
+	 * return true if the blocks are read from the memory mapped file. In that
+	 * case the data needn't be cached in the data blocks as the OS has cached
+	 * it.
+	 */
+	boolean isMemoryMapped( )
 	{
-		removeOnExit = mode;
+		return storage instanceof MappedFile;
 	}
 
-	synchronized public void close( ) throws IOException
+	/**
+	 * read the system property which configures the file system.
+	 */
+	private static String getSystemProperty( final String name )
 	{
-		try
-		{
-			closeFiles( );
-			if ( !readOnly && !removeOnExit )
-			{
-				writeProperties( );
-				entryTable.write( );
-				nodeTable.write( );
-				freeTable.write( );
-				nodeTable.write( NodeTable.INODE_FREE_TABLE );
-				cacheManager.touchAllCaches( );
-				writeHeader( );
-			}
-			cacheManager.clear( );
-		}
-		finally
-		{
-			if ( rf != null )
-			{
-				rf.close( );
-				rf = null;
-			}
-			if ( removeOnExit )
-			{
-				new File( fileName ).delete( );
-			}
-		}
+		return (String) AccessController
+				.doPrivileged( new PrivilegedAction<Object>( ) {
+
+					public Object run( )
+					{
+						return System.getProperty( name );
+					}
+				} );
 	}
 
-	private void closeFiles( ) throws IOException
+	private static int getDefaultBlockSize( )
 	{
-		if ( openedFiles != null )
+		String value = getSystemProperty( PROPERTY_BLOCK_SIZE );
+		if ( value != null )
 		{
-			ArrayList<Ext2File> files = new ArrayList<Ext2File>( openedFiles );
-			for ( Ext2File file : files )
+			try
 			{
-				if ( file != null )
+				int size = Integer.parseInt( value.trim( ) );
+				if ( isValidBlockSize( size ) )
 				{
-					file.close( );
+					return size;
 				}
 			}
-			openedFiles.clear( );
+			catch ( NumberFormatException ex )
+			{
+				// just skip the exception
+			}
 		}
+		return BLOCK_SIZE;
 	}
 
-	synchronized public void flush( ) throws IOException
+	static boolean isValidBlockSize( int size )
 	{
-		if ( !removeOnExit )
-		{
-			if ( readOnly )
-			{
-				throw new IOException(
-						CoreMessages.getString( ResourceConstants.FILE_IN_READONLY_MODE ) );
-			}
+		return size >= MIN_BLOCK_SIZE && size <= MAX_BLOCK_SIZE
+				&& ( size & ( size - 1 ) ) == 0;
+	}
 
-			ensureFileOpened( );
-			// flush all the cached data into disk
-			writeProperties( );
-			entryTable.write( );
-			nodeTable.write( );
-			freeTable.write( );
-			nodeTable.write( NodeTable.INODE_FREE_TABLE );
-			cacheManager.touchAllCaches( new Ext2FileSystemCacheListener( ) );
-		}
+	private void setBlockSize( int size )
+	{
+		blockSize = size;
+		blockSizeBits = Integer.numberOfTrailingZeros( size );
+		blockOffsetMask = size - 1;
 	}
 
-	public void refresh( ) throws IOException
+	/**
+	 * return the block size of the file system.
+	 */
+	public int getBlockSize( )
 	{
-		throw new UnsupportedOperationException( "refresh" );
+		return blockSize;
 	}
 
-	public boolean isReadOnly( )
+	int getBlockSizeBits( )
 	{
-		return readOnly;
+		return blockSizeBits;
 	}
 
-	public boolean isRemoveOnExit( )
+	int getBlockOffsetMask( )
 	{
-		return removeOnExit;
+		return blockOffsetMask;
+	}
+
+	private boolean isMemoryMappedEnabled( )
+	{
+		String value = getSystemProperty( PROPERTY_MEMORY_MAPPED );
+		return "true".equalsIgnoreCase( value );
+	}
+
+	private boolean isDirectBufferEnabled( )
+	{
+		String value = getSystemProperty( PROPERTY_DIRECT_BUFFER );
+		return "true".equalsIgnoreCase( value );
+	}
+
+	boolean isDirectBuffer( )
+	{
+		return directBuffer;
+	}
+
+	private boolean isExtentLayoutEnabled( )
+	{
+		String value = getSystemProperty( PROPERTY_EXTENT_LAYOUT );
+		return "true".equalsIgnoreCase( value );
+	}
+
+	/**
+	 * return true if the new files are created in extent layout.
+	 */
+	boolean isExtentLayout( )
+	{
+		return extentLayout;
+	}
+
+	private boolean isFreeSpaceBitmapEnabled( )
+	{
+		String value = getSystemProperty( PROPERTY_FREE_SPACE_BITMAP );
+		return "true".equalsIgnoreCase( value );
+	}
+
+	private boolean isIndexedEntryTableEnabled( )
+	{
+		String value = getSystemProperty( PROPERTY_INDEXED_ENTRY_TABLE );
+		return "true".equalsIgnoreCase( value );
+	}
+
+	/**
+	 * return true if the entry table is saved in the indexed pages.
+	 */
+	boolean isIndexedEntryTable( )
+	{
+		return indexedEntryTable;
+	}
+
+	/**
+	 * return true if the new files are saved in compressed frames.
+	 */
+	public boolean isCompressed( )
+	{
+		return compressed;
+	}
+
+	/**
+	 * save the files created after this call in compressed frames. Each file
+	 * is compressed separately in frames, so the file can still be read at
+	 * any position without inflating the whole file. The archive contains
+	 * compressed files can't be opened by the old versions.
+	 */
+	synchronized public void setCompressed( boolean compressed )
+			throws IOException
+	{
+		if ( readOnly )
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_IN_READONLY_MODE ) );
+		}
+		this.compressed = compressed;
+		if ( compressed && version < EXT2_VERSION_2 )
+		{
+			version = EXT2_VERSION_2;
+		}
 	}
 
 	synchronized void registerOpenedFile( Ext2File file )
 	{
-		openedFiles.add( file );
+		if ( openedFiles.add( file ) )
+		{
+			statistics.recordFileOpen( );
+		}
 	}
 
 	synchronized void unregisterOpenedFile( Ext2File file )
 	{
-		openedFiles.remove( file );
+		if ( openedFiles.remove( file ) )
+		{
+			statistics.recordFileClose( );
+		}
 	}
 
 	public void setCacheSize( int cacheSize )
@@ -304,6 +1509,14 @@ public class Ext2FileSystem
 		return cacheManager.getUsedCacheSize( );
 	}
 
+	/**
+	 * return the I/O and cache statistics of the file system.
+	 */
+	public ArchiveStatistics getStatistics( )
+	{
+		return statistics;
+	}
+
 	synchronized public Ext2File createFile( String name ) throws IOException
 	{
 		if ( readOnly )
@@ -315,22 +1528,38 @@ public class Ext2FileSystem
 		if ( entry == null )
 		{
 			Ext2Node node = nodeTable.allocateNode( );
+			node.setCompressed( compressed );
 			entry = new Ext2Entry( name, node.getNodeId( ) );
 			entryTable.addEntry( entry );
 		}
 		Ext2Node node = nodeTable.getNode( entry.inode );
-		Ext2File file = new Ext2File( this, entry, node );
+		Ext2File file = createFile( entry, node );
 		file.setLength( 0 );
 		return file;
 	}
 
+	private Ext2File createFile( Ext2Entry entry, Ext2Node node )
+			throws IOException
+	{
+		if ( node.isCompressed( ) )
+		{
+			return new CompressedFile( this, entry, node );
+		}
+		return new Ext2File( this, entry, node );
+	}
+
 	synchronized public Ext2File openFile( String name ) throws IOException
 	{
 		Ext2Entry entry = entryTable.getEntry( name );
+		if ( entry != null && readOnly && !nodeTable.isUsedNode( entry.inode ) )
+		{
+			// the bucket of the indexed table is read after the writer commits
+			throw new FileNotFoundException( name );
+		}
 		if ( entry != null )
 		{
 			Ext2Node node = nodeTable.getNode( entry.inode );
-			return new Ext2File( this, entry, node );
+			return createFile( entry, node );
 		}
 
 		if ( !readOnly )
@@ -350,6 +1579,32 @@ public class Ext2FileSystem
 		return entryTable.listEntries( );
 	}
 
+	/**
+	 * list the files starting with the prefix in the order of the names.
+	 */
+	synchronized public List<String> listFiles( String prefix )
+	{
+		return entryTable.listEntries( prefix, null, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * return the iterator of the files starting with the prefix, the names
+	 * are listed in batches instead of in one list.
+	 */
+	public Iterator<String> iterateFiles( String prefix )
+	{
+		return EntryNameIndex.iterator( prefix, new EntryNameIndex.Source( ) {
+
+			public List<String> list( String prefix, String after, int max )
+			{
+				synchronized ( Ext2FileSystem.this )
+				{
+					return entryTable.listEntries( prefix, after, max );
+				}
+			}
+		} );
+	}
+
 	synchronized public void removeFile( String name ) throws IOException
 	{
 		if ( readOnly )
@@ -406,18 +1661,42 @@ public class Ext2FileSystem
 	}
 
 	static final int HEADER_SIZE = 1024;
+	/**
+	 * the offset of the generation in the header, it is saved after the
+	 * fields of all the versions and ignored by the old readers.
+	 */
+	static final int GENERATION_OFFSET = 64;
 	/** the document tag: RPTDOCV2 */
 	public static final long EXT2_MAGIC_TAG = 0x525054444f435632L;
 	static final int EXT2_VERSION_0 = 0;
+	/**
+	 * the version supports the nodes in extent layout.
+	 */
+	static final int EXT2_VERSION_1 = 1;
+	/**
+	 * the version supports the nodes in compressed frames.
+	 */
+	static final int EXT2_VERSION_2 = 2;
+	/**
+	 * the version supports the indexed entry table.
+	 */
+	static final int EXT2_VERSION_3 = 3;
+	/**
+	 * the version supports the free space bitmap.
+	 */
+	static final int EXT2_VERSION_4 = 4;
+	/**
+	 * the default block size, it is the only block size used by the old
+	 * archives.
+	 */
 	static final int BLOCK_SIZE = 4096;
-	static final int BLOCK_SIZE_BITS = 12;
-	static final int BLOCK_OFFSET_MASK = 0xFFF;
+	static final int MIN_BLOCK_SIZE = 4096;
+	static final int MAX_BLOCK_SIZE = 1024 * 1024;
 
 	private void readHeader( ) throws IOException
 	{
 		byte[] bytes = new byte[HEADER_SIZE];
-		rf.seek( 0 );
-		rf.readFully( bytes );
+		readData( 0, bytes, 0, HEADER_SIZE );
 
 		DataInputStream in = new DataInputStream( new ByteArrayInputStream(
 				bytes ) );
@@ -428,20 +1707,43 @@ public class Ext2FileSystem
 					ResourceConstants.NOT_EXT2_ARCHIVE, new Object[]{magicTag} ) );
 		}
 		int version = in.readInt( );
-		if ( version != EXT2_VERSION_0 )
+		if ( version < EXT2_VERSION_0 || version > EXT2_VERSION_4 )
 		{
 			throw new IOException( CoreMessages.getFormattedString(
 					ResourceConstants.UNSUPPORTED_ARCHIVE_VERSION,
 					new Object[]{version} ) );
 		}
-
-		int blockSize = in.readInt( );
-		if ( blockSize != BLOCK_SIZE )
+
+		int blockSize = in.readInt( );
+		if ( !isValidBlockSize( blockSize ) )
+		{
+			throw new IOException( CoreMessages.getFormattedString(
+					ResourceConstants.UNSUPPORTED_BLOCK_SIZE,
+					new Object[]{blockSize} ) );
+		}
+		setBlockSize( blockSize );
+		if ( version >= EXT2_VERSION_2 )
+		{
+			compressed = in.readBoolean( );
+		}
+		// the file system saves the format of the entry table in the header
+		indexedEntryTable = false;
+		if ( version >= EXT2_VERSION_3 )
+		{
+			indexedEntryTable = in.readBoolean( );
+		}
+		freeSpaceBitmap = false;
+		if ( version >= EXT2_VERSION_4 )
+		{
+			freeSpaceBitmap = in.readBoolean( );
+		}
+		if ( version > this.version )
 		{
-			throw new IOException( CoreMessages.getFormattedString(
-					ResourceConstants.UNSUPPORTED_BLOCK_SIZE,
-					new Object[]{blockSize} ) );
+			this.version = version;
 		}
+		ByteBuffer buffer = ByteBuffer.wrap( bytes );
+		generation = buffer.getLong( GENERATION_OFFSET );
+		changedNode = buffer.getInt( GENERATION_OFFSET + 8 );
 	}
 
 	private void readProperties( ) throws IOException
@@ -474,13 +1776,29 @@ public class Ext2FileSystem
 
 	private void writeHeader( ) throws IOException
 	{
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream( BLOCK_SIZE );
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( HEADER_SIZE );
 		DataOutputStream out = new DataOutputStream( bytes );
 		out.writeLong( EXT2_MAGIC_TAG );
-		out.writeInt( EXT2_VERSION_0 );
-		out.writeInt( BLOCK_SIZE );
+		out.writeInt( version );
+		out.writeInt( blockSize );
+		if ( version >= EXT2_VERSION_2 )
+		{
+			out.writeBoolean( compressed );
+		}
+		if ( version >= EXT2_VERSION_3 )
+		{
+			out.writeBoolean( indexedEntryTable );
+		}
+		if ( version >= EXT2_VERSION_4 )
+		{
+			out.writeBoolean( freeSpaceBitmap );
+		}
+		out.write( new byte[GENERATION_OFFSET - bytes.size( )] );
+		out.writeLong( generation );
+		out.writeInt( changedNode );
 		rf.seek( 0 );
 		rf.write( bytes.toByteArray( ) );
+		statistics.recordWrite( 1, bytes.size( ) );
 	}
 
 	private void writeProperties( ) throws IOException
@@ -519,14 +1837,115 @@ public class Ext2FileSystem
 		int blockId = freeTable.getFreeBlock( );
 		if ( blockId > 0 )
 		{
+			discardQueuedBlocks( blockId, 1 );
 			return blockId;
 		}
+		// the block may be truncated and still queued by the flusher
+		discardQueuedBlocks( maxBlockId, 1 );
 		return maxBlockId++;
 	}
 
-	void releaseFreeBlocks( Ext2Node node )
+	/**
+	 * the released block may be still queued by the flusher, the old content
+	 * mustn't be written once the block is allocated again.
+	 */
+	private void discardQueuedBlocks( int start, int count )
+	{
+		if ( flusher != null )
+		{
+			flusher.discard( start, count );
+		}
+	}
+
+	/**
+	 * allocate a run of continuous free blocks.
+	 * 
+	 * @param maxCount
+	 *            the max blocks in the run.
+	 * @return the start block and the block count of the run.
+	 */
+	synchronized int[] allocFreeRun( int maxCount ) throws IOException
+	{
+		int[] run = freeTable.getFreeRun( maxCount );
+		if ( run == null )
+		{
+			// reuse the single free blocks before extending the file
+			int blockId = freeTable.getFreeBlock( );
+			if ( blockId > 0 )
+			{
+				run = new int[]{blockId, 1};
+			}
+			else
+			{
+				run = new int[]{maxBlockId, maxCount};
+				maxBlockId += maxCount;
+			}
+		}
+		discardQueuedBlocks( run[0], run[1] );
+		return run;
+	}
+
+	/**
+	 * release the blocks of the free node, they are added to the free table
+	 * by the next commit if the file is shared with the readers.
+	 */
+	synchronized void releaseFreeBlocks( Ext2Node node ) throws IOException
 	{
+		if ( !removeOnExit )
+		{
+			releasedNodes.add( node );
+			return;
+		}
 		freeTable.addFreeBlocks( node );
+		maxBlockId = freeTable.trim( maxBlockId );
+	}
+
+	/**
+	 * release the run of the committed blocks, it is added to the free table
+	 * by the next commit if the file is shared with the readers.
+	 */
+	synchronized void releaseFreeRun( int start, int count )
+	{
+		if ( !removeOnExit )
+		{
+			releasedRuns.add( new int[]{start, count} );
+			return;
+		}
+		releaseUnusedRun( start, count );
+	}
+
+	/**
+	 * release the run which is never committed, such as the blocks reserved by
+	 * the file, it can be reused at once.
+	 */
+	synchronized void releaseUnusedRun( int start, int count )
+	{
+		if ( start + count == maxBlockId )
+		{
+			// the run is at the end of the file, shrink it directly
+			maxBlockId = freeTable.trim( start );
+			return;
+		}
+		freeTable.addFreeRun( start, count );
+	}
+
+	/**
+	 * add the blocks released since the last commit to the free table, it is
+	 * called by the commit before the free table is written.
+	 */
+	private void addReleasedBlocks( ) throws IOException
+	{
+		for ( Ext2Node node : releasedNodes )
+		{
+			freeTable.addFreeBlocks( node );
+			maxBlockId = freeTable.trim( maxBlockId );
+		}
+		releasedNodes.clear( );
+		for ( int[] run : releasedRuns )
+		{
+			releaseUnusedRun( run[0], run[1] );
+		}
+		releasedRuns.clear( );
 	}
 
 	synchronized protected FatBlock createFatBlock( ) throws IOException
@@ -539,7 +1958,14 @@ public class Ext2FileSystem
 
 	synchronized protected DataBlock createDataBlock( ) throws IOException
 	{
-		int blockId = allocFreeBlock( );
+		return createDataBlock( allocFreeBlock( ) );
+	}
+
+	/**
+	 * create the data block with the allocated block id.
+	 */
+	synchronized DataBlock createDataBlock( int blockId ) throws IOException
+	{
 		DataBlock block = new DataBlock( this, blockId );
 		cacheManager.addCache( block );
 		return block;
@@ -550,28 +1976,106 @@ public class Ext2FileSystem
 		cacheManager.releaseCache( block );
 	}
 
-	synchronized protected FatBlock loadFatBlock( int blockId )
-			throws IOException
+	protected FatBlock loadFatBlock( int blockId ) throws IOException
 	{
-		FatBlock block = (FatBlock) cacheManager.getCache( blockId );
-		if ( block == null )
+		if ( readOnly )
 		{
-			block = new FatBlock( this, blockId );
-			block.refresh( );
-			cacheManager.addCache( block );
+			return (FatBlock) loadReadOnlyBlock( blockId, true );
+		}
+		synchronized ( this )
+		{
+			FatBlock block = (FatBlock) cacheManager.getCache( blockId );
+			if ( block == null )
+			{
+				flushQueuedBlock( blockId );
+				block = new FatBlock( this, blockId );
+				block.refresh( );
+				cacheManager.addCache( block );
+			}
+			return block;
+		}
+	}
+
+	/**
+	 * the block removed from the cache may be still queued by the flusher, it
+	 * must be written before the block is read from the disk.
+	 */
+	private void flushQueuedBlock( int blockId ) throws IOException
+	{
+		if ( flusher != null )
+		{
+			flusher.flush( blockId );
+		}
+	}
+
+	DataBlock loadDataBlock( int blockId ) throws IOException
+	{
+		if ( readOnly )
+		{
+			return (DataBlock) loadReadOnlyBlock( blockId, false );
+		}
+		synchronized ( this )
+		{
+			Object cacheKey = Integer.valueOf( blockId );
+			DataBlock block = (DataBlock) cacheManager.getCache( cacheKey );
+			if ( block == null )
+			{
+				flushQueuedBlock( blockId );
+				block = new DataBlock( this, blockId );
+				block.refresh( );
+				cacheManager.addCache( block );
+			}
+			return block;
 		}
-		return block;
 	}
 
-	synchronized DataBlock loadDataBlock( int blockId ) throws IOException
+	/**
+	 * load the block of the read only file system.
+	 * 
+	 * The block can't be changed in read only mode, so it is read out of the
+	 * lock, then different threads can read different blocks at the same
+	 * time. If another thread has loaded the same block in the mean time, the
+	 * cached one is used.
+	 */
+	private Ext2Block loadReadOnlyBlock( int blockId, boolean isFatBlock )
+			throws IOException
 	{
 		Object cacheKey = Integer.valueOf( blockId );
-		DataBlock block = (DataBlock) cacheManager.getCache( cacheKey );
+		Ext2Block block;
+		synchronized ( this )
+		{
+			block = (Ext2Block) cacheManager.getCache( cacheKey );
+		}
 		if ( block == null )
 		{
-			block = new DataBlock( this, blockId );
+			int version = cacheVersion;
+			if ( isFatBlock )
+			{
+				block = new FatBlock( this, blockId );
+			}
+			else
+			{
+				block = new DataBlock( this, blockId );
+			}
 			block.refresh( );
-			cacheManager.addCache( block );
+			synchronized ( this )
+			{
+				if ( version != cacheVersion )
+				{
+					// the block may be changed by the writer before refresh
+					return loadReadOnlyBlock( blockId, isFatBlock );
+				}
+				if ( cacheManager.containsCache( cacheKey ) )
+				{
+					Ext2Block cachedBlock = (Ext2Block) cacheManager
+							.getCache( cacheKey );
+					if ( cachedBlock != null )
+					{
+						return cachedBlock;
+					}
+				}
+				cacheManager.addCache( block );
+			}
 		}
 		return block;
 	}
@@ -582,28 +2086,215 @@ public class Ext2FileSystem
 		readBlock( blockId, offset, buffer, offset, size );
 	}
 
-	synchronized void readBlock( int blockId, int blockOff, byte[] buffer,
-			int offset, int size ) throws IOException
+	void readBlock( int blockId, int blockOff, byte[] buffer, int offset,
+			int size ) throws IOException
 	{
 		assert buffer != null;
-		assert blockId >= 0;
+		checkBlock( blockId );
 		assert offset >= 0;
 		assert blockOff >= 0;
 		assert offset + size <= buffer.length;
-		assert blockOff + size <= BLOCK_SIZE;
+		assert blockOff + size <= blockSize;
+
+		long position = ( ( (long) blockId ) << blockSizeBits ) + blockOff;
+		readData( position, buffer, offset, size );
+	}
+
+	/**
+	 * read the whole block into the buffer of the data block.
+	 */
+	void readBlock( int blockId, ByteBuffer buffer ) throws IOException
+	{
+		if ( buffer.hasArray( ) )
+		{
+			readBlock( blockId, 0, buffer.array( ), buffer.arrayOffset( ),
+					buffer.capacity( ) );
+			return;
+		}
+		long position = ( (long) blockId ) << blockSizeBits;
+		if ( storage != null )
+		{
+			byte[] bytes = new byte[buffer.capacity( )];
+			readData( position, bytes, 0, bytes.length );
+			buffer.clear( );
+			buffer.put( bytes );
+			return;
+		}
+		ByteBuffer bytes = buffer.duplicate( );
+		bytes.clear( );
+		readFile( position, bytes );
+	}
 
-		long position = ( ( (long) blockId ) << BLOCK_SIZE_BITS ) + blockOff;
-		if ( position < length )
+	/**
+	 * check the block before it is read, the file of an old snapshot may read
+	 * an invalid block once the blocks of its entry are reused by the writer.
+	 */
+	private static void checkBlock( int blockId ) throws IOException
+	{
+		if ( blockId < 0 )
+		{
+			throw new IOException( CoreMessages.getFormattedString(
+					ResourceConstants.INVALID_BLOCK, new Object[]{blockId} ) );
+		}
+	}
+
+	/**
+	 * read the continuous blocks in one I/O.
+	 */
+	void readBlocks( int blockId, byte[] buffer, int offset, int count )
+			throws IOException
+	{
+		checkBlock( blockId );
+		assert offset + ( count << blockSizeBits ) <= buffer.length;
+
+		long position = ( (long) blockId ) << blockSizeBits;
+		readData( position, buffer, offset, count << blockSizeBits );
+	}
+
+	private void readData( long position, byte[] buffer, int offset, int size )
+			throws IOException
+	{
+		IReadOnlyStorage readOnlyStorage = storage;
+		if ( readOnlyStorage != null )
+		{
+			// the storage is read only, needn't lock the file system
+			long storageLength = readOnlyStorage.length( );
+			if ( position < storageLength )
+			{
+				long remainSize = storageLength - position;
+				if ( remainSize < size )
+				{
+					size = (int) remainSize;
+				}
+				readOnlyStorage.read( position, buffer, offset, size );
+				recordRead( size );
+			}
+			return;
+		}
+		readFile( position, buffer, offset, size );
+	}
+
+	private void recordRead( int size )
+	{
+		int blocks = ( size + blockSize - 1 ) >> blockSizeBits;
+		statistics.recordRead( blocks > 0 ? blocks : 1, size );
+	}
+
+	/**
+	 * read the data with the positional read of the file channel. It doesn't
+	 * use the file pointer, so the different blocks can be read at the same
+	 * time.
+	 */
+	private void readFile( long position, byte[] buffer, int offset, int size )
+			throws IOException
+	{
+		readFile( position, ByteBuffer.wrap( buffer, offset, size ) );
+	}
+
+	private void readFile( long position, ByteBuffer bytes ) throws IOException
+	{
+		long fileLength = length;
+		if ( position < fileLength )
+		{
+			long remainSize = fileLength - position;
+			if ( remainSize < bytes.remaining( ) )
+			{
+				bytes.limit( bytes.position( ) + (int) remainSize );
+			}
+			int start = bytes.position( );
+			int size = bytes.remaining( );
+			FileChannel fc = getChannel( );
+			try
+			{
+				readFully( fc, bytes, position );
+			}
+			catch ( ClosedByInterruptException ex )
+			{
+				throw ex;
+			}
+			catch ( ClosedChannelException ex )
+			{
+				// the channel is closed as another reader is interrupted, the
+				// file system is still opened, so reopen the file and retry.
+				bytes.position( start );
+				readFully( reopenChannel( fc ), bytes, position );
+			}
+			recordRead( size );
+		}
+	}
+
+	private void readFully( FileChannel fc, ByteBuffer bytes, long position )
+			throws IOException
+	{
+		while ( bytes.hasRemaining( ) )
+		{
+			int readSize = fc.read( bytes, position );
+			if ( readSize < 0 )
+			{
+				throw new EOFException( );
+			}
+			position += readSize;
+		}
+	}
+
+	private FileChannel getChannel( ) throws IOException
+	{
+		FileChannel fc = channel;
+		if ( fc == null )
 		{
-			long remainSize = length - position;
-			rf.seek( position );
-			if ( remainSize < size )
+			synchronized ( this )
 			{
-				size = (int) remainSize;
+				if ( channel == null )
+				{
+					if ( rf == null )
+					{
+						throw new IOException(
+								CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+					}
+					channel = rf.getChannel( );
+				}
+				fc = channel;
 			}
-			rf.readFully( buffer, offset, size );
 		}
+		return fc;
+	}
+
+	synchronized private FileChannel reopenChannel( FileChannel closed )
+			throws IOException
+	{
+		if ( rf == null )
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+		}
+		if ( channel == closed )
+		{
+			rf = new RandomAccessFile( fileName, readOnly ? "r" : "rw" );
+			channel = rf.getChannel( );
+		}
+		return channel;
+	}
 
+	/**
+	 * write the continuous blocks in one I/O.
+	 */
+	synchronized void writeBlocks( int blockId, byte[] buffer, int offset,
+			int count ) throws IOException
+	{
+		checkBlock( blockId );
+		assert offset + ( count << blockSizeBits ) <= buffer.length;
+
+		ensureFileOpened( );
+		long position = ( (long) blockId ) << blockSizeBits;
+		int size = count << blockSizeBits;
+		rf.seek( position );
+		rf.write( buffer, offset, size );
+		statistics.recordWrite( count, size );
+		position += size;
+		if ( position > length )
+		{
+			length = position;
+		}
 	}
 
 	void writeBlock( int blockId, byte[] buffer, int offset, int size )
@@ -616,16 +2307,51 @@ public class Ext2FileSystem
 			int offset, int size ) throws IOException
 	{
 		assert buffer != null;
-		assert blockId >= 0;
+		checkBlock( blockId );
 		assert offset >= 0;
 		assert blockOff >= 0;
 		assert offset + size <= buffer.length;
-		assert blockOff + size <= BLOCK_SIZE;
+		assert blockOff + size <= blockSize;
 
 		ensureFileOpened( );
-		long position = ( ( (long) blockId ) << BLOCK_SIZE_BITS ) + blockOff;
+		long position = ( ( (long) blockId ) << blockSizeBits ) + blockOff;
 		rf.seek( position );
 		rf.write( buffer, offset, size );
+		statistics.recordWrite( 1, size );
+		position += size;
+		if ( position > length )
+		{
+			length = position;
+		}
+	}
+
+	/**
+	 * write the data of the block from the position to the limit of the
+	 * buffer.
+	 */
+	synchronized void writeBlock( int blockId, int blockOff, ByteBuffer data )
+			throws IOException
+	{
+		if ( data.hasArray( ) )
+		{
+			writeBlock( blockId, blockOff, data.array( ), data.arrayOffset( )
+					+ data.position( ), data.remaining( ) );
+			return;
+		}
+		assert blockId >= 0;
+		assert blockOff >= 0;
+		assert blockOff + data.remaining( ) <= blockSize;
+
+		ensureFileOpened( );
+		int size = data.remaining( );
+		long position = ( ( (long) blockId ) << blockSizeBits ) + blockOff;
+		FileChannel fc = getChannel( );
+		long writePosition = position;
+		while ( data.hasRemaining( ) )
+		{
+			writePosition += fc.write( data, writePosition );
+		}
+		statistics.recordWrite( 1, size );
 		position += size;
 		if ( position > length )
 		{
@@ -633,7 +2359,7 @@ public class Ext2FileSystem
 		}
 	}
 
-	public Ext2Entry getEntry( String name )
+	synchronized public Ext2Entry getEntry( String name )
 	{
 		return entryTable.getEntry( name );
 	}
@@ -651,6 +2377,10 @@ public class Ext2FileSystem
 			Ext2Block block = (Ext2Block) cache;
 			try
 			{
+				if ( block.isDirty( ) )
+				{
+					block.getFileSystem( ).statistics.recordDirtyFlush( );
+				}
 				block.flush( );
 			}
 			catch ( IOException ex )
@@ -661,6 +2391,36 @@ public class Ext2FileSystem
 		}
 	}
 
+	/**
+	 * queue the dirty blocks to the write-behind flusher instead of writing
+	 * them in the releasing thread.
+	 */
+	class WriteBehindCacheListener implements CacheListener
+	{
+
+		public void onCacheRelease( Cacheable cache )
+		{
+			Ext2Block block = (Ext2Block) cache;
+			try
+			{
+				BlockFlusher blockFlusher = flusher;
+				if ( blockFlusher == null )
+				{
+					block.flush( );
+				}
+				else if ( block.isDirty( ) )
+				{
+					statistics.recordDirtyFlush( );
+					blockFlusher.add( block );
+				}
+			}
+			catch ( IOException ex )
+			{
+				ex.printStackTrace( );
+			}
+		}
+	}
+
 	private void ensureFileOpened( ) throws IOException
 	{
 		if ( rf == null )
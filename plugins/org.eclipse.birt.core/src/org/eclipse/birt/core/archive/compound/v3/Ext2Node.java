@@ -26,6 +26,17 @@ public class Ext2Node implements Ext2Constants
 	static final int STATUS_UNUSED = 0;
 	static final int STATUS_USED = 1;
 
+	/**
+	 * the layout flag saved in the high bits of the status. The node in extent
+	 * layout maps the blocks by extents instead of the indirect FAT blocks.
+	 */
+	static final int LAYOUT_EXTENT = 0x10000;
+	/**
+	 * the node saves the data in compressed frames, see CompressedFile.
+	 */
+	static final int FLAG_COMPRESSED = 0x20000;
+	static final int STATUS_MASK = 0xFFFF;
+
 	static final int NODE_SIZE = 64;
 	static final int DIRECT_BLOCK_COUNT = 9;
 	static final int INDIRECT_BLOCK_COUNT = 3;
@@ -37,6 +48,15 @@ public class Ext2Node implements Ext2Constants
 	private int blockCount;
 	private int[] directBlocks = new int[DIRECT_BLOCK_COUNT];
 	private int[] indirectBlocks = new int[INDIRECT_BLOCK_COUNT];
+	/**
+	 * the extents of the node in extent layout, null in FAT layout.
+	 */
+	private ExtentList extents;
+	private boolean compressed;
+	/**
+	 * the node table contains the node, null for the free nodes.
+	 */
+	private NodeTable table;
 
 	Ext2Node( )
 	{
@@ -64,12 +84,42 @@ public class Ext2Node implements Ext2Constants
 
 	void setDirty( boolean dirty )
 	{
-		this.dirty = dirty;
+		if ( dirty )
+		{
+			markDirty( );
+		}
+		else
+		{
+			this.dirty = false;
+		}
+	}
+
+	/**
+	 * attach the node to the node table, the table is notified when the node
+	 * becomes dirty.
+	 */
+	void setNodeTable( NodeTable table )
+	{
+		this.table = table;
+	}
+
+	private void markDirty( )
+	{
+		if ( !dirty )
+		{
+			dirty = true;
+			if ( table != null )
+			{
+				table.addDirtyNode( this );
+			}
+		}
 	}
 
 	public void reset( )
 	{
 		this.status = STATUS_UNUSED;
+		this.extents = null;
+		this.compressed = false;
 		this.blockCount = 0;
 		this.length = 0;
 		for ( int i = 0; i < DIRECT_BLOCK_COUNT; i++ )
@@ -80,12 +130,13 @@ public class Ext2Node implements Ext2Constants
 		{
 			indirectBlocks[i] = -1;
 		}
-		dirty = true;
+		markDirty( );
 	}
 
 	public Ext2Node copyFreeNode( )
 	{
 		Ext2Node freeNode = new Ext2Node( );
+		assert extents == null;
 		freeNode.blockCount = blockCount;
 		for ( int i = 0; i < DIRECT_BLOCK_COUNT; i++ )
 		{
@@ -108,10 +159,42 @@ public class Ext2Node implements Ext2Constants
 		return status;
 	}
 
+	boolean isExtentLayout( )
+	{
+		return extents != null;
+	}
+
+	/**
+	 * change the node to extent layout, it must be called before any block is
+	 * added to the node.
+	 */
+	void setExtentLayout( )
+	{
+		assert blockCount == 0;
+		extents = new ExtentList( this );
+		markDirty( );
+	}
+
+	ExtentList getExtents( )
+	{
+		return extents;
+	}
+
+	boolean isCompressed( )
+	{
+		return compressed;
+	}
+
+	void setCompressed( boolean compressed )
+	{
+		this.compressed = compressed;
+		markDirty( );
+	}
+
 	void setStatus( int status )
 	{
 		this.status = status;
-		this.dirty = true;
+		markDirty( );
 	}
 
 	public long getLength( )
@@ -122,7 +205,7 @@ public class Ext2Node implements Ext2Constants
 	void setLength( long length )
 	{
 		this.length = length;
-		this.dirty = true;
+		markDirty( );
 	}
 
 	int getBlockCount( )
@@ -133,14 +216,24 @@ public class Ext2Node implements Ext2Constants
 	void setBlockCount( int blockCount )
 	{
 		this.blockCount = blockCount;
-		this.dirty = true;
+		markDirty( );
 	}
 
 	void read( DataInput in ) throws IOException
 	{
-		status = in.readInt( );
+		int value = in.readInt( );
+		status = value & STATUS_MASK;
+		compressed = ( value & FLAG_COMPRESSED ) != 0;
 		length = in.readLong( );
 		blockCount = in.readInt( );
+		if ( ( value & LAYOUT_EXTENT ) != 0 )
+		{
+			extents = new ExtentList( this );
+			extents.read( in );
+			dirty = false;
+			return;
+		}
+		extents = null;
 		for ( int i = 0; i < DIRECT_BLOCK_COUNT; i++ )
 		{
 			directBlocks[i] = in.readInt( );
@@ -154,9 +247,23 @@ public class Ext2Node implements Ext2Constants
 
 	void write( DataOutput out ) throws IOException
 	{
-		out.writeInt( status );
+		int value = status;
+		if ( extents != null )
+		{
+			value |= LAYOUT_EXTENT;
+		}
+		if ( compressed )
+		{
+			value |= FLAG_COMPRESSED;
+		}
+		out.writeInt( value );
 		out.writeLong( length );
 		out.writeInt( blockCount );
+		if ( extents != null )
+		{
+			extents.write( out );
+			return;
+		}
 		for ( int i = 0; i < DIRECT_BLOCK_COUNT; i++ )
 		{
 			out.writeInt( directBlocks[i] );
@@ -177,7 +284,7 @@ public class Ext2Node implements Ext2Constants
 	{
 		assert index < DIRECT_BLOCK_COUNT;
 		directBlocks[index] = blockId;
-		this.dirty = true;
+		markDirty( );
 	}
 
 	int getIndirectBlock( int index )
@@ -190,5 +297,6 @@ public class Ext2Node implements Ext2Constants
 	{
 		assert index < INDIRECT_BLOCK_COUNT;
 		indirectBlocks[index] = blockId;
+		markDirty( );
 	}
 }
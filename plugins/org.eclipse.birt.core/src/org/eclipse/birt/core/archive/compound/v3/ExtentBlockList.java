@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.IOException;
+
+/**
+ * the block list of the node in extent layout.
+ * 
+ * The blocks are allocated from a run reserved by the file, so the blocks
+ * written by a file are continuous even several files are written at the same
+ * time. The reserved run is doubled each time it is used up until it reaches
+ * MAX_RESERVED_SIZE bytes, and the unused blocks are returned to the file
+ * system once the file is closed.
+ */
+class ExtentBlockList extends FatBlockList
+{
+
+	static final int MIN_RESERVED_BLOCKS = 8;
+	static final int MAX_RESERVED_SIZE = 1024 * 1024;
+
+	protected ExtentList extents;
+
+	private final int maxReservedBlocks;
+	private int reserveSize;
+	private int reservedStart;
+	private int reservedCount;
+
+	ExtentBlockList( Ext2FileSystem fs, Ext2Node node ) throws IOException
+	{
+		super( fs, node );
+		this.extents = node.getExtents( );
+		this.extents.load( fs );
+		this.maxReservedBlocks = Math.max( 1,
+				MAX_RESERVED_SIZE >> fs.getBlockSizeBits( ) );
+		this.reserveSize = Math.min( MIN_RESERVED_BLOCKS, maxReservedBlocks );
+	}
+
+	public void clear( ) throws IOException
+	{
+		super.clear( );
+		if ( reservedCount > 0 )
+		{
+			fs.releaseUnusedRun( reservedStart, reservedCount );
+			reservedCount = 0;
+		}
+	}
+
+	public int getFileBlock( int index ) throws IOException
+	{
+		return extents.getBlock( index );
+	}
+
+	int getLoadedFileBlock( int index ) throws IOException
+	{
+		// the extents are always loaded
+		return extents.getBlock( index );
+	}
+
+	public void setFileBlock( int index, int fileBlockId ) throws IOException
+	{
+		extents.setBlock( index, fileBlockId );
+	}
+
+	int allocBlock( ) throws IOException
+	{
+		if ( reservedCount == 0 )
+		{
+			int[] run = fs.allocFreeRun( reserveSize );
+			reservedStart = run[0];
+			reservedCount = run[1];
+			if ( reserveSize < maxReservedBlocks )
+			{
+				reserveSize = Math.min( reserveSize * 2, maxReservedBlocks );
+			}
+		}
+		reservedCount--;
+		return reservedStart++;
+	}
+
+	int getContiguousBlocks( int index, int maxCount ) throws IOException
+	{
+		return Math.min( extents.getContiguousBlocks( index ), maxCount );
+	}
+}
@@ -0,0 +1,514 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.eclipse.birt.core.archive.ArchiveUtil;
+
+/**
+ * the extents of a node in extent layout.
+ * 
+ * Each extent is a run of blocks: the start block and the block count. The
+ * logical index of the extent is the sum of the counts of the extents before
+ * it. A hole in the file is an extent with start -1.
+ * 
+ * The first INLINE_EXTENT_COUNT extents are saved in the node, the others are
+ * saved in the overflow blocks. Each overflow block is saved as: next block
+ * id, extent count, extents.
+ * 
+ * The list is shared by all the files opened on the node, so all the methods
+ * are synchronized.
+ */
+class ExtentList
+{
+
+	static final int INLINE_EXTENT_COUNT = 5;
+
+	private Ext2Node node;
+	private int size;
+	private int[] starts;
+	private int[] counts;
+	/**
+	 * the logical index of each extent
+	 */
+	private int[] offsets;
+	/**
+	 * the first overflow block, -1 if there is no overflow block.
+	 */
+	private int overflowBlock;
+	private int[] overflowBlocks;
+	/**
+	 * the extent count read from the node, the extents after
+	 * INLINE_EXTENT_COUNT must be loaded from the overflow blocks.
+	 */
+	private int savedSize;
+	private boolean loaded;
+	private boolean overflowDirty;
+
+	ExtentList( Ext2Node node )
+	{
+		this.node = node;
+		this.starts = new int[INLINE_EXTENT_COUNT];
+		this.counts = new int[INLINE_EXTENT_COUNT];
+		this.offsets = new int[INLINE_EXTENT_COUNT];
+		this.overflowBlock = -1;
+		this.overflowBlocks = new int[0];
+		this.loaded = true;
+	}
+
+	synchronized void reset( )
+	{
+		size = 0;
+		savedSize = 0;
+		overflowBlock = -1;
+		overflowBlocks = new int[0];
+		loaded = true;
+		overflowDirty = false;
+	}
+
+	synchronized int size( )
+	{
+		return size;
+	}
+
+	synchronized int getStart( int index )
+	{
+		return starts[index];
+	}
+
+	synchronized int getCount( int index )
+	{
+		return counts[index];
+	}
+
+	/**
+	 * return the block count of the file, including the holes.
+	 */
+	synchronized int getTotalBlocks( )
+	{
+		if ( size == 0 )
+		{
+			return 0;
+		}
+		return offsets[size - 1] + counts[size - 1];
+	}
+
+	/**
+	 * return the overflow blocks used to save the extents.
+	 */
+	synchronized int[] getOverflowBlocks( )
+	{
+		int[] blocks = new int[overflowBlocks.length];
+		System.arraycopy( overflowBlocks, 0, blocks, 0, blocks.length );
+		return blocks;
+	}
+
+	/**
+	 * change the block ids after the blocks are relocated by the compaction.
+	 * The compaction keeps the order of the blocks, so the extents are still
+	 * continuous. The list must be loaded before it.
+	 * 
+	 * @param blockMap
+	 *            the new id of each block.
+	 */
+	synchronized void remap( int[] blockMap )
+	{
+		assert loaded;
+		for ( int i = 0; i < size; i++ )
+		{
+			if ( starts[i] != -1 )
+			{
+				starts[i] = blockMap[starts[i]];
+			}
+		}
+		for ( int i = 0; i < overflowBlocks.length; i++ )
+		{
+			overflowBlocks[i] = blockMap[overflowBlocks[i]];
+		}
+		if ( overflowBlock != -1 )
+		{
+			overflowBlock = blockMap[overflowBlock];
+		}
+		changed( );
+	}
+
+	/**
+	 * return the block id of the logical block, -1 if the block isn't
+	 * allocated.
+	 */
+	synchronized int getBlock( int index )
+	{
+		int extent = findExtent( index );
+		if ( extent == -1 || starts[extent] == -1 )
+		{
+			return -1;
+		}
+		return starts[extent] + ( index - offsets[extent] );
+	}
+
+	/**
+	 * return the count of the blocks which are saved continuously from the
+	 * logical block, 0 if the block isn't allocated.
+	 */
+	synchronized int getContiguousBlocks( int index )
+	{
+		int extent = findExtent( index );
+		if ( extent == -1 || starts[extent] == -1 )
+		{
+			return 0;
+		}
+		return counts[extent] - ( index - offsets[extent] );
+	}
+
+	/**
+	 * map the logical block to the block id. The logical block must be a
+	 * hole or after the end of the file.
+	 */
+	synchronized void setBlock( int index, int blockId )
+	{
+		int totalBlocks = getTotalBlocks( );
+		if ( index >= totalBlocks )
+		{
+			if ( index > totalBlocks )
+			{
+				append( -1, index - totalBlocks );
+			}
+			append( blockId, 1 );
+		}
+		else
+		{
+			int extent = findExtent( index );
+			assert starts[extent] == -1;
+			// split the hole into hole, block, hole
+			int holeBefore = index - offsets[extent];
+			int holeAfter = counts[extent] - holeBefore - 1;
+			remove( extent );
+			int position = extent;
+			if ( holeBefore > 0 )
+			{
+				insert( position++, -1, holeBefore );
+			}
+			insert( position, blockId, 1 );
+			if ( holeAfter > 0 )
+			{
+				insert( position + 1, -1, holeAfter );
+			}
+			// merge the block with the extents around it
+			if ( position + 1 < size )
+			{
+				merge( position );
+			}
+			if ( position > 0 )
+			{
+				merge( position - 1 );
+			}
+			updateOffsets( extent > 0 ? extent - 1 : 0 );
+		}
+		changed( );
+	}
+
+	/**
+	 * append a run of blocks to the end of the list.
+	 */
+	synchronized void append( int start, int count )
+	{
+		if ( size > 0 )
+		{
+			int last = size - 1;
+			if ( isContinuous( starts[last], counts[last], start ) )
+			{
+				counts[last] += count;
+				changed( );
+				return;
+			}
+		}
+		ensureCapacity( size + 1 );
+		starts[size] = start;
+		counts[size] = count;
+		offsets[size] = size == 0 ? 0 : offsets[size - 1] + counts[size - 1];
+		size++;
+		changed( );
+	}
+
+	/**
+	 * remove at most maxCount blocks from the end of the last extent.
+	 * 
+	 * @return the start and count of the removed run, null if the list is
+	 *         empty.
+	 */
+	synchronized int[] removeLastRun( int maxCount )
+	{
+		while ( size > 0 )
+		{
+			int last = size - 1;
+			if ( starts[last] == -1 )
+			{
+				size--;
+				continue;
+			}
+			int count = counts[last];
+			if ( count <= maxCount )
+			{
+				size--;
+				changed( );
+				return new int[]{starts[last], count};
+			}
+			counts[last] = count - maxCount;
+			changed( );
+			return new int[]{starts[last] + count - maxCount, maxCount};
+		}
+		return null;
+	}
+
+	private static boolean isContinuous( int start, int count, int nextStart )
+	{
+		if ( start == -1 )
+		{
+			return nextStart == -1;
+		}
+		return nextStart != -1 && start + count == nextStart;
+	}
+
+	private int findExtent( int index )
+	{
+		int low = 0;
+		int high = size - 1;
+		while ( low <= high )
+		{
+			int mid = ( low + high ) >>> 1;
+			if ( offsets[mid] > index )
+			{
+				high = mid - 1;
+			}
+			else if ( offsets[mid] + counts[mid] <= index )
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private void merge( int extent )
+	{
+		int next = extent + 1;
+		if ( isContinuous( starts[extent], counts[extent], starts[next] ) )
+		{
+			counts[extent] += counts[next];
+			remove( next );
+		}
+	}
+
+	private void insert( int extent, int start, int count )
+	{
+		ensureCapacity( size + 1 );
+		int moved = size - extent;
+		System.arraycopy( starts, extent, starts, extent + 1, moved );
+		System.arraycopy( counts, extent, counts, extent + 1, moved );
+		System.arraycopy( offsets, extent, offsets, extent + 1, moved );
+		starts[extent] = start;
+		counts[extent] = count;
+		size++;
+	}
+
+	private void remove( int extent )
+	{
+		int moved = size - extent - 1;
+		System.arraycopy( starts, extent + 1, starts, extent, moved );
+		System.arraycopy( counts, extent + 1, counts, extent, moved );
+		System.arraycopy( offsets, extent + 1, offsets, extent, moved );
+		size--;
+	}
+
+	private void updateOffsets( int from )
+	{
+		for ( int i = from; i < size; i++ )
+		{
+			offsets[i] = i == 0 ? 0 : offsets[i - 1] + counts[i - 1];
+		}
+	}
+
+	private void ensureCapacity( int capacity )
+	{
+		if ( capacity > starts.length )
+		{
+			int newLength = Math.max( capacity, starts.length * 2 );
+			starts = copyOf( starts, newLength );
+			counts = copyOf( counts, newLength );
+			offsets = copyOf( offsets, newLength );
+		}
+	}
+
+	private static int[] copyOf( int[] values, int length )
+	{
+		int[] newValues = new int[length];
+		System.arraycopy( values, 0, newValues, 0, Math.min( length,
+				values.length ) );
+		return newValues;
+	}
+
+	private void changed( )
+	{
+		if ( size > INLINE_EXTENT_COUNT || savedSize > INLINE_EXTENT_COUNT )
+		{
+			overflowDirty = true;
+		}
+		node.setDirty( true );
+	}
+
+	/**
+	 * read the inline extents from the node.
+	 */
+	synchronized void read( DataInput in ) throws IOException
+	{
+		savedSize = in.readInt( );
+		overflowBlock = in.readInt( );
+		ensureCapacity( savedSize );
+		for ( int i = 0; i < INLINE_EXTENT_COUNT; i++ )
+		{
+			starts[i] = in.readInt( );
+			counts[i] = in.readInt( );
+		}
+		size = Math.min( savedSize, INLINE_EXTENT_COUNT );
+		updateOffsets( 0 );
+		overflowBlocks = new int[0];
+		loaded = savedSize <= INLINE_EXTENT_COUNT;
+		overflowDirty = false;
+	}
+
+	/**
+	 * write the inline extents to the node. The overflow blocks must be saved
+	 * before it.
+	 */
+	synchronized void write( DataOutput out ) throws IOException
+	{
+		out.writeInt( loaded ? size : savedSize );
+		out.writeInt( overflowBlock );
+		for ( int i = 0; i < INLINE_EXTENT_COUNT; i++ )
+		{
+			if ( i < size )
+			{
+				out.writeInt( starts[i] );
+				out.writeInt( counts[i] );
+			}
+			else
+			{
+				out.writeInt( -1 );
+				out.writeInt( 0 );
+			}
+		}
+	}
+
+	/**
+	 * load the extents saved in the overflow blocks.
+	 */
+	synchronized void load( Ext2FileSystem fs ) throws IOException
+	{
+		if ( loaded )
+		{
+			return;
+		}
+		int blockSize = fs.getBlockSize( );
+		byte[] buffer = new byte[blockSize];
+		int[] blocks = new int[0];
+		int blockId = overflowBlock;
+		while ( blockId != -1 && size < savedSize )
+		{
+			blocks = copyOf( blocks, blocks.length + 1 );
+			blocks[blocks.length - 1] = blockId;
+			DataBlock block = fs.loadDataBlock( blockId );
+			try
+			{
+				block.read( 0, buffer, 0, blockSize );
+			}
+			finally
+			{
+				fs.unloadBlock( block );
+			}
+			int nextBlockId = ArchiveUtil.bytesToInteger( buffer, 0 );
+			int count = ArchiveUtil.bytesToInteger( buffer, 4 );
+			for ( int i = 0; i < count; i++ )
+			{
+				int offset = 8 + i * 8;
+				starts[size] = ArchiveUtil.bytesToInteger( buffer, offset );
+				counts[size] = ArchiveUtil.bytesToInteger( buffer, offset + 4 );
+				size++;
+			}
+			blockId = nextBlockId;
+		}
+		updateOffsets( 0 );
+		overflowBlocks = blocks;
+		loaded = true;
+	}
+
+	/**
+	 * save the extents after INLINE_EXTENT_COUNT into the overflow blocks.
+	 */
+	synchronized void save( Ext2FileSystem fs ) throws IOException
+	{
+		if ( !loaded || !overflowDirty )
+		{
+			return;
+		}
+		int blockSize = fs.getBlockSize( );
+		int extentsPerBlock = ( blockSize - 8 ) / 8;
+		int overflowSize = Math.max( size - INLINE_EXTENT_COUNT, 0 );
+		int blockCount = ( overflowSize + extentsPerBlock - 1 )
+				/ extentsPerBlock;
+
+		int[] blocks = copyOf( overflowBlocks, blockCount );
+		for ( int i = overflowBlocks.length; i < blockCount; i++ )
+		{
+			blocks[i] = fs.allocFreeBlock( );
+		}
+		for ( int i = blockCount; i < overflowBlocks.length; i++ )
+		{
+			fs.releaseFreeRun( overflowBlocks[i], 1 );
+		}
+
+		byte[] buffer = new byte[blockSize];
+		int extent = INLINE_EXTENT_COUNT;
+		for ( int i = 0; i < blockCount; i++ )
+		{
+			int count = Math.min( extentsPerBlock, size - extent );
+			ArchiveUtil.integerToBytes( i + 1 < blockCount ? blocks[i + 1] : -1,
+					buffer, 0 );
+			ArchiveUtil.integerToBytes( count, buffer, 4 );
+			for ( int j = 0; j < count; j++ )
+			{
+				int offset = 8 + j * 8;
+				ArchiveUtil.integerToBytes( starts[extent], buffer, offset );
+				ArchiveUtil.integerToBytes( counts[extent], buffer, offset + 4 );
+				extent++;
+			}
+			DataBlock block = fs.createDataBlock( blocks[i] );
+			try
+			{
+				block.write( 0, buffer, 0, blockSize );
+			}
+			finally
+			{
+				fs.unloadBlock( block );
+			}
+		}
+		overflowBlocks = blocks;
+		overflowBlock = blockCount > 0 ? blocks[0] : -1;
+		savedSize = size;
+		overflowDirty = false;
+	}
+}
@@ -14,22 +14,21 @@ package org.eclipse.birt.core.archive.compound.v3;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.eclipse.birt.core.util.IOUtil;
 
 class FatBlock extends Ext2Block implements Ext2Constants
 {
 
-	static final int BLOCK_PER_FAT_BLOCK = BLOCK_SIZE / 4;
-
 	boolean dirty;
 	int[] blocks;
 
 	FatBlock( Ext2FileSystem fs, int blockId )
 	{
 		super( fs, blockId );
-		this.blocks = new int[BLOCK_PER_FAT_BLOCK];
-		for ( int i = 0; i < BLOCK_PER_FAT_BLOCK; i++ )
+		this.blocks = new int[fs.getBlockSize( ) / 4];
+		for ( int i = 0; i < blocks.length; i++ )
 		{
 			blocks[i] = -1;
 		}
@@ -42,17 +41,39 @@ class FatBlock extends Ext2Block implements Ext2Constants
 
 	public void setBlock( int index, int blockId ) throws IOException
 	{
-		assert index < BLOCK_PER_FAT_BLOCK;
+		assert index < blocks.length;
 		dirty = true;
 		blocks[index] = blockId;
 	}
 
 	public int getBlock( int index ) throws IOException
 	{
-		assert index < BLOCK_PER_FAT_BLOCK;
+		assert index < blocks.length;
 		return blocks[index];
 	}
 
+	boolean isDirty( )
+	{
+		return dirty;
+	}
+
+	void clearDirty( )
+	{
+		dirty = false;
+	}
+
+	ByteBuffer getDirtyData( boolean toStart, boolean toEnd )
+	{
+		if ( !dirty )
+		{
+			return null;
+		}
+		// the FAT block is always written as a whole
+		ByteBuffer data = ByteBuffer.allocate( blocks.length * 4 );
+		data.asIntBuffer( ).put( blocks );
+		return data;
+	}
+
 	public void flush( ) throws IOException
 	{
 		if ( blockId == -1 )
@@ -62,12 +83,13 @@ class FatBlock extends Ext2Block implements Ext2Constants
 		}
 		if ( dirty )
 		{
-			ByteArrayOutputStream out = new ByteArrayOutputStream( BLOCK_SIZE );
-			for ( int i = 0; i < BLOCK_PER_FAT_BLOCK; i++ )
+			int blockSize = blocks.length * 4;
+			ByteArrayOutputStream out = new ByteArrayOutputStream( blockSize );
+			for ( int i = 0; i < blocks.length; i++ )
 			{
 				IOUtil.writeInt( out, blocks[i] );
 			}
-			fs.writeBlock( blockId, out.toByteArray( ), 0, BLOCK_SIZE );
+			fs.writeBlock( blockId, out.toByteArray( ), 0, blockSize );
 		}
 	}
 
@@ -78,10 +100,10 @@ class FatBlock extends Ext2Block implements Ext2Constants
 			throw new IllegalStateException(
 					"Must assign block id before flush" );
 		}
-		byte[] buffer = new byte[BLOCK_SIZE];
-		fs.readBlock( blockId, buffer, 0, BLOCK_SIZE );
+		byte[] buffer = new byte[blocks.length * 4];
+		fs.readBlock( blockId, buffer, 0, buffer.length );
 		ByteArrayInputStream in = new ByteArrayInputStream( buffer );
-		for ( int i = 0; i < BLOCK_PER_FAT_BLOCK; i++ )
+		for ( int i = 0; i < blocks.length; i++ )
 		{
 			blocks[i] = IOUtil.readInt( in );
 		}
@@ -28,37 +28,44 @@ public class FatBlockList
 	 * indirect blocks in the node
 	 */
 	static final int INDIRECT_BLOCK_COUNT = 3;
+	/**
+	 * the file block returned by getLoadedFileBlock() if the FAT block isn't
+	 * loaded.
+	 */
+	static final int UNKNOWN_BLOCK = -2;
+
+	protected Ext2FileSystem fs;
+	protected Ext2Node node;
+	protected FatBlock[] cachedFatBlocks = new FatBlock[3];
+
+	/**
+	 * each FAT block contains blockSize / 4 block ids, so the index in a FAT
+	 * block uses indexBits bits of the file block index.
+	 */
+	protected final int indexBits;
+	protected final int indexMask;
 	/**
 	 * max indirect blocks in the node
 	 */
-	static final int MAX_INDIRECT_BLOCK = 1024;
+	protected final int maxIndirectBlock;
 	/**
 	 * max double indirect blocks in the node
 	 */
-	static final int MAX_DOUBLE_INDIRECT_BLOCK = 1024 * 1024;
-	static final int DOUBLE_INDIRECT_MASK_1 = 0xFFC00;
-	static final int DOUBLE_INDIRECT_SHIFT_1 = 10;
-	static final int DOUBLE_INDIRECT_MASK_2 = 0x3FF;
-	static final int DOUBLE_INDIRECT_SHIFT_2 = 0;
+	protected final long maxDoubleIndirectBlock;
 	/**
 	 * max triple indirect blocks in the node
 	 */
-	static final int MAX_TRIPLE_INDIRECT_BLOCK = 1024 * 1024 * 1024;
-	static final int TRIPLE_INDIRECT_MASK_1 = ( 0x3FF << 20 );
-	static final int TRIPLE_INDIRECT_SHIFT_1 = 20;
-	static final int TRIPLE_INDIRECT_MASK_2 = ( 0x3FF << 10 );
-	static final int TRIPLE_INDIRECT_SHIFT_2 = 10;
-	static final int TRIPLE_INDIRECT_MASK_3 = 0x3FF;
-	static final int TRIPLE_INDIRECT_SHIFT_3 = 0;
-
-	protected Ext2FileSystem fs;
-	protected Ext2Node node;
-	protected FatBlock[] cachedFatBlocks = new FatBlock[3];
+	protected final long maxTripleIndirectBlock;
 
 	FatBlockList( Ext2FileSystem fs, Ext2Node node )
 	{
 		this.fs = fs;
 		this.node = node;
+		this.indexBits = fs.getBlockSizeBits( ) - 2;
+		this.indexMask = ( 1 << indexBits ) - 1;
+		this.maxIndirectBlock = 1 << indexBits;
+		this.maxDoubleIndirectBlock = 1L << ( indexBits * 2 );
+		this.maxTripleIndirectBlock = 1L << ( indexBits * 3 );
 	}
 
 	public void clear( ) throws IOException
@@ -84,6 +91,30 @@ public class FatBlockList
 		return node;
 	}
 
+	/**
+	 * allocate a free block to save the data of the file.
+	 */
+	int allocBlock( ) throws IOException
+	{
+		return fs.allocFreeBlock( );
+	}
+
+	/**
+	 * return the count of the blocks which are saved continuously from the
+	 * file block, at most maxCount. The file block must be allocated.
+	 */
+	int getContiguousBlocks( int index, int maxCount ) throws IOException
+	{
+		int blockId = getFileBlock( index );
+		int count = 1;
+		while ( count < maxCount
+				&& getFileBlock( index + count ) == blockId + count )
+		{
+			count++;
+		}
+		return count;
+	}
+
 	public int getFileBlock( int index ) throws IOException
 	{
 		if ( index < MAX_DIRECT_BLOCK )
@@ -91,17 +122,17 @@ public class FatBlockList
 			return node.getDirectBlock( index );
 		}
 		index -= MAX_DIRECT_BLOCK;
-		if ( index < MAX_INDIRECT_BLOCK )
+		if ( index < maxIndirectBlock )
 		{
 			return getIndirectBlock1( index );
 		}
-		index -= MAX_INDIRECT_BLOCK;
-		if ( index < MAX_DOUBLE_INDIRECT_BLOCK )
+		index -= maxIndirectBlock;
+		if ( index < maxDoubleIndirectBlock )
 		{
 			return getIndirectBlock2( index );
 		}
-		index -= MAX_DOUBLE_INDIRECT_BLOCK;
-		if ( index < MAX_TRIPLE_INDIRECT_BLOCK )
+		index -= (int) maxDoubleIndirectBlock;
+		if ( index < maxTripleIndirectBlock )
 		{
 			return getIndirectBlock3( index );
 		}
@@ -109,6 +140,62 @@ public class FatBlockList
 				CoreMessages.getString( ResourceConstants.EXCEED_FILE_LENGTH ) );
 	}
 
+	/**
+	 * return the file block from the node and the FAT blocks cached by the
+	 * list, no FAT block is loaded or unloaded.
+	 * 
+	 * @return the file block, -1 if it isn't allocated, UNKNOWN_BLOCK if the
+	 *         FAT block isn't cached.
+	 */
+	int getLoadedFileBlock( int index ) throws IOException
+	{
+		if ( index < MAX_DIRECT_BLOCK )
+		{
+			return node.getDirectBlock( index );
+		}
+		index -= MAX_DIRECT_BLOCK;
+		if ( index < maxIndirectBlock )
+		{
+			return getLoadedBlock( 0, node.getIndirectBlock( 0 ), index );
+		}
+		index -= maxIndirectBlock;
+		if ( index < maxDoubleIndirectBlock )
+		{
+			int fatBlockId1 = getLoadedBlock( 0, node.getIndirectBlock( 1 ),
+					( index >>> indexBits ) & indexMask );
+			return getLoadedBlock( 1, fatBlockId1, index & indexMask );
+		}
+		index -= (int) maxDoubleIndirectBlock;
+		if ( index < maxTripleIndirectBlock )
+		{
+			int fatBlockId1 = getLoadedBlock( 0, node.getIndirectBlock( 2 ),
+					( index >>> ( indexBits * 2 ) ) & indexMask );
+			int fatBlockId2 = getLoadedBlock( 1, fatBlockId1,
+					( index >>> indexBits ) & indexMask );
+			return getLoadedBlock( 2, fatBlockId2, index & indexMask );
+		}
+		return -1;
+	}
+
+	private int getLoadedBlock( int level, int fatBlockId, int index )
+			throws IOException
+	{
+		if ( fatBlockId == UNKNOWN_BLOCK )
+		{
+			return UNKNOWN_BLOCK;
+		}
+		if ( fatBlockId <= 0 )
+		{
+			return -1;
+		}
+		FatBlock block = cachedFatBlocks[level];
+		if ( block == null || block.getBlockId( ) != fatBlockId )
+		{
+			return UNKNOWN_BLOCK;
+		}
+		return block.getBlock( index );
+	}
+
 	public void setFileBlock( int index, int fileBlockId ) throws IOException
 	{
 		if ( index < MAX_DIRECT_BLOCK )
@@ -117,19 +204,19 @@ public class FatBlockList
 			return;
 		}
 		index -= MAX_DIRECT_BLOCK;
-		if ( index < MAX_INDIRECT_BLOCK )
+		if ( index < maxIndirectBlock )
 		{
 			setIndirectBlock1( index, fileBlockId );
 			return;
 		}
-		index -= MAX_INDIRECT_BLOCK;
-		if ( index < MAX_DOUBLE_INDIRECT_BLOCK )
+		index -= maxIndirectBlock;
+		if ( index < maxDoubleIndirectBlock )
 		{
 			setIndirectBlock2( index, fileBlockId );
 			return;
 		}
-		index -= MAX_DOUBLE_INDIRECT_BLOCK;
-		if ( index < MAX_TRIPLE_INDIRECT_BLOCK )
+		index -= (int) maxDoubleIndirectBlock;
+		if ( index < maxTripleIndirectBlock )
 		{
 			setIndirectBlock3( index, fileBlockId );
 			return;
@@ -172,7 +259,7 @@ public class FatBlockList
 			node.setBlockCount( node.getBlockCount( ) + 1 );
 			node.setIndirectBlock( 1, fatBlockId );
 		}
-		int index1 = ( index & 0xFFC00 ) >> 10;
+		int index1 = ( index >>> indexBits ) & indexMask;
 		int fatBlockId1 = fatBlock.getBlock( index1 );
 		FatBlock fatBlock1 = getCachedBlock( 1, fatBlockId1 );
 		if ( fatBlockId1 <= 0 )
@@ -181,7 +268,7 @@ public class FatBlockList
 			node.setBlockCount( node.getBlockCount( ) + 1 );
 			fatBlock.setBlock( index1, fatBlockId1 );
 		}
-		int index2 = index & 0x3FF;
+		int index2 = index & indexMask;
 		fatBlock1.setBlock( index2, blockId );
 	}
 
@@ -191,12 +278,12 @@ public class FatBlockList
 		if ( fatBlockId > 0 )
 		{
 			FatBlock fatBlock = getCachedBlock( 0, fatBlockId );
-			int index1 = ( index & 0xFFC00 ) >> 10;
+			int index1 = ( index >>> indexBits ) & indexMask;
 			int fatBlockId1 = fatBlock.getBlock( index1 );
 			if ( fatBlockId1 > 0 )
 			{
 				FatBlock fatBlock1 = getCachedBlock( 1, fatBlockId1 );
-				int index2 = index & 0x3FF;
+				int index2 = index & indexMask;
 				return fatBlock1.getBlock( index2 );
 			}
 		}
@@ -213,7 +300,7 @@ public class FatBlockList
 			node.setBlockCount( node.getBlockCount( ) + 1 );
 			node.setIndirectBlock( 2, fatBlockId );
 		}
-		int index1 = ( index & 0x3FF00000 ) >> 20;
+		int index1 = ( index >>> ( indexBits * 2 ) ) & indexMask;
 		int fatBlockId1 = fatBlock.getBlock( index1 );
 		FatBlock fatBlock1 = getCachedBlock( 1, fatBlockId1 );
 		if ( fatBlockId1 <= 0 )
@@ -223,7 +310,7 @@ public class FatBlockList
 			fatBlock.setBlock( index1, fatBlockId1 );
 		}
 
-		int index2 = ( index & 0xFFC00 ) >> 10;
+		int index2 = ( index >>> indexBits ) & indexMask;
 		int fatBlockId2 = fatBlock1.getBlock( index2 );
 		FatBlock fatBlock2 = getCachedBlock( 2, fatBlockId2 );
 		if ( fatBlockId2 <= 0 )
@@ -232,7 +319,7 @@ public class FatBlockList
 			node.setBlockCount( node.getBlockCount( ) + 1 );
 			fatBlock1.setBlock( index2, fatBlockId2 );
 		}
-		int index3 = index & 0x3FF;
+		int index3 = index & indexMask;
 		fatBlock2.setBlock( index3, blockId );
 	}
 
@@ -242,17 +329,17 @@ public class FatBlockList
 		if ( fatBlockId > 0 )
 		{
 			FatBlock fatBlock = getCachedBlock( 0, fatBlockId );
-			int index1 = ( index & 0x3FF00000 ) >> 20;
+			int index1 = ( index >>> ( indexBits * 2 ) ) & indexMask;
 			int fatBlockId1 = fatBlock.getBlock( index1 );
 			if ( fatBlockId1 > 0 )
 			{
 				FatBlock fatBlock1 = getCachedBlock( 1, fatBlockId1 );
-				int index2 = ( index & 0xFFC00 ) >> 10;
+				int index2 = ( index >>> indexBits ) & indexMask;
 				int fatBlockId2 = fatBlock1.getBlock( index2 );
 				if ( fatBlockId2 > 0 )
 				{
 					FatBlock fatBlock2 = getCachedBlock( 2, fatBlockId2 );
-					int index3 = index & 0x3FF;
+					int index3 = index & indexMask;
 					return fatBlock2.getBlock( index3 );
 				}
 			}
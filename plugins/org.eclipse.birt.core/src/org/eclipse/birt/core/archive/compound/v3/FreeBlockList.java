@@ -60,7 +60,7 @@ public class FreeBlockList extends FatBlockList
 	protected int getLastBlock( int level, FatBlock fatBlock )
 			throws IOException
 	{
-		for ( int index = 1023; index >= 0; index-- )
+		for ( int index = indexMask; index >= 0; index-- )
 		{
 			int blockId = fatBlock.getBlock( index );
 			if ( blockId > 0 )
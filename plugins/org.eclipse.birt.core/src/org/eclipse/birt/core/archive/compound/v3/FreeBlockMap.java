@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * the free blocks of the file system saved as a bitmap.
+ * 
+ * Each bit of the bitmap is a block of the file system, the bit is set if the
+ * block is free. The blocks are allocated from the lowest free block, and
+ * the runs are allocated from the first free run which is long enough, so
+ * the blocks of a file stay together and the free blocks at the end of the
+ * file can be truncated.
+ * 
+ * The bitmap is saved in the node INODE_FREE_TABLE, only the bytes after the
+ * first changed one are written.
+ */
+class FreeBlockMap extends FreeBlockTable
+{
+
+	private BitSet freeBlocks = new BitSet( );
+	/**
+	 * all the blocks before it are used, the search of the free blocks
+	 * starts from it.
+	 */
+	private int firstFree;
+	/**
+	 * the count of the bytes at the beginning of the bitmap which are saved
+	 * and unchanged.
+	 */
+	private int savedBytes;
+
+	FreeBlockMap( Ext2FileSystem fs )
+	{
+		super( fs );
+	}
+
+	public void read( ) throws IOException
+	{
+		freeBlocks.clear( );
+		Ext2File file = new Ext2File( fs, NodeTable.INODE_FREE_TABLE, false );
+		try
+		{
+			byte[] bytes = new byte[(int) file.length( )];
+			file.read( bytes, 0, bytes.length );
+			for ( int i = 0; i < bytes.length; i++ )
+			{
+				int value = bytes[i] & 0xFF;
+				for ( int bit = 0; value != 0; bit++, value >>>= 1 )
+				{
+					if ( ( value & 1 ) != 0 )
+					{
+						freeBlocks.set( ( i << 3 ) + bit );
+					}
+				}
+			}
+			savedBytes = bytes.length;
+		}
+		finally
+		{
+			file.close( );
+		}
+		firstFree = 0;
+		dirty = false;
+	}
+
+	protected void write( ) throws IOException
+	{
+		if ( !dirty )
+		{
+			return;
+		}
+		dirty = false;
+
+		Ext2File file = new Ext2File( fs, NodeTable.INODE_FREE_TABLE, false );
+		try
+		{
+			isLocked = true;
+			int length = ( freeBlocks.length( ) + 7 ) >>> 3;
+			int start = Math.min( savedBytes, length );
+			byte[] bytes = new byte[length - start];
+			for ( int i = freeBlocks.nextSetBit( start << 3 ); i >= 0; i = freeBlocks
+					.nextSetBit( i + 1 ) )
+			{
+				bytes[( i >>> 3 ) - start] |= 1 << ( i & 7 );
+			}
+			file.seek( start );
+			file.write( bytes, 0, bytes.length );
+			file.setLength( length );
+			savedBytes = length;
+		}
+		finally
+		{
+			isLocked = false;
+			file.close( );
+		}
+	}
+
+	public int getFreeBlock( ) throws IOException
+	{
+		if ( isLocked )
+		{
+			return -1;
+		}
+		int blockId = freeBlocks.nextSetBit( firstFree );
+		if ( blockId < 0 )
+		{
+			return -1;
+		}
+		freeBlocks.clear( blockId );
+		setDirty( blockId );
+		firstFree = blockId + 1;
+		return blockId;
+	}
+
+	/**
+	 * get the first free run which has maxCount blocks, or the longest free
+	 * run if there is no such run.
+	 */
+	public int[] getFreeRun( int maxCount ) throws IOException
+	{
+		if ( isLocked )
+		{
+			return null;
+		}
+		int runStart = -1;
+		int runCount = 0;
+		int start = freeBlocks.nextSetBit( firstFree );
+		while ( start >= 0 )
+		{
+			int end = freeBlocks.nextClearBit( start );
+			int count = end - start;
+			if ( count >= maxCount )
+			{
+				runStart = start;
+				runCount = maxCount;
+				break;
+			}
+			if ( count > runCount )
+			{
+				runStart = start;
+				runCount = count;
+			}
+			start = freeBlocks.nextSetBit( end );
+		}
+		if ( runStart == -1 )
+		{
+			return null;
+		}
+		freeBlocks.clear( runStart, runStart + runCount );
+		setDirty( runStart );
+		return new int[]{runStart, runCount};
+	}
+
+	public void addFreeBlocks( Ext2Node node ) throws IOException
+	{
+		FreeBlockList blocks = new FreeBlockList( fs, node );
+		try
+		{
+			int blockId = blocks.removeLastBlock( );
+			while ( blockId > 0 )
+			{
+				addFreeRun( blockId, 1 );
+				blockId = blocks.removeLastBlock( );
+			}
+		}
+		finally
+		{
+			blocks.clear( );
+		}
+	}
+
+	public void addFreeRun( int start, int count )
+	{
+		freeBlocks.set( start, start + count );
+		setDirty( start );
+		if ( start < firstFree )
+		{
+			firstFree = start;
+		}
+	}
+
+	int trim( int maxBlockId )
+	{
+		int blockId = maxBlockId;
+		while ( blockId > 0 && freeBlocks.get( blockId - 1 ) )
+		{
+			blockId--;
+		}
+		if ( blockId < maxBlockId )
+		{
+			freeBlocks.clear( blockId, maxBlockId );
+			setDirty( blockId );
+		}
+		return blockId;
+	}
+
+	void reset( ) throws IOException
+	{
+		freeBlocks.clear( );
+		firstFree = 0;
+		setDirty( 0 );
+	}
+
+	/**
+	 * mark the bitmap dirty, the bytes from the block must be written again.
+	 */
+	private void setDirty( int blockId )
+	{
+		dirty = true;
+		int index = blockId >>> 3;
+		if ( index < savedBytes )
+		{
+			savedBytes = index;
+		}
+	}
+}
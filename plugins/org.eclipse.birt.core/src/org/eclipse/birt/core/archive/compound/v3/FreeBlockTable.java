@@ -17,7 +17,20 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.ListIterator;
 
+/**
+ * the free blocks of the file system.
+ * 
+ * The blocks released by the node in FAT layout are saved as a free node in
+ * FAT layout, the runs released by the node in extent layout are saved as the
+ * extents of the free nodes in extent layout. The continuous runs are only
+ * allocated from the extent free nodes.
+ * 
+ * The free nodes are saved in the order of the list and the current free node
+ * is saved at the end. The nodes are always added and removed at the end of
+ * the list, so only the nodes after the first changed one are written.
+ */
 class FreeBlockTable implements Ext2Constants
 {
 
@@ -27,6 +40,11 @@ class FreeBlockTable implements Ext2Constants
 	protected FreeBlockList freeBlockList;
 	protected boolean dirty;
 	protected boolean isLocked;
+	/**
+	 * the count of the free nodes at the beginning of the list which are
+	 * saved and unchanged.
+	 */
+	protected int savedCount;
 
 	FreeBlockTable( Ext2FileSystem fs )
 	{
@@ -56,6 +74,7 @@ class FreeBlockTable implements Ext2Constants
 		{
 			file.close( );
 		}
+		this.savedCount = freeNodes.size( );
 		this.dirty = false;
 	}
 
@@ -74,19 +93,21 @@ class FreeBlockTable implements Ext2Constants
 			ByteArrayOutputStream buffer = new ByteArrayOutputStream(
 					Ext2Node.NODE_SIZE );
 			DataOutputStream out = new DataOutputStream( buffer );
-			for ( Ext2Node freeNode : freeNodes )
+			// only write the nodes changed since the last write
+			int start = Math.min( savedCount, freeNodes.size( ) );
+			ListIterator<Ext2Node> iter = freeNodes.listIterator( start );
+			while ( iter.hasNext( ) )
 			{
-				buffer.reset( );
-				freeNode.write( out );
-				file.write( buffer.toByteArray( ), 0, Ext2Node.NODE_SIZE );
+				iter.next( ).write( out );
 			}
-			if ( freeBlockList != null )
+			if ( freeNode != null )
 			{
-				buffer.reset( );
 				freeNode.write( out );
-				file.write( buffer.toByteArray( ), 0, Ext2Node.NODE_SIZE );
 			}
+			file.seek( start * (long) Ext2Node.NODE_SIZE );
+			file.write( buffer.toByteArray( ), 0, buffer.size( ) );
 			file.setLength( file.getPointer( ) );
+			savedCount = freeNodes.size( );
 		}
 		finally
 		{
@@ -101,40 +122,173 @@ class FreeBlockTable implements Ext2Constants
 		{
 			return -1;
 		}
-		if ( freeBlockList != null )
+		if ( freeNode != null )
 		{
-			int blockId = freeBlockList.removeLastBlock( );
+			int blockId = removeLastBlock( );
 			if ( blockId > 0 )
 			{
-				dirty = true;
+				setDirty( freeNodes.size( ) );
 				return blockId;
 			}
-			freeBlockList.clear( );
-			freeBlockList = null;
-			freeNode = null;
+			releaseFreeNode( );
 		}
 
 		while ( !freeNodes.isEmpty( ) )
 		{
 			freeNode = freeNodes.removeLast( );
-			freeBlockList = new FreeBlockList( fs, freeNode );
-			int blockId = freeBlockList.removeLastBlock( );
+			setDirty( freeNodes.size( ) );
+			if ( !freeNode.isExtentLayout( ) )
+			{
+				freeBlockList = new FreeBlockList( fs, freeNode );
+			}
+			int blockId = removeLastBlock( );
 			if ( blockId > 0 )
 			{
-				dirty = true;
 				return blockId;
 			}
-			freeBlockList.clear( );
-			freeBlockList = null;
-			freeNode = null;
+			releaseFreeNode( );
 		}
 
 		return -1;
 	}
 
-	public void addFreeBlocks( Ext2Node node )
+	private int removeLastBlock( ) throws IOException
+	{
+		if ( freeBlockList != null )
+		{
+			return freeBlockList.removeLastBlock( );
+		}
+		int[] run = freeNode.getExtents( ).removeLastRun( 1 );
+		if ( run != null )
+		{
+			return run[0];
+		}
+		return -1;
+	}
+
+	private void releaseFreeNode( ) throws IOException
+	{
+		if ( freeBlockList != null )
+		{
+			freeBlockList.clear( );
+			freeBlockList = null;
+		}
+		freeNode = null;
+		setDirty( freeNodes.size( ) );
+	}
+
+	/**
+	 * mark the table dirty, the nodes from the index must be written again.
+	 */
+	private void setDirty( int index )
 	{
 		dirty = true;
+		if ( index < savedCount )
+		{
+			savedCount = index;
+		}
+	}
+
+	/**
+	 * get a run of continuous free blocks from the extent free nodes.
+	 * 
+	 * @param maxCount
+	 *            the max blocks in the run.
+	 * @return the start block and the block count of the run, null if there
+	 *         is no free run.
+	 */
+	public int[] getFreeRun( int maxCount ) throws IOException
+	{
+		if ( isLocked )
+		{
+			return null;
+		}
+		if ( freeNode != null && freeNode.isExtentLayout( ) )
+		{
+			int[] run = freeNode.getExtents( ).removeLastRun( maxCount );
+			if ( run != null )
+			{
+				setDirty( freeNodes.size( ) );
+				return run;
+			}
+			releaseFreeNode( );
+		}
+		ListIterator<Ext2Node> iter = freeNodes.listIterator( freeNodes
+				.size( ) );
+		while ( iter.hasPrevious( ) )
+		{
+			Ext2Node node = iter.previous( );
+			if ( node.isExtentLayout( ) )
+			{
+				int index = iter.nextIndex( );
+				int[] run = node.getExtents( ).removeLastRun( maxCount );
+				if ( node.getExtents( ).size( ) == 0 )
+				{
+					iter.remove( );
+					setDirty( index );
+				}
+				if ( run != null )
+				{
+					setDirty( index );
+					return run;
+				}
+			}
+		}
+		return null;
+	}
+
+	public void addFreeBlocks( Ext2Node node ) throws IOException
+	{
+		setDirty( freeNodes.size( ) );
+		freeNodes.add( node );
+	}
+
+	/**
+	 * add a run of free blocks into the extent free nodes.
+	 */
+	public void addFreeRun( int start, int count )
+	{
+		if ( !freeNodes.isEmpty( ) )
+		{
+			Ext2Node node = freeNodes.getLast( );
+			if ( node.isExtentLayout( )
+					&& node.getExtents( ).size( ) < ExtentList.INLINE_EXTENT_COUNT )
+			{
+				setDirty( freeNodes.size( ) - 1 );
+				node.getExtents( ).append( start, count );
+				return;
+			}
+		}
+		setDirty( freeNodes.size( ) );
+		Ext2Node node = new Ext2Node( );
+		node.setExtentLayout( );
+		node.getExtents( ).append( start, count );
 		freeNodes.add( node );
 	}
+
+	/**
+	 * remove the free blocks at the end of the file.
+	 * 
+	 * @return the new max block id.
+	 */
+	int trim( int maxBlockId )
+	{
+		return maxBlockId;
+	}
+
+	/**
+	 * discard all the free blocks, it is called once the used blocks are
+	 * compacted to the beginning of the file.
+	 */
+	void reset( ) throws IOException
+	{
+		if ( freeBlockList != null )
+		{
+			freeBlockList.clear( );
+			freeBlockList = null;
+		}
+		freeNode = null;
+		freeNodes.clear( );
+		setDirty( 0 );
+	}
 }
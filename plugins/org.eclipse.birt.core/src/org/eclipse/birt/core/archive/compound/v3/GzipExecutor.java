@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * the daemon threads shared by all the seekable GZIP files to compress and
+ * decompress the frames in parallel.
+ */
+class GzipExecutor
+{
+
+	private static final int threadCount = getDefaultThreadCount( );
+
+	private static ExecutorService executor;
+
+	/**
+	 * return the threads used to compress or decompress a file, the frames
+	 * are processed by the calling thread if it is 1.
+	 */
+	static int getThreadCount( )
+	{
+		return threadCount;
+	}
+
+	static synchronized <T> Future<T> submit( Callable<T> task )
+	{
+		if ( executor == null )
+		{
+			executor = Executors.newFixedThreadPool( threadCount,
+					new ThreadFactory( ) {
+
+						public Thread newThread( Runnable runnable )
+						{
+							Thread thread = new Thread( runnable, "Ext2 gzip" );
+							thread.setDaemon( true );
+							return thread;
+						}
+					} );
+		}
+		return executor.submit( task );
+	}
+
+	/**
+	 * wait for the result of the task, the exception thrown by the task is
+	 * thrown again.
+	 */
+	static <T> T get( Future<T> future ) throws IOException
+	{
+		try
+		{
+			return future.get( );
+		}
+		catch ( InterruptedException ex )
+		{
+			Thread.currentThread( ).interrupt( );
+			throw new InterruptedIOException( );
+		}
+		catch ( ExecutionException ex )
+		{
+			Throwable cause = ex.getCause( );
+			if ( cause instanceof IOException )
+			{
+				throw (IOException) cause;
+			}
+			if ( cause instanceof RuntimeException )
+			{
+				throw (RuntimeException) cause;
+			}
+			if ( cause instanceof Error )
+			{
+				throw (Error) cause;
+			}
+			IOException ioex = new IOException( );
+			ioex.initCause( cause );
+			throw ioex;
+		}
+	}
+
+	/**
+	 * wait for the tasks to finish, the results and the exceptions are
+	 * ignored.
+	 */
+	static void waitFor( Collection<? extends Future<?>> futures )
+	{
+		boolean interrupted = false;
+		for ( Future<?> future : futures )
+		{
+			while ( true )
+			{
+				try
+				{
+					future.get( );
+					break;
+				}
+				catch ( InterruptedException ex )
+				{
+					interrupted = true;
+				}
+				catch ( ExecutionException ex )
+				{
+					break;
+				}
+			}
+		}
+		if ( interrupted )
+		{
+			Thread.currentThread( ).interrupt( );
+		}
+	}
+
+	private static int getDefaultThreadCount( )
+	{
+		String value = (String) AccessController
+				.doPrivileged( new PrivilegedAction<Object>( ) {
+
+					public Object run( )
+					{
+						return System
+								.getProperty( SeekableGzipFile.PROPERTY_GZIP_THREADS );
+					}
+				} );
+		if ( value != null )
+		{
+			try
+			{
+				int count = Integer.parseInt( value.trim( ) );
+				if ( count > 0 )
+				{
+					return count;
+				}
+			}
+			catch ( NumberFormatException ex )
+			{
+				// use the default thread count
+			}
+		}
+		return Runtime.getRuntime( ).availableProcessors( );
+	}
+}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.IOException;
+
+/**
+ * read only storage of the file system image.
+ * 
+ * The read only file system reads all the blocks from the storage instead of
+ * the archive file, so the image can be saved in other formats, such as the
+ * memory mapped file or the compressed file. The storage is read by several
+ * threads at the same time.
+ */
+public interface IReadOnlyStorage
+{
+
+	/**
+	 * @return the length of the image.
+	 */
+	long length( ) throws IOException;
+
+	/**
+	 * read the data of the image, the data must be in the image.
+	 */
+	void read( long position, byte[] buffer, int offset, int size )
+			throws IOException;
+
+	void close( ) throws IOException;
+}
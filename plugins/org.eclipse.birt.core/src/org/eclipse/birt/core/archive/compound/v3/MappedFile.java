@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.birt.core.i18n.CoreMessages;
+import org.eclipse.birt.core.i18n.ResourceConstants;
+
+/**
+ * read only view of the archive file mapped into the memory.
+ *
+ * The file is mapped in segments on demand. The segment size is times of the
+ * block size, so a block never crosses two segments. The mapped segments are
+ * shared by all the threads reading the file, the read doesn't change the
+ * state of the segment.
+ *
+ * The mapped segments are released by the GC after the file is closed, so the
+ * file may be kept locked by the OS for a while after it is closed.
+ */
+class MappedFile implements IReadOnlyStorage
+{
+
+	static final int SEGMENT_SIZE_BITS = 26;
+	static final long SEGMENT_SIZE = 1L << SEGMENT_SIZE_BITS;
+	static final long SEGMENT_OFFSET_MASK = SEGMENT_SIZE - 1;
+
+	private volatile FileChannel channel;
+	private long length;
+	private volatile AtomicReferenceArray<MappedByteBuffer> segments;
+	/**
+	 * the file is read without the lock of the file system, so the reads
+	 * racing with the close test it.
+	 */
+	private volatile boolean closed;
+
+	MappedFile( FileChannel channel, long length )
+	{
+		this.channel = channel;
+		this.length = length;
+		int segmentCount = (int) ( ( length + SEGMENT_SIZE - 1 ) >> SEGMENT_SIZE_BITS );
+		this.segments = new AtomicReferenceArray<MappedByteBuffer>(
+				segmentCount );
+	}
+
+	public long length( )
+	{
+		return length;
+	}
+
+	/**
+	 * read the data from the mapped segments, the data may cross several
+	 * segments.
+	 */
+	public void read( long position, byte[] buffer, int offset, int size )
+			throws IOException
+	{
+		if ( closed )
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+		}
+		assert position + size <= length;
+		while ( size > 0 )
+		{
+			int index = (int) ( position >> SEGMENT_SIZE_BITS );
+			int segmentOffset = (int) ( position & SEGMENT_OFFSET_MASK );
+			int readSize = (int) Math.min( size, SEGMENT_SIZE - segmentOffset );
+			ByteBuffer segment = getSegment( index ).duplicate( );
+			segment.position( segmentOffset );
+			segment.get( buffer, offset, readSize );
+			position += readSize;
+			offset += readSize;
+			size -= readSize;
+		}
+	}
+
+	private MappedByteBuffer getSegment( int index ) throws IOException
+	{
+		AtomicReferenceArray<MappedByteBuffer> mappedSegments = segments;
+		FileChannel mappedChannel = channel;
+		if ( closed || mappedChannel == null
+				|| index >= mappedSegments.length( ) )
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+		}
+		MappedByteBuffer segment = mappedSegments.get( index );
+		if ( segment == null )
+		{
+			long start = ( (long) index ) << SEGMENT_SIZE_BITS;
+			long size = Math.min( SEGMENT_SIZE, length - start );
+			segment = mappedChannel.map( FileChannel.MapMode.READ_ONLY, start,
+					size );
+			if ( !mappedSegments.compareAndSet( index, null, segment ) )
+			{
+				segment = mappedSegments.get( index );
+			}
+		}
+		return segment;
+	}
+
+	public void close( )
+	{
+		closed = true;
+		channel = null;
+		segments = new AtomicReferenceArray<MappedByteBuffer>( 0 );
+	}
+}
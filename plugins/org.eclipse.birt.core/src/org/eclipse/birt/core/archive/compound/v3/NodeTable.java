@@ -17,8 +17,16 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
 
+/**
+ * the table of the nodes, saved in the node INODE_NODE_TABLE.
+ * 
+ * The ids of the dirty nodes are kept in a bit set, so the table only writes
+ * the changed nodes instead of checking all the nodes. The continuous dirty
+ * nodes are written in one write.
+ */
 public class NodeTable
 {
 
@@ -33,6 +41,15 @@ public class NodeTable
 	protected LinkedList<Ext2Node> freeNodes = new LinkedList<Ext2Node>( );
 
 	protected boolean dirty;
+	/**
+	 * the ids of the dirty nodes.
+	 */
+	protected BitSet dirtyNodes = new BitSet( );
+	/**
+	 * the first node of the files written since the last commit, -1 if no
+	 * node of the files is written.
+	 */
+	private int firstWrittenNode = -1;
 
 	NodeTable( Ext2FileSystem fs )
 	{
@@ -54,10 +71,10 @@ public class NodeTable
 		Ext2Node entryNode = new Ext2Node( INODE_ENTRY_TABLE );
 		entryNode.setStatus( Ext2Node.STATUS_USED );
 
-		nodes.add( tableNode );
-		nodes.add( headNode );
-		nodes.add( freeNode );
-		nodes.add( entryNode );
+		addNode( tableNode );
+		addNode( headNode );
+		addNode( freeNode );
+		addNode( entryNode );
 
 		this.dirty = true;
 	}
@@ -67,15 +84,49 @@ public class NodeTable
 		return nodes.get( id );
 	}
 
+	int getNodeCount( )
+	{
+		return nodes.size( );
+	}
+
+	/**
+	 * return true if the node of the files is in the table and used.
+	 */
+	boolean isUsedNode( int id )
+	{
+		return id > INODE_ENTRY_TABLE && id < nodes.size( )
+				&& nodes.get( id ).getStatus( ) == Ext2Node.STATUS_USED;
+	}
+
+	private void addNode( Ext2Node node )
+	{
+		nodes.add( node );
+		node.setNodeTable( this );
+		if ( node.isDirty( ) )
+		{
+			dirtyNodes.set( node.getNodeId( ) );
+		}
+	}
+
+	/**
+	 * called by the node when it becomes dirty.
+	 */
+	void addDirtyNode( Ext2Node node )
+	{
+		dirtyNodes.set( node.getNodeId( ) );
+	}
+
 	void read( ) throws IOException
 	{
 		nodes.clear( );
+		dirtyNodes.clear( );
 		byte[] buffer = new byte[Ext2Node.NODE_SIZE];
 		fs.readBlock( 1, 0, buffer, 0, Ext2Node.NODE_SIZE );
 		Ext2Node node = new Ext2Node( INODE_NODE_TABLE );
 		readNode( node, buffer );
-		nodes.add( node );
-		Ext2File file = new Ext2File( fs, INODE_NODE_TABLE, false );
+		addNode( node );
+		// the table may be read as a snapshot, so it is read by its own node
+		Ext2File file = new Ext2File( fs, null, node, false );
 		try
 		{
 			int totalNode = (int) ( file.length( ) / Ext2Node.NODE_SIZE );
@@ -86,7 +137,7 @@ public class NodeTable
 				file.read( buffer, 0, buffer.length );
 				node = new Ext2Node( i );
 				readNode( node, buffer );
-				nodes.add( node );
+				addNode( node );
 				if ( node.getStatus( ) == Ext2Node.STATUS_UNUSED )
 				{
 					freeNodes.add( node );
@@ -100,6 +151,113 @@ public class NodeTable
 		this.dirty = false;
 	}
 
+	/**
+	 * read the snapshot of the table committed by the writer. The old nodes
+	 * saved in the same bytes are shared with the new table, the other nodes
+	 * are read again.
+	 * 
+	 * @param firstChangedNode
+	 *            the first node of the files changed by the commit, -1 if no
+	 *            node of the files is changed. The nodes after it are read
+	 *            without the comparison.
+	 * @return the new table.
+	 */
+	NodeTable refresh( int firstChangedNode ) throws IOException
+	{
+		NodeTable table = new NodeTable( fs );
+		table.nodes.clear( );
+		table.dirtyNodes.clear( );
+		byte[] buffer = new byte[Ext2Node.NODE_SIZE];
+		fs.readBlock( 1, 0, buffer, 0, Ext2Node.NODE_SIZE );
+		Ext2Node node = new Ext2Node( INODE_NODE_TABLE );
+		readNode( node, buffer );
+		table.addNode( node );
+		Ext2File file = new Ext2File( fs, null, node, false );
+		try
+		{
+			int totalNode = (int) ( file.length( ) / Ext2Node.NODE_SIZE );
+			int lastNode = Math.min( nodes.size( ), totalNode );
+			if ( firstChangedNode != -1 && firstChangedNode < lastNode )
+			{
+				lastNode = firstChangedNode;
+			}
+			table.nodes.ensureCapacity( totalNode );
+			byte[] bytes = new byte[Math.max( totalNode - INODE_SYSTEM_HEAD,
+					0 ) * Ext2Node.NODE_SIZE];
+			file.seek( Ext2Node.NODE_SIZE );
+			file.read( bytes, 0, bytes.length );
+			int start = INODE_SYSTEM_HEAD;
+			ByteArrayOutputStream oldBytes = new ByteArrayOutputStream(
+					Ext2Node.NODE_SIZE );
+			DataOutputStream out = new DataOutputStream( oldBytes );
+			for ( int i = INODE_ENTRY_TABLE + 1; i < lastNode; i++ )
+			{
+				node = nodes.get( i );
+				oldBytes.reset( );
+				node.write( out );
+				if ( !isSameNode( oldBytes.toByteArray( ), bytes,
+						( i - INODE_SYSTEM_HEAD ) * Ext2Node.NODE_SIZE ) )
+				{
+					continue;
+				}
+				// read the changed nodes before the unchanged one
+				table.readNodes( bytes, start, i );
+				table.addNode( node );
+				if ( node.getStatus( ) == Ext2Node.STATUS_UNUSED )
+				{
+					table.freeNodes.add( node );
+				}
+				start = i + 1;
+			}
+			table.readNodes( bytes, start, totalNode );
+		}
+		finally
+		{
+			file.close( );
+		}
+		table.dirty = false;
+		return table;
+	}
+
+	private static boolean isSameNode( byte[] node, byte[] bytes, int offset )
+	{
+		for ( int i = 0; i < node.length; i++ )
+		{
+			if ( node[i] != bytes[offset + i] )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * read the nodes from start to end, the bytes save the nodes continuously
+	 * from INODE_SYSTEM_HEAD. The extents of the nodes are loaded too, so the
+	 * nodes don't read the table later.
+	 */
+	private void readNodes( byte[] bytes, int start, int end )
+			throws IOException
+	{
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream(
+				bytes, ( start - INODE_SYSTEM_HEAD ) * Ext2Node.NODE_SIZE,
+				( end - start ) * Ext2Node.NODE_SIZE ) );
+		for ( int i = start; i < end; i++ )
+		{
+			Ext2Node node = new Ext2Node( i );
+			node.read( in );
+			addNode( node );
+			if ( node.getStatus( ) == Ext2Node.STATUS_UNUSED )
+			{
+				freeNodes.add( node );
+			}
+			else if ( node.isExtentLayout( ) )
+			{
+				node.getExtents( ).load( fs );
+			}
+		}
+	}
+
 	private void readNode( Ext2Node node, byte[] bytes ) throws IOException
 	{
 		DataInputStream in = new DataInputStream( new ByteArrayInputStream(
@@ -107,21 +265,29 @@ public class NodeTable
 		node.read( in );
 	}
 
-	void write( ) throws IOException
+	/**
+	 * return the first node of the files written since the last call, -1 if
+	 * no node of the files is written.
+	 */
+	int takeFirstWrittenNode( )
+	{
+		int nodeId = firstWrittenNode;
+		firstWrittenNode = -1;
+		return nodeId;
+	}
+
+	private void setWritten( int nodeId )
 	{
-		if ( !dirty )
+		if ( nodeId > INODE_ENTRY_TABLE
+				&& ( firstWrittenNode == -1 || nodeId < firstWrittenNode ) )
 		{
-			for ( Ext2Node node : nodes )
-			{
-				if ( node.isDirty( ) )
-				{
-					dirty = true;
-					break;
-				}
-			}
+			firstWrittenNode = nodeId;
 		}
+	}
 
-		if ( !dirty )
+	void write( ) throws IOException
+	{
+		if ( !dirty && dirtyNodes.isEmpty( ) )
 		{
 			return;
 		}
@@ -130,21 +296,35 @@ public class NodeTable
 		Ext2File file = new Ext2File( fs, INODE_NODE_TABLE, false );
 		try
 		{
-			file.setLength( nodes.size( ) * (long) Ext2Node.NODE_SIZE );
+			long length = nodes.size( ) * (long) Ext2Node.NODE_SIZE;
+			if ( file.length( ) != length )
+			{
+				file.setLength( length );
+			}
 			ByteArrayOutputStream buffer = new ByteArrayOutputStream(
 					Ext2Node.NODE_SIZE );
 			DataOutputStream out = new DataOutputStream( buffer );
-			for ( int i = 1; i < nodes.size( ); i++ )
+			int start = dirtyNodes.nextSetBit( 1 );
+			while ( start >= 0 )
 			{
-				Ext2Node node = nodes.get( i );
-				if ( node.isDirty( ) )
+				// write the continuous dirty nodes together
+				int end = dirtyNodes.nextClearBit( start );
+				buffer.reset( );
+				for ( int i = start; i < end; i++ )
 				{
-					buffer.reset( );
+					Ext2Node node = nodes.get( i );
+					saveExtents( node );
 					node.write( out );
 					node.setDirty( false );
-					file.seek( i * Ext2Node.NODE_SIZE );
-					file.write( buffer.toByteArray( ), 0, Ext2Node.NODE_SIZE );
 				}
+				dirtyNodes.clear( start, end );
+				if ( end > INODE_ENTRY_TABLE + 1 )
+				{
+					setWritten( Math.max( start, INODE_ENTRY_TABLE + 1 ) );
+				}
+				file.seek( start * (long) Ext2Node.NODE_SIZE );
+				file.write( buffer.toByteArray( ), 0, buffer.size( ) );
+				start = dirtyNodes.nextSetBit( end );
 			}
 			Ext2Node node = nodes.get( 0 );
 			if ( node.isDirty( ) )
@@ -152,6 +332,7 @@ public class NodeTable
 				buffer.reset( );
 				node.write( out );
 				node.setDirty( false );
+				dirtyNodes.clear( 0 );
 				file.seek( 0 );
 				file.write( buffer.toByteArray( ), 0, Ext2Node.NODE_SIZE );
 			}
@@ -168,6 +349,8 @@ public class NodeTable
 		Ext2Node node = nodes.get( iNode );
 		if ( node.isDirty( ) )
 		{
+			saveExtents( node );
+			setWritten( iNode );
 			Ext2File file = new Ext2File( fs, INODE_NODE_TABLE, false );
 			try
 			{
@@ -185,25 +368,61 @@ public class NodeTable
 		}
 	}
 
+	private void saveExtents( Ext2Node node ) throws IOException
+	{
+		if ( node.isExtentLayout( ) )
+		{
+			node.getExtents( ).save( fs );
+		}
+	}
+
 	Ext2Node allocateNode( )
 	{
+		Ext2Node node;
 		if ( !freeNodes.isEmpty( ) )
 		{
-			Ext2Node node = freeNodes.removeFirst( );
-			node.setStatus( Ext2Node.STATUS_USED );
-			return node;
+			node = freeNodes.removeFirst( );
+		}
+		else
+		{
+			node = new Ext2Node( nodes.size( ) );
+			addNode( node );
 		}
-		Ext2Node node = new Ext2Node( nodes.size( ) );
-		nodes.add( node );
 		node.setStatus( Ext2Node.STATUS_USED );
+		if ( fs.isExtentLayout( ) )
+		{
+			node.setExtentLayout( );
+		}
 		return node;
 	}
 
-	void releaseNode( int nodeId )
+	void releaseNode( int nodeId ) throws IOException
 	{
 		Ext2Node node = nodes.get( nodeId );
-		Ext2Node freeNode = node.copyFreeNode( );
-		fs.releaseFreeBlocks( freeNode );
+		if ( node.isExtentLayout( ) )
+		{
+			// return the runs to the file system, the overflow blocks are
+			// released as runs of one block.
+			ExtentList extents = node.getExtents( );
+			extents.load( fs );
+			for ( int i = 0; i < extents.size( ); i++ )
+			{
+				int start = extents.getStart( i );
+				if ( start != -1 )
+				{
+					fs.releaseFreeRun( start, extents.getCount( i ) );
+				}
+			}
+			for ( int blockId : extents.getOverflowBlocks( ) )
+			{
+				fs.releaseFreeRun( blockId, 1 );
+			}
+		}
+		else
+		{
+			Ext2Node freeNode = node.copyFreeNode( );
+			fs.releaseFreeBlocks( freeNode );
+		}
 		node.reset( );
 		freeNodes.add( node );
 	}
@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * the daemon threads shared by all the file systems to read ahead the blocks
+ * in the background.
+ */
+class ReadAheadExecutor
+{
+
+	static final int MAX_THREAD_COUNT = 4;
+
+	private static ExecutorService executor;
+
+	static synchronized void execute( Runnable task )
+	{
+		if ( executor == null )
+		{
+			int threadCount = Math.min( MAX_THREAD_COUNT, Runtime.getRuntime( )
+					.availableProcessors( ) );
+			executor = Executors.newFixedThreadPool( threadCount,
+					new ThreadFactory( ) {
+
+						public Thread newThread( Runnable runnable )
+						{
+							Thread thread = new Thread( runnable,
+									"Ext2 read ahead" );
+							thread.setDaemon( true );
+							return thread;
+						}
+					} );
+		}
+		executor.execute( task );
+	}
+}
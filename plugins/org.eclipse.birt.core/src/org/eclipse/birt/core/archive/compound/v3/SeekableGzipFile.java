@@ -0,0 +1,679 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Actuate Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Actuate Corporation  - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.birt.core.archive.compound.v3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.birt.core.i18n.CoreMessages;
+import org.eclipse.birt.core.i18n.ResourceConstants;
+
+/**
+ * GZIP file which can be read at any position.
+ * 
+ * The file is a sequence of GZIP members, so it is still a valid GZIP file
+ * which can be unzipped by any GZIP tool:
+ * 
+ * frames: each FRAME_SIZE bytes of the data are compressed into one member.
+ * 
+ * index: empty members with the offsets of the frames saved in the extra
+ * field, MAX_INDEX_ENTRIES offsets in each member.
+ * 
+ * trailer: an empty member with the frame size, the data length, the offset
+ * of the index and the frame count saved in the extra field. It has fixed
+ * size, so it is read from the end of the file.
+ * 
+ * The reader only inflates the frames being read, the inflated frames are
+ * cached in a small LRU cache.
+ * 
+ * The frames are independent, so they are deflated by compress and inflated
+ * by copyTo in parallel, PROPERTY_GZIP_THREADS frames at the same time.
+ */
+public class SeekableGzipFile implements IReadOnlyStorage
+{
+
+	/**
+	 * the system property defines the threads used to compress or
+	 * decompress a file. It is the count of the processors by default, 1
+	 * compresses and decompresses the frames in the calling thread.
+	 */
+	public static final String PROPERTY_GZIP_THREADS = "org.eclipse.birt.core.archive.compound.v3.GZIP_THREADS";
+
+	static final int FRAME_SIZE = 64 * 1024;
+	static final int CACHED_FRAMES = 16;
+	static final int MAX_INDEX_ENTRIES = 8000;
+
+	static final int MEMBER_HEADER_SIZE = 10;
+	static final int MEMBER_TRAILER_SIZE = 8;
+	static final int SUBFIELD_HEADER_SIZE = 4;
+	static final int TRAILER_DATA_SIZE = 24;
+	/**
+	 * the size of the trailer member: header, XLEN, extra field, empty deflate
+	 * block and member trailer.
+	 */
+	static final int TRAILER_SIZE = MEMBER_HEADER_SIZE + 2
+			+ SUBFIELD_HEADER_SIZE + TRAILER_DATA_SIZE + 2 + MEMBER_TRAILER_SIZE;
+
+	static final int FLAG_EXTRA = 4;
+	static final byte SUBFIELD_ID = 'B';
+	static final byte INDEX_ID = 'I';
+	static final byte TRAILER_ID = 'T';
+	/**
+	 * the deflate block of empty data.
+	 */
+	static final byte[] EMPTY_BLOCK = new byte[]{3, 0};
+
+	private String fileName;
+	private RandomAccessFile rf;
+	private FileChannel channel;
+	private int frameSize;
+	private long length;
+	private int frameCount;
+	/**
+	 * the offsets of the frames, the last one is the offset of the index.
+	 */
+	private long[] frameOffsets;
+	private Inflater inflater;
+	private byte[] compressed;
+	private Map<Integer, byte[]> frames;
+
+	/**
+	 * open the file, the file is closed if the storage is closed.
+	 */
+	public SeekableGzipFile( String fileName, RandomAccessFile rf )
+			throws IOException
+	{
+		this.fileName = fileName;
+		this.rf = rf;
+		this.channel = rf.getChannel( );
+		byte[] trailer = new byte[TRAILER_SIZE];
+		long trailerOffset = rf.length( ) - TRAILER_SIZE;
+		if ( trailerOffset < 0
+				|| !readTrailer( trailer, trailerOffset )
+				|| !readIndex( trailerOffset ) )
+		{
+			throw new IOException( CoreMessages.getFormattedString(
+					ResourceConstants.INVALID_COMPRESSED_STREAM,
+					new Object[]{fileName} ) );
+		}
+		this.inflater = new Inflater( true );
+		this.compressed = new byte[frameSize + frameSize / 8 + 64];
+		this.frames = new LinkedHashMap<Integer, byte[]>( CACHED_FRAMES, 0.75f,
+				true ) {
+
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry( Map.Entry<Integer, byte[]> eldest )
+			{
+				return size( ) > CACHED_FRAMES;
+			}
+		};
+	}
+
+	/**
+	 * test if the file is a seekable GZIP file.
+	 */
+	public static boolean isSeekable( RandomAccessFile rf ) throws IOException
+	{
+		long trailerOffset = rf.length( ) - TRAILER_SIZE;
+		if ( trailerOffset < 0 )
+		{
+			return false;
+		}
+		byte[] trailer = new byte[TRAILER_SIZE];
+		readFully( rf.getChannel( ), trailer, 0, TRAILER_SIZE, trailerOffset );
+		return parseSubfield( trailer, 0, TRAILER_ID ) == TRAILER_DATA_SIZE;
+	}
+
+	private boolean readTrailer( byte[] trailer, long trailerOffset )
+			throws IOException
+	{
+		readFully( channel, trailer, 0, TRAILER_SIZE, trailerOffset );
+		if ( parseSubfield( trailer, 0, TRAILER_ID ) != TRAILER_DATA_SIZE )
+		{
+			return false;
+		}
+		int off = MEMBER_HEADER_SIZE + 2 + SUBFIELD_HEADER_SIZE;
+		frameSize = (int) readLittleEndian( trailer, off, 4 );
+		length = readLittleEndian( trailer, off + 4, 8 );
+		frameCount = (int) readLittleEndian( trailer, off + 20, 4 );
+		long indexOffset = readLittleEndian( trailer, off + 12, 8 );
+		if ( frameSize <= 0 || frameCount < 0 || indexOffset < 0
+				|| indexOffset > trailerOffset
+				|| length > (long) frameCount * frameSize )
+		{
+			return false;
+		}
+		frameOffsets = new long[frameCount + 1];
+		frameOffsets[frameCount] = indexOffset;
+		return true;
+	}
+
+	private boolean readIndex( long trailerOffset ) throws IOException
+	{
+		long indexOffset = frameOffsets[frameCount];
+		byte[] index = new byte[(int) ( trailerOffset - indexOffset )];
+		readFully( channel, index, 0, index.length, indexOffset );
+		int off = 0;
+		int count = 0;
+		while ( off < index.length )
+		{
+			int size = parseSubfield( index, off, INDEX_ID );
+			if ( size < 0 || size % 8 != 0 )
+			{
+				return false;
+			}
+			int entryOff = off + MEMBER_HEADER_SIZE + 2 + SUBFIELD_HEADER_SIZE;
+			for ( int i = 0; i < size / 8 && count < frameCount; i++ )
+			{
+				frameOffsets[count++] = readLittleEndian( index, entryOff + i
+						* 8, 8 );
+			}
+			off = entryOff + size + 2 + MEMBER_TRAILER_SIZE;
+		}
+		return count == frameCount;
+	}
+
+	/**
+	 * parse the empty member with one subfield in the extra field.
+	 * 
+	 * @return the size of the subfield, -1 if the member isn't the expected
+	 *         one.
+	 */
+	private static int parseSubfield( byte[] bytes, int off, byte id )
+	{
+		if ( off + MEMBER_HEADER_SIZE + 2 + SUBFIELD_HEADER_SIZE > bytes.length )
+		{
+			return -1;
+		}
+		if ( bytes[off] != (byte) 0x1f || bytes[off + 1] != (byte) 0x8b
+				|| bytes[off + 2] != Deflater.DEFLATED
+				|| bytes[off + 3] != FLAG_EXTRA )
+		{
+			return -1;
+		}
+		off += MEMBER_HEADER_SIZE;
+		int extraSize = (int) readLittleEndian( bytes, off, 2 );
+		int size = (int) readLittleEndian( bytes, off + 4, 2 );
+		if ( bytes[off + 2] != SUBFIELD_ID || bytes[off + 3] != id
+				|| extraSize != size + SUBFIELD_HEADER_SIZE
+				|| off + 2 + extraSize + 2 + MEMBER_TRAILER_SIZE > bytes.length )
+		{
+			return -1;
+		}
+		return size;
+	}
+
+	public long length( )
+	{
+		return length;
+	}
+
+	public void read( long position, byte[] buffer, int offset, int size )
+			throws IOException
+	{
+		assert position + size <= length;
+		while ( size > 0 )
+		{
+			int index = (int) ( position / frameSize );
+			int frameOffset = (int) ( position % frameSize );
+			int readSize = Math.min( size, frameSize - frameOffset );
+			synchronized ( this )
+			{
+				byte[] frame = getFrame( index );
+				System.arraycopy( frame, frameOffset, buffer, offset, readSize );
+			}
+			position += readSize;
+			offset += readSize;
+			size -= readSize;
+		}
+	}
+
+	private byte[] getFrame( int index ) throws IOException
+	{
+		if ( rf == null )
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+		}
+		Integer key = Integer.valueOf( index );
+		byte[] frame = frames.get( key );
+		if ( frame != null )
+		{
+			return frame;
+		}
+		frame = new byte[frameSize];
+		inflateFrame( index, compressed, inflater, frame );
+		frames.put( key, frame );
+		return frame;
+	}
+
+	/**
+	 * read and inflate the frame with the buffers of the caller, it can be
+	 * called by different threads at the same time.
+	 * 
+	 * @return the length of the frame.
+	 */
+	private int inflateFrame( int index, byte[] compressed, Inflater inflater,
+			byte[] frame ) throws IOException
+	{
+		long start = frameOffsets[index] + MEMBER_HEADER_SIZE;
+		int size = (int) ( frameOffsets[index + 1] - MEMBER_TRAILER_SIZE - start );
+		if ( size < 0 || size > compressed.length )
+		{
+			throw new IOException( CoreMessages.getFormattedString(
+					ResourceConstants.INVALID_COMPRESSED_STREAM,
+					new Object[]{fileName} ) );
+		}
+		readFully( channel, compressed, 0, size, start );
+		int frameLength = (int) Math.min( frameSize, length - (long) index
+				* frameSize );
+		inflater.reset( );
+		inflater.setInput( compressed, 0, size );
+		try
+		{
+			int inflated = 0;
+			while ( inflated < frameLength && !inflater.finished( ) )
+			{
+				int count = inflater.inflate( frame, inflated, frameLength
+						- inflated );
+				if ( count == 0 && inflater.needsInput( ) )
+				{
+					break;
+				}
+				inflated += count;
+			}
+			if ( inflated != frameLength )
+			{
+				throw new EOFException( fileName );
+			}
+		}
+		catch ( DataFormatException ex )
+		{
+			IOException ioex = new IOException( CoreMessages
+					.getFormattedString(
+							ResourceConstants.INVALID_COMPRESSED_STREAM,
+							new Object[]{fileName} ) );
+			ioex.initCause( ex );
+			throw ioex;
+		}
+		return frameLength;
+	}
+
+	/**
+	 * write the data into the output stream. The frames are inflated in
+	 * parallel and written in order.
+	 */
+	public void copyTo( OutputStream out ) throws IOException
+	{
+		if ( rf == null )
+		{
+			throw new IOException(
+					CoreMessages.getString( ResourceConstants.FILE_HAS_BEEN_CLOSED ) );
+		}
+		boolean parallel = GzipExecutor.getThreadCount( ) > 1 && frameCount > 1;
+		int window = GzipExecutor.getThreadCount( ) * 2;
+		ArrayList<FrameInflater> tasks = new ArrayList<FrameInflater>( );
+		ArrayList<FrameInflater> freeTasks = new ArrayList<FrameInflater>( );
+		LinkedList<Future<FrameInflater>> pending = new LinkedList<Future<FrameInflater>>( );
+		try
+		{
+			for ( int i = 0; i < frameCount; i++ )
+			{
+				if ( pending.size( ) >= window )
+				{
+					FrameInflater task = GzipExecutor.get( pending.removeFirst( ) );
+					out.write( task.frame, 0, task.frameLength );
+					freeTasks.add( task );
+				}
+				FrameInflater task;
+				if ( freeTasks.isEmpty( ) )
+				{
+					task = new FrameInflater( );
+					tasks.add( task );
+				}
+				else
+				{
+					task = freeTasks.remove( freeTasks.size( ) - 1 );
+				}
+				task.index = i;
+				if ( parallel )
+				{
+					pending.add( GzipExecutor.submit( task ) );
+				}
+				else
+				{
+					task.call( );
+					out.write( task.frame, 0, task.frameLength );
+					freeTasks.add( task );
+				}
+			}
+			while ( !pending.isEmpty( ) )
+			{
+				FrameInflater task = GzipExecutor.get( pending.removeFirst( ) );
+				out.write( task.frame, 0, task.frameLength );
+			}
+		}
+		finally
+		{
+			// the inflaters can't be ended until the tasks are finished
+			GzipExecutor.waitFor( pending );
+			for ( FrameInflater task : tasks )
+			{
+				task.inflater.end( );
+			}
+		}
+	}
+
+	/**
+	 * inflate one frame with its own buffers.
+	 */
+	private class FrameInflater implements Callable<FrameInflater>
+	{
+
+		int index;
+		int frameLength;
+		byte[] frame = new byte[frameSize];
+		byte[] compressed = new byte[SeekableGzipFile.this.compressed.length];
+		Inflater inflater = new Inflater( true );
+
+		public FrameInflater call( ) throws IOException
+		{
+			frameLength = inflateFrame( index, compressed, inflater, frame );
+			return this;
+		}
+	}
+
+	synchronized public void close( ) throws IOException
+	{
+		if ( rf != null )
+		{
+			inflater.end( );
+			frames.clear( );
+			rf.close( );
+			rf = null;
+		}
+	}
+
+	private static void readFully( FileChannel fc, byte[] buffer, int offset,
+			int size, long position ) throws IOException
+	{
+		ByteBuffer bytes = ByteBuffer.wrap( buffer, offset, size );
+		while ( bytes.hasRemaining( ) )
+		{
+			int readSize = fc.read( bytes, position );
+			if ( readSize < 0 )
+			{
+				throw new EOFException( );
+			}
+			position += readSize;
+		}
+	}
+
+	private static long readLittleEndian( byte[] bytes, int off, int size )
+	{
+		long value = 0;
+		for ( int i = size - 1; i >= 0; i-- )
+		{
+			value = ( value << 8 ) | ( bytes[off + i] & 0xFF );
+		}
+		return value;
+	}
+
+	private static void writeLittleEndian( long value, byte[] bytes, int off,
+			int size )
+	{
+		for ( int i = 0; i < size; i++ )
+		{
+			bytes[off + i] = (byte) ( value >>> ( i * 8 ) );
+		}
+	}
+
+	/**
+	 * compress the input stream into a seekable GZIP file.
+	 */
+	public static void compress( InputStream in, OutputStream out )
+			throws IOException
+	{
+		new GzipWriter( out ).write( in );
+	}
+
+	/**
+	 * write the frames, the index and the trailer.
+	 */
+	private static class GzipWriter
+	{
+
+		private OutputStream out;
+		private long position;
+		private long[] offsets = new long[64];
+		private int frameCount;
+
+		GzipWriter( OutputStream out )
+		{
+			this.out = out;
+		}
+
+		void write( InputStream in ) throws IOException
+		{
+			boolean parallel = GzipExecutor.getThreadCount( ) > 1;
+			int window = GzipExecutor.getThreadCount( ) * 2;
+			ArrayList<FrameDeflater> tasks = new ArrayList<FrameDeflater>( );
+			ArrayList<FrameDeflater> freeTasks = new ArrayList<FrameDeflater>( );
+			LinkedList<Future<FrameDeflater>> pending = new LinkedList<Future<FrameDeflater>>( );
+			long length = 0;
+			try
+			{
+				while ( true )
+				{
+					if ( pending.size( ) >= window )
+					{
+						freeTasks.add( writeFrame( GzipExecutor.get( pending
+								.removeFirst( ) ) ) );
+					}
+					FrameDeflater task;
+					if ( freeTasks.isEmpty( ) )
+					{
+						task = new FrameDeflater( );
+						tasks.add( task );
+					}
+					else
+					{
+						task = freeTasks.remove( freeTasks.size( ) - 1 );
+					}
+					task.size = readFrame( in, task.frame );
+					if ( task.size <= 0 )
+					{
+						break;
+					}
+					length += task.size;
+					if ( parallel )
+					{
+						pending.add( GzipExecutor.submit( task ) );
+					}
+					else
+					{
+						freeTasks.add( writeFrame( task.call( ) ) );
+					}
+				}
+				while ( !pending.isEmpty( ) )
+				{
+					writeFrame( GzipExecutor.get( pending.removeFirst( ) ) );
+				}
+			}
+			finally
+			{
+				// the deflaters can't be ended until the tasks are finished
+				GzipExecutor.waitFor( pending );
+				for ( FrameDeflater task : tasks )
+				{
+					task.deflater.end( );
+				}
+			}
+
+			long indexOffset = position;
+			for ( int i = 0; i < frameCount; i += MAX_INDEX_ENTRIES )
+			{
+				int count = Math.min( MAX_INDEX_ENTRIES, frameCount - i );
+				byte[] entries = new byte[count * 8];
+				for ( int j = 0; j < count; j++ )
+				{
+					writeLittleEndian( offsets[i + j], entries, j * 8, 8 );
+				}
+				writeEmptyMember( INDEX_ID, entries );
+			}
+
+			byte[] trailer = new byte[TRAILER_DATA_SIZE];
+			writeLittleEndian( FRAME_SIZE, trailer, 0, 4 );
+			writeLittleEndian( length, trailer, 4, 8 );
+			writeLittleEndian( indexOffset, trailer, 12, 8 );
+			writeLittleEndian( frameCount, trailer, 20, 4 );
+			writeEmptyMember( TRAILER_ID, trailer );
+			out.flush( );
+		}
+
+		/**
+		 * write the deflated frame as a GZIP member.
+		 */
+		private FrameDeflater writeFrame( FrameDeflater task )
+				throws IOException
+		{
+			addOffset( );
+			writeHeader( 0 );
+			writeBytes( task.buffer, 0, task.bufferSize );
+			writeTrailer( task.crc, task.size );
+			return task;
+		}
+
+		private int readFrame( InputStream in, byte[] frame )
+				throws IOException
+		{
+			int size = 0;
+			while ( size < frame.length )
+			{
+				int count = in.read( frame, size, frame.length - size );
+				if ( count < 0 )
+				{
+					break;
+				}
+				size += count;
+			}
+			return size;
+		}
+
+		private void addOffset( )
+		{
+			if ( frameCount == offsets.length )
+			{
+				long[] newOffsets = new long[offsets.length * 2];
+				System.arraycopy( offsets, 0, newOffsets, 0, frameCount );
+				offsets = newOffsets;
+			}
+			offsets[frameCount++] = position;
+		}
+
+		private void writeHeader( int flags ) throws IOException
+		{
+			byte[] header = new byte[MEMBER_HEADER_SIZE];
+			header[0] = (byte) 0x1f;
+			header[1] = (byte) 0x8b;
+			header[2] = Deflater.DEFLATED;
+			header[3] = (byte) flags;
+			// unknown OS
+			header[9] = (byte) 0xff;
+			writeBytes( header, 0, header.length );
+		}
+
+		private void writeTrailer( long crc, int size ) throws IOException
+		{
+			byte[] trailer = new byte[MEMBER_TRAILER_SIZE];
+			writeLittleEndian( crc, trailer, 0, 4 );
+			writeLittleEndian( size, trailer, 4, 4 );
+			writeBytes( trailer, 0, trailer.length );
+		}
+
+		private void writeEmptyMember( byte id, byte[] data )
+				throws IOException
+		{
+			writeHeader( FLAG_EXTRA );
+			byte[] extra = new byte[2 + SUBFIELD_HEADER_SIZE];
+			writeLittleEndian( SUBFIELD_HEADER_SIZE + data.length, extra, 0, 2 );
+			extra[2] = SUBFIELD_ID;
+			extra[3] = id;
+			writeLittleEndian( data.length, extra, 4, 2 );
+			writeBytes( extra, 0, extra.length );
+			writeBytes( data, 0, data.length );
+			writeBytes( EMPTY_BLOCK, 0, EMPTY_BLOCK.length );
+			writeTrailer( 0, 0 );
+		}
+
+		private void writeBytes( byte[] bytes, int off, int size )
+				throws IOException
+		{
+			out.write( bytes, off, size );
+			position += size;
+		}
+	}
+
+	/**
+	 * deflate one frame with its own buffers.
+	 */
+	private static class FrameDeflater implements Callable<FrameDeflater>
+	{
+
+		byte[] frame = new byte[FRAME_SIZE];
+		int size;
+		byte[] buffer = new byte[FRAME_SIZE + FRAME_SIZE / 8 + 64];
+		int bufferSize;
+		long crc;
+		Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+		CRC32 crc32 = new CRC32( );
+
+		public FrameDeflater call( )
+		{
+			deflater.reset( );
+			deflater.setInput( frame, 0, size );
+			deflater.finish( );
+			bufferSize = 0;
+			while ( !deflater.finished( ) )
+			{
+				if ( bufferSize == buffer.length )
+				{
+					byte[] newBuffer = new byte[buffer.length * 2];
+					System.arraycopy( buffer, 0, newBuffer, 0, bufferSize );
+					buffer = newBuffer;
+				}
+				bufferSize += deflater.deflate( buffer, bufferSize,
+						buffer.length - bufferSize );
+			}
+			crc32.reset( );
+			crc32.update( frame, 0, size );
+			crc = crc32.getValue( );
+			return this;
+		}
+	}
+}
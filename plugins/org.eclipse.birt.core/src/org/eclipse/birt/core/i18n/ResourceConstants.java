@@ -34,6 +34,8 @@ public class ResourceConstants
 	public final static String CANNOT_CHANGE_READONLY_BUFFER = "error.CanotchangeReadOnlyBuffer";
 	public final static String FILE_IN_READONLY_MODE = "error.FileOpenedInReadOnlyMode";
 	public final static String FILE_HAS_BEEN_CLOSED = "error.FileHasBeenClosed";
+	public final static String ENTRY_REMOVED = "error.EntryRemoved";
+	public final static String INVALID_BLOCK = "error.InvalidBlock";
 	public final static String UNPARSEABLE_STRING = "error.UnparseableString";
 	public final static String CANNOT_STARTUP_OSGI_PLATFORM = "error.CannotStartupOSGIPlatform";
 	public final static String UNSUPPORTED_FILE_MODE = "error.UnsupportedFileMode";
@@ -43,6 +45,7 @@ public class ResourceConstants
 	public final static String READ_ONLY_ARCHIVE = "error.ReadOnlyArchive";
 	public final static String UNSUPPORTED_ARCHIVE_VERSION = "error.UnsupportedArchiveVersion";
 	public final static String UNSUPPORTED_BLOCK_SIZE = "error.UnsupportedBlockSize";
+	public final static String INVALID_COMPRESSED_STREAM = "error.InvalidCompressedStream";
 	public final static String INVALID_INDEX = "error.InvalidIndex";
 	public final static String NOT_COMPOUND_FILE = "error.NotCompoundFile";
 	public final static String UNEXPECTED_NODE_TYPE = "error.UnsupportedNodeType";